@@ -9,6 +9,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
@@ -19,34 +20,64 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.logging.HttpLoggingInterceptor;
+import okio.BufferedSource;
 
-public class ApiClient {
+public class ApiClient implements EmbeddingProvider {
     private static final String TAG = "ApiClient";
     private static final String BASE_URL = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash-exp:generateContent";
+    private static final String STREAM_URL = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash-exp:streamGenerateContent?alt=sse";
+    private static final String SSE_DATA_PREFIX = "data:";
+    private static final String EMBED_URL = "https://generativelanguage.googleapis.com/v1beta/models/text-embedding-004:batchEmbedContents";
+    private static final String EMBEDDING_MODEL = "models/text-embedding-004";
+    // Truncated output keeps the on-device vector index small
+    private static final int EMBEDDING_DIMENSIONS = 256;
+    private static final int MAX_EMBED_BATCH = 100;
+    private static final int MAX_EMBED_CHARS = 8000;
     private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
     
+    private static OkHttpClient sharedClient;
+    
     private OkHttpClient client;
     private Gson gson;
     
     public ApiClient(Context context) {
-        HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
-        logging.setLevel(BuildConfig.DEBUG ? HttpLoggingInterceptor.Level.BODY : HttpLoggingInterceptor.Level.NONE);
-        
-        client = new OkHttpClient.Builder()
-                .addInterceptor(logging)
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(60, TimeUnit.SECONDS)
-                .writeTimeout(30, TimeUnit.SECONDS)
-                .build();
-                
+        client = getSharedClient();
         gson = new Gson();
     }
     
+    /**
+     * The process-wide HTTP client. Sharing it lets every caller reuse one
+     * connection pool and dispatcher; derive variants with {@code newBuilder()}.
+     */
+    public static synchronized OkHttpClient getSharedClient() {
+        if (sharedClient == null) {
+            HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
+            logging.setLevel(BuildConfig.DEBUG ? HttpLoggingInterceptor.Level.BODY : HttpLoggingInterceptor.Level.NONE);
+            
+            sharedClient = new OkHttpClient.Builder()
+                    .addInterceptor(logging)
+                    .connectTimeout(30, TimeUnit.SECONDS)
+                    .readTimeout(60, TimeUnit.SECONDS)
+                    .writeTimeout(30, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sharedClient;
+    }
+    
     public interface ApiCallback {
         void onSuccess(String response);
         void onError(String error);
     }
     
+    /**
+     * Callbacks run on the OkHttp thread that reads the stream.
+     */
+    public interface StreamCallback {
+        void onChunk(String text);
+        void onComplete(String fullText);
+        void onError(String error);
+    }
+    
     public void sendMessage(String message, String conversationHistory, ApiCallback callback) {
         try {
             JsonObject requestBody = createRequestBody(message, conversationHistory);
@@ -98,6 +129,146 @@ public class ApiClient {
         }
     }
     
+    /**
+     * Streams the response as server-sent events, reporting each piece of
+     * text as it arrives. Returns the call so it can be cancelled.
+     */
+    public Call streamMessage(String message, String conversationHistory, StreamCallback callback) {
+        JsonObject requestBody = createRequestBody(message, conversationHistory);
+        Request request = new Request.Builder()
+                .url(STREAM_URL + "&key=" + BuildConfig.GEMINI_API_KEY)
+                .post(RequestBody.create(gson.toJson(requestBody), JSON))
+                .addHeader("Accept", "text/event-stream")
+                .build();
+        
+        // Logging a streamed body would buffer it until the end
+        OkHttpClient.Builder streamClient = client.newBuilder();
+        streamClient.interceptors().clear();
+        Call call = streamClient.build().newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (call.isCanceled()) return;
+                Log.e(TAG, "Stream call failed", e);
+                callback.onError("Network error: " + e.getMessage());
+            }
+            
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response ignored = response) {
+                    if (!response.isSuccessful() || response.body() == null) {
+                        String errorBody = response.body() != null ? response.body().string() : "Unknown error";
+                        Log.e(TAG, "API error: " + response.code() + " - " + errorBody);
+                        callback.onError("API error: " + response.code());
+                        return;
+                    }
+                    
+                    StringBuilder fullText = new StringBuilder();
+                    BufferedSource source = response.body().source();
+                    String line;
+                    while ((line = source.readUtf8Line()) != null) {
+                        if (!line.startsWith(SSE_DATA_PREFIX)) continue;
+                        String chunk = extractTextFromResponse(line.substring(SSE_DATA_PREFIX.length()).trim());
+                        if (chunk != null && !chunk.isEmpty()) {
+                            fullText.append(chunk);
+                            callback.onChunk(chunk);
+                        }
+                    }
+                    
+                    if (fullText.length() > 0) {
+                        callback.onComplete(fullText.toString());
+                    } else {
+                        callback.onError("Empty response from API");
+                    }
+                    
+                } catch (Exception e) {
+                    if (call.isCanceled()) return;
+                    Log.e(TAG, "Error reading stream", e);
+                    callback.onError("Error processing response: " + e.getMessage());
+                }
+            }
+        });
+        return call;
+    }
+    
+    @Override
+    public String getModelId() {
+        return EMBEDDING_MODEL + "@" + EMBEDDING_DIMENSIONS;
+    }
+    
+    @Override
+    public int getDimensions() {
+        return EMBEDDING_DIMENSIONS;
+    }
+    
+    /**
+     * Embeds the texts with the embeddings endpoint, batching requests as
+     * needed. Blocks on the network, so it must not be called on the main thread.
+     */
+    @Override
+    public float[][] embed(List<String> texts, boolean query) throws IOException {
+        float[][] vectors = new float[texts.size()][];
+        for (int start = 0; start < texts.size(); start += MAX_EMBED_BATCH) {
+            int end = Math.min(texts.size(), start + MAX_EMBED_BATCH);
+            float[][] batch = embedBatch(texts.subList(start, end), query);
+            System.arraycopy(batch, 0, vectors, start, batch.length);
+        }
+        return vectors;
+    }
+    
+    private float[][] embedBatch(List<String> texts, boolean query) throws IOException {
+        JsonArray requests = new JsonArray();
+        for (String text : texts) {
+            JsonObject part = new JsonObject();
+            part.addProperty("text", text.length() > MAX_EMBED_CHARS ? text.substring(0, MAX_EMBED_CHARS) : text);
+            JsonArray parts = new JsonArray();
+            parts.add(part);
+            JsonObject content = new JsonObject();
+            content.add("parts", parts);
+            
+            JsonObject request = new JsonObject();
+            request.addProperty("model", EMBEDDING_MODEL);
+            request.add("content", content);
+            request.addProperty("taskType", query ? "RETRIEVAL_QUERY" : "RETRIEVAL_DOCUMENT");
+            request.addProperty("outputDimensionality", EMBEDDING_DIMENSIONS);
+            requests.add(request);
+        }
+        JsonObject requestBody = new JsonObject();
+        requestBody.add("requests", requests);
+        
+        Request request = new Request.Builder()
+                .url(EMBED_URL + "?key=" + BuildConfig.GEMINI_API_KEY)
+                .post(RequestBody.create(gson.toJson(requestBody), JSON))
+                .build();
+        
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new IOException("Embedding API error: " + response.code());
+            }
+            
+            JsonObject body = gson.fromJson(response.body().string(), JsonObject.class);
+            JsonArray embeddings = body != null ? body.getAsJsonArray("embeddings") : null;
+            if (embeddings == null || embeddings.size() != texts.size()) {
+                throw new IOException("Unexpected embedding response");
+            }
+            
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < embeddings.size(); i++) {
+                JsonArray values = embeddings.get(i).getAsJsonObject().getAsJsonArray("values");
+                if (values == null || values.size() != EMBEDDING_DIMENSIONS) {
+                    throw new IOException("Unexpected embedding size");
+                }
+                vectors[i] = new float[values.size()];
+                for (int j = 0; j < values.size(); j++) {
+                    vectors[i][j] = values.get(j).getAsFloat();
+                }
+            }
+            return vectors;
+        } catch (RuntimeException e) {
+            throw new IOException("Error parsing embedding response", e);
+        }
+    }
+    
     private JsonObject createRequestBody(String message, String conversationHistory) {
         JsonObject requestBody = new JsonObject();
         
@@ -0,0 +1,148 @@
+package com.ibradecode.gemini;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of single chat messages and of the varints and strings
+ * they are built from. {@link CompressedSessionFile} stores messages in this
+ * encoding, and {@link SearchIndex} reuses the varint and string helpers.
+ *
+ * Layout (fixed-width numbers are big-endian):
+ * <pre>
+ * message : role(byte) [roleName(str) if role == ROLE_OTHER] timestamp(long) time(str)
+ *           text(str) [blobId(str) if FLAG_SPILLED] [id(str) if FLAG_HAS_ID]
+ * str     : length(varint) utf8-bytes
+ * </pre>
+ * The role byte carries the flags. A spilled message stores its preview as
+ * the text.
+ *
+ * This class used to hold a file format for the whole history too, with
+ * its own writer, a paged {@code Reader} with {@code readLastPage} and a
+ * JSON converter. Those roles have moved. {@link CompressedSessionFile} writes the
+ * session files and reads them through a memory map:
+ * {@link CompressedSessionFile#readTail} replaces {@code readLastPage}, and
+ * {@link CompressedSessionFile#readRange} reads any other page. JSON now
+ * comes in and out through {@link ChatBackup}.
+ */
+public class BinarySessionFormat {
+
+    /**
+     * Version of the message encoding. Version 2 added {@link #FLAG_SPILLED}
+     * and {@link #FLAG_HAS_ID}; version 1 records have neither flag set, so
+     * they read the same way. Containers record which version they hold.
+     */
+    static final int VERSION = 2;
+
+    static final byte ROLE_USER = 0;
+    static final byte ROLE_MODEL = 1;
+    static final byte ROLE_OTHER = 2;
+    // Set on the role byte of a message whose text is in the BlobStore
+    static final int FLAG_SPILLED = 0x40;
+    // Set when the message id follows the text; older records get a new id on read
+    static final int FLAG_HAS_ID = 0x20;
+
+    private BinarySessionFormat() {
+    }
+
+    /**
+     * Writes {@code message} as it is in memory: a spilled message is
+     * written as its preview and blob id. Spilling large text is up to the
+     * caller (see {@link SessionStore}).
+     */
+    static void writeMessage(DataOutputStream out, ChatMessage message) throws IOException {
+        String blobId = message.getBlobId();
+        String text = message.getInlineText();
+
+        String role = message.getRole();
+        boolean spilled = text == null && blobId != null;
+        int flags = (spilled ? FLAG_SPILLED : 0) | (message.getId() != null ? FLAG_HAS_ID : 0);
+        if ("user".equals(role)) {
+            out.writeByte(ROLE_USER | flags);
+        } else if ("model".equals(role)) {
+            out.writeByte(ROLE_MODEL | flags);
+        } else {
+            out.writeByte(ROLE_OTHER | flags);
+            writeString(out, role);
+        }
+        out.writeLong(message.getTimestamp());
+        writeString(out, message.getTime());
+        if (spilled) {
+            writeString(out, BlobStore.preview(message.getPreview()));
+            writeString(out, blobId);
+        } else {
+            writeString(out, text);
+        }
+        if (message.getId() != null) {
+            writeString(out, message.getId());
+        }
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static int readVarint(ByteBuffer buffer) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException {
+        int length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("String length out of bounds: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads one message; a spilled message loads its text from {@code blobs}.
+     */
+    static ChatMessage readMessage(ByteBuffer message, BlobStore blobs) throws IOException {
+        byte flagged = message.get();
+        boolean spilled = (flagged & FLAG_SPILLED) != 0;
+        boolean hasId = (flagged & FLAG_HAS_ID) != 0;
+        int roleByte = flagged & ~(FLAG_SPILLED | FLAG_HAS_ID);
+        String role;
+        if (roleByte == ROLE_USER) {
+            role = "user";
+        } else if (roleByte == ROLE_MODEL) {
+            role = "model";
+        } else {
+            role = readString(message);
+        }
+        long timestamp = message.getLong();
+        String time = readString(message);
+        String text = readString(message);
+
+        ChatMessage result = spilled
+            ? ChatMessage.spilled(role, readString(message), text, time, blobs)
+            : new ChatMessage(role, text, time);
+        if (hasId) {
+            result.setId(readString(message));
+        }
+        result.setTimestamp(timestamp);
+        return result;
+    }
+}
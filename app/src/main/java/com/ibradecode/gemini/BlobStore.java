@@ -0,0 +1,204 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed storage for the text of large messages.
+ *
+ * Messages longer than {@link #SPILL_THRESHOLD_CHARS} are written here when
+ * their session is saved, and the session file keeps only the blob id and a
+ * short preview (see {@link ChatMessage#isSpilled()}). A blob is named after
+ * the SHA-256 of its text, so identical replies share one file and writing
+ * an existing blob is free. Blobs are deflated and, when the store has a
+ * cipher, sealed with the blob id as associated data.
+ *
+ * Blob file: flags(byte) [seal](deflate(utf8 text))
+ */
+public class BlobStore {
+    private static final String TAG = "BlobStore";
+
+    public static final int SPILL_THRESHOLD_CHARS = 4096;
+    public static final int PREVIEW_CHARS = 256;
+
+    private static final int FLAG_ENCRYPTED = 1;
+    // Created when a session is deleted; blobs are collected on the next startup
+    private static final String GARBAGE_MARKER = ".garbage";
+
+    private final File dir;
+    private final StorageCipher cipher;
+
+    public BlobStore(File dir, StorageCipher cipher) {
+        this.dir = dir;
+        this.cipher = cipher;
+    }
+
+    public static boolean shouldSpill(String text) {
+        return text != null && text.length() > SPILL_THRESHOLD_CHARS;
+    }
+
+    public static String preview(String text) {
+        return text.length() > PREVIEW_CHARS ? text.substring(0, PREVIEW_CHARS) : text;
+    }
+
+    /**
+     * Stores {@code text} durably and returns its id. Returns at once if the
+     * blob already exists.
+     */
+    public String put(String text) throws IOException {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        String id = hash(raw);
+        File file = getFile(id);
+        if (file.exists()) return id;
+
+        byte[] stored = deflate(raw);
+        int flags = 0;
+        if (cipher != null) {
+            stored = cipher.seal(stored, id, 0);
+            flags |= FLAG_ENCRYPTED;
+        }
+        byte[] data = new byte[1 + stored.length];
+        data[0] = (byte) flags;
+        System.arraycopy(stored, 0, data, 1, stored.length);
+        FileUtil.writeBytesAtomic(file, data);
+        return id;
+    }
+
+    public String get(String id) throws IOException {
+        byte[] data;
+        try (RandomAccessFile raf = new RandomAccessFile(getFile(id), "r")) {
+            data = new byte[(int) raf.length()];
+            raf.readFully(data);
+        }
+        if (data.length == 0) {
+            throw new IOException("Empty blob " + id);
+        }
+
+        byte[] stored = new byte[data.length - 1];
+        System.arraycopy(data, 1, stored, 0, stored.length);
+        if ((data[0] & FLAG_ENCRYPTED) != 0) {
+            if (cipher == null) {
+                throw new IOException("Blob " + id + " is encrypted");
+            }
+            stored = cipher.open(stored, id, 0);
+        }
+        return new String(inflate(stored), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Removes temp files of blob writes that crashed before their rename.
+     */
+    public void deleteStaleTempFiles() {
+        FileUtil.deleteStaleTempFiles(dir);
+    }
+
+    /**
+     * Notes that blobs may have become unreferenced.
+     */
+    public void markGarbage() {
+        File marker = new File(dir, GARBAGE_MARKER);
+        if (marker.exists()) return;
+        try {
+            dir.mkdirs();
+            marker.createNewFile();
+        } catch (IOException e) {
+            Log.w(TAG, "Error creating garbage marker", e);
+        }
+    }
+
+    public boolean hasGarbage() {
+        return new File(dir, GARBAGE_MARKER).exists();
+    }
+
+    /**
+     * Deletes every blob not in {@code referenced} and clears the garbage
+     * marker. Returns the number of blobs deleted.
+     */
+    public int retain(Set<String> referenced) {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(".") || name.endsWith(".tmp") || referenced.contains(name)) continue;
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        new File(dir, GARBAGE_MARKER).delete();
+        return deleted;
+    }
+
+    /**
+     * The id {@code text} has, or would have, in any store.
+     */
+    public static String idOf(String text) {
+        return hash(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File getFile(String id) {
+        return new File(dir, id);
+    }
+
+    private static String hash(byte[] raw) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(raw);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 3));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated blob");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
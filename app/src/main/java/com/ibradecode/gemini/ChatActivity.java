@@ -3,10 +3,8 @@ package com.ibradecode.gemini;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Intent;
-import android.graphics.Typeface;
 import android.os.Bundle;
 import android.text.method.LinkMovementMethod;
-import android.text.util.Linkify;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -21,36 +19,57 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import de.hdodenhof.circleimageview.CircleImageView;
 import io.noties.markwon.Markwon;
 
 public class ChatActivity extends AppCompatActivity {
     private static final String TAG = "ChatActivity";
+    private static final Object SCROLL_UPDATE = new Object();
+    // Rows from the top at which the previous page is requested
+    private static final int LOAD_OLDER_THRESHOLD = 10;
+    // Farther than this many rows the list jumps to the bottom instead of animating
+    private static final int MAX_SMOOTH_SCROLL_ROWS = 20;
     
     private ChatViewModel viewModel;
     private ChatAdapter chatAdapter;
-    private Markwon markwon;
+    private MarkdownRenderPipeline markdownPipeline;
+    private final FrameUpdateScheduler scrollScheduler = new FrameUpdateScheduler();
+    private final ExecutorService splitExecutor = Executors.newSingleThreadExecutor();
+    private final SyntaxHighlighter syntaxHighlighter = new SyntaxHighlighter();
+    // The reply that is still streaming in, or null
+    private StreamingReply streamingReply;
     
     // UI Components
     private RecyclerView recyclerView;
+    private LinearLayoutManager layoutManager;
     private EditText editText;
     private ImageView sendButton;
     private ProgressBar progressBar;
     private TextView titleText;
     private ImageView backButton;
+    private TextView contextToggle;
     
     private String chatId;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        FontInflaterFactory.install(this);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.chat);
         
@@ -70,9 +89,7 @@ public class ChatActivity extends AppCompatActivity {
         progressBar = findViewById(R.id.progressbar1);
         titleText = findViewById(R.id.textview1);
         backButton = findViewById(R.id.imageview2);
-        
-        // Apply custom font
-        applyCustomFont();
+        contextToggle = findViewById(R.id.context_toggle);
     }
     
     private void initializeViewModel() {
@@ -82,25 +99,70 @@ public class ChatActivity extends AppCompatActivity {
     private void initializeRecyclerView() {
         chatAdapter = new ChatAdapter();
         recyclerView.setAdapter(chatAdapter);
-        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        // A streaming reply changes every frame; cross-fading each change would flicker
+        RecyclerView.ItemAnimator animator = recyclerView.getItemAnimator();
+        if (animator instanceof SimpleItemAnimator) {
+            ((SimpleItemAnimator) animator).setSupportsChangeAnimations(false);
+        }
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                if (dy < 0) {
+                    maybeLoadOlderMessages();
+                }
+            }
+        });
+    }
+    
+    // Older pages are added above the current rows; the layout manager keeps the visible rows in place
+    private void maybeLoadOlderMessages() {
+        if (chatAdapter.getItemCount() > 0 && viewModel.hasOlderMessages()
+                && layoutManager.findFirstVisibleItemPosition() <= LOAD_OLDER_THRESHOLD) {
+            viewModel.loadOlderMessages();
+        }
+    }
+    
+    private void scrollToBottom() {
+        int last = chatAdapter.getItemCount() - 1;
+        if (last < 0) return;
+        if (last - layoutManager.findLastVisibleItemPosition() > MAX_SMOOTH_SCROLL_ROWS) {
+            recyclerView.scrollToPosition(last);
+        } else {
+            recyclerView.smoothScrollToPosition(last);
+        }
     }
     
     private void initializeMarkdown() {
-        markwon = Markwon.builder(this)
-                .usePlugin(io.noties.markwon.linkify.LinkifyPlugin.create())
-                .build();
+        Markwon markwon = ResourceCache.getInstance(this).getMarkwon();
+        markdownPipeline = new MarkdownRenderPipeline(markwon::toMarkdown, true);
     }
     
     private void setupClickListeners() {
         sendButton.setOnClickListener(v -> sendMessage());
         backButton.setOnClickListener(v -> onBackPressed());
         
+        updateContextToggle();
+        contextToggle.setOnClickListener(v -> {
+            boolean enabled = !viewModel.isRetrievalContextEnabled();
+            viewModel.setRetrievalContextEnabled(enabled);
+            updateContextToggle();
+            Toast.makeText(this, enabled
+                    ? "Long chats send recent and related messages"
+                    : "Every message is sent with each prompt", Toast.LENGTH_SHORT).show();
+        });
+        
         editText.setOnEditorActionListener((v, actionId, event) -> {
             sendMessage();
             return true;
         });
     }
     
+    private void updateContextToggle() {
+        contextToggle.setText(viewModel.isRetrievalContextEnabled() ? "FOCUS" : "FULL");
+    }
+    
     private void loadChatData() {
         chatId = getIntent().getStringExtra("id");
         if (chatId != null) {
@@ -112,10 +174,46 @@ public class ChatActivity extends AppCompatActivity {
     private void observeViewModel() {
         viewModel.getChatMessages().observe(this, messages -> {
             if (messages != null) {
-                chatAdapter.updateMessages(messages);
-                if (!messages.isEmpty()) {
-                    recyclerView.smoothScrollToPosition(messages.size() - 1);
-                }
+                // Pages of older messages are prepended; only a new last message scrolls the list
+                String lastId = messages.isEmpty() ? null : messages.get(messages.size() - 1).getId();
+                boolean opened = chatAdapter.getMessageCount() == 0;
+                // A finished reply was already on screen while it streamed in
+                boolean added = !opened && !Objects.equals(lastId, chatAdapter.getLastMessageId())
+                        && !chatAdapter.isShowingReply(lastId);
+                boolean atBottom = !recyclerView.canScrollVertically(1);
+                chatAdapter.updateMessages(messages, () -> {
+                    if (messages.isEmpty()) return;
+                    if (opened) {
+                        recyclerView.scrollToPosition(chatAdapter.getItemCount() - 1);
+                    } else if (added) {
+                        scrollScheduler.post(SCROLL_UPDATE, this::scrollToBottom);
+                    } else if (atBottom) {
+                        scrollScheduler.post(SCROLL_UPDATE, () -> recyclerView.scrollBy(0, recyclerView.getHeight()));
+                    }
+                    // The page may not fill the screen
+                    recyclerView.post(this::maybeLoadOlderMessages);
+                });
+            }
+        });
+        
+        viewModel.getStreamingReply().observe(this, reply -> {
+            StreamingReply previous = streamingReply;
+            streamingReply = reply;
+            if (reply != null) {
+                boolean started = reply != previous;
+                boolean atBottom = !recyclerView.canScrollVertically(1);
+                chatAdapter.updateReply(reply, () -> {
+                    if (started) {
+                        scrollScheduler.post(SCROLL_UPDATE, this::scrollToBottom);
+                    } else if (atBottom) {
+                        // The reply grew; keep its end in view unless the user scrolled up
+                        scrollScheduler.post(SCROLL_UPDATE, () -> recyclerView.scrollBy(0, recyclerView.getHeight()));
+                    }
+                });
+            }
+            if (previous != null && previous != reply) {
+                // Replace the incremental rendering with a full one
+                chatAdapter.notifyMessageChanged(previous.getId());
             }
         });
         
@@ -154,26 +252,15 @@ public class ChatActivity extends AppCompatActivity {
                 .show();
     }
     
-    private void applyCustomFont() {
-        try {
-            Typeface customFont = Typeface.createFromAsset(getAssets(), "fonts/googlesans.ttf");
-            applyFontToViewGroup((ViewGroup) findViewById(android.R.id.content), customFont);
-        } catch (Exception e) {
-            Log.w(TAG, "Could not apply custom font", e);
-        }
-    }
-    
-    private void applyFontToViewGroup(ViewGroup viewGroup, Typeface typeface) {
-        for (int i = 0; i < viewGroup.getChildCount(); i++) {
-            View child = viewGroup.getChildAt(i);
-            if (child instanceof ViewGroup) {
-                applyFontToViewGroup((ViewGroup) child, typeface);
-            } else if (child instanceof TextView) {
-                ((TextView) child).setTypeface(typeface);
-            } else if (child instanceof EditText) {
-                ((EditText) child).setTypeface(typeface);
-            }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (markdownPipeline != null) {
+            markdownPipeline.release();
         }
+        scrollScheduler.release();
+        syntaxHighlighter.release();
+        splitExecutor.shutdown();
     }
     
     @Override
@@ -183,50 +270,166 @@ public class ChatActivity extends AppCompatActivity {
         finish();
     }
     
-    // RecyclerView Adapter
+    private static final DiffUtil.ItemCallback<ChatItem> ITEM_DIFF = new DiffUtil.ItemCallback<ChatItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatItem oldItem, @NonNull ChatItem newItem) {
+            return oldItem.isSameItem(newItem);
+        }
+        
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatItem oldItem, @NonNull ChatItem newItem) {
+            return oldItem.hasSameContents(newItem);
+        }
+    };
+    
+    // RecyclerView Adapter; messages are split into segment rows and diffed off the main thread,
+    // so only changed segments are rebound. A streaming reply's rows follow the messages' rows.
     private class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
-        private static final int VIEW_TYPE_USER = 1;
-        private static final int VIEW_TYPE_AI = 2;
+        private final AsyncListDiffer<ChatItem> differ = new AsyncListDiffer<>(this, ITEM_DIFF);
+        private int submitted;
+        private int messageCount;
+        private String lastMessageId;
+        private List<ChatItem> messageItems = Collections.emptyList();
+        // Rows of the streaming reply; kept after it finishes until the list holds the message
+        private List<ChatItem> replyRows;
+        private Runnable replyCommitted;
+        // Split thread only
+        private final ChatItem.StreamSplitter replySplitter = new ChatItem.StreamSplitter();
+        private final AtomicBoolean replySplitQueued = new AtomicBoolean();
+        
+        ChatAdapter() {
+            setHasStableIds(true);
+        }
+        
+        /**
+         * {@code onCommitted} runs once the new list is displayed.
+         */
+        public void updateMessages(List<ChatMessage> newMessages, Runnable onCommitted) {
+            int generation = ++submitted;
+            splitExecutor.execute(() -> {
+                List<ChatItem> items = ChatItem.fromMessages(newMessages);
+                runOnUiThread(() -> {
+                    // A newer list is already on its way
+                    if (generation != submitted) return;
+                    messageCount = newMessages.size();
+                    lastMessageId = newMessages.isEmpty() ? null : newMessages.get(messageCount - 1).getId();
+                    messageItems = items;
+                    if (streamingReply == null) {
+                        replyRows = null;
+                    }
+                    submit(onCommitted);
+                });
+            });
+        }
+        
+        /**
+         * Splits the new text of the streaming reply. Updates that arrive
+         * before a queued split starts are folded into it; {@code onCommitted}
+         * runs once the latest rows are displayed.
+         */
+        public void updateReply(StreamingReply reply, Runnable onCommitted) {
+            replyCommitted = onCommitted;
+            if (!replySplitQueued.compareAndSet(false, true)) return;
+            splitExecutor.execute(() -> {
+                replySplitQueued.set(false);
+                List<ChatItem> rows = replySplitter.split(reply);
+                runOnUiThread(() -> {
+                    if (reply != streamingReply) return;
+                    replyRows = rows;
+                    Runnable committed = replyCommitted;
+                    replyCommitted = null;
+                    submit(committed);
+                });
+            });
+        }
+        
+        public boolean isShowingReply(String messageId) {
+            return replyRows != null && replyRows.get(0).message.getId().equals(messageId);
+        }
         
-        private List<ChatMessage> messages = new ArrayList<>();
+        private void submit(Runnable onCommitted) {
+            List<ChatItem> items = messageItems;
+            // Once the finished reply is in the list its message rows replace these
+            if (replyRows != null && !isShowingReply(lastMessageId)) {
+                items = new ArrayList<>(messageItems.size() + replyRows.size());
+                items.addAll(messageItems);
+                items.addAll(replyRows);
+            }
+            differ.submitList(items, onCommitted);
+        }
+        
+        public int getMessageCount() {
+            return messageCount;
+        }
         
-        public void updateMessages(List<ChatMessage> newMessages) {
-            this.messages = new ArrayList<>(newMessages);
-            notifyDataSetChanged();
+        public String getLastMessageId() {
+            return lastMessageId;
+        }
+        
+        public void notifyMessageChanged(String messageId) {
+            List<ChatItem> items = differ.getCurrentList();
+            for (int i = items.size() - 1; i >= 0; i--) {
+                ChatItem item = items.get(i);
+                if (item.type == ChatItem.TYPE_AI_PROSE && item.message.getId().equals(messageId)) {
+                    notifyItemChanged(i);
+                }
+            }
+        }
+        
+        ChatItem getItem(int position) {
+            return differ.getCurrentList().get(position);
+        }
+        
+        @Override
+        public long getItemId(int position) {
+            return getItem(position).getStableId();
         }
         
         @Override
         public int getItemViewType(int position) {
-            return messages.get(position).isFromUser() ? VIEW_TYPE_USER : VIEW_TYPE_AI;
+            return getItem(position).type;
         }
         
         @NonNull
         @Override
         public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
             LayoutInflater inflater = LayoutInflater.from(parent.getContext());
-            View view = inflater.inflate(R.layout.cht, parent, false);
-            
-            if (viewType == VIEW_TYPE_USER) {
-                return new UserMessageViewHolder(view);
-            } else {
-                return new AiMessageViewHolder(view);
+            switch (viewType) {
+                case ChatItem.TYPE_AI_HEADER:
+                    return new AiHeaderViewHolder(inflater.inflate(R.layout.cht_ai_header, parent, false));
+                case ChatItem.TYPE_AI_PROSE:
+                    return new AiProseViewHolder(inflater.inflate(R.layout.cht_ai_prose, parent, false));
+                case ChatItem.TYPE_AI_CODE:
+                    return new AiCodeViewHolder(inflater.inflate(R.layout.cht_ai_code, parent, false));
+                case ChatItem.TYPE_AI_TABLE:
+                    return new AiTableViewHolder(inflater.inflate(R.layout.cht_ai_table, parent, false));
+                case ChatItem.TYPE_AI_FOOTER:
+                    return new AiFooterViewHolder(inflater.inflate(R.layout.cht_ai_footer, parent, false));
+                default:
+                    return new UserMessageViewHolder(inflater.inflate(R.layout.cht, parent, false));
             }
         }
         
         @Override
         public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-            ChatMessage message = messages.get(position);
+            ChatItem item = getItem(position);
             
             if (holder instanceof UserMessageViewHolder) {
-                ((UserMessageViewHolder) holder).bind(message);
-            } else if (holder instanceof AiMessageViewHolder) {
-                ((AiMessageViewHolder) holder).bind(message);
+                ((UserMessageViewHolder) holder).bind(item);
+            } else if (holder instanceof AiProseViewHolder) {
+                ((AiProseViewHolder) holder).bind(item);
+            } else if (holder instanceof AiCodeViewHolder) {
+                ((AiCodeViewHolder) holder).bind(item);
+            } else if (holder instanceof AiTableViewHolder) {
+                ((AiTableViewHolder) holder).bind(item);
+            } else if (holder instanceof AiFooterViewHolder) {
+                ((AiFooterViewHolder) holder).bind(item);
             }
         }
         
         @Override
         public int getItemCount() {
-            return messages.size();
+            return differ.getCurrentList().size();
         }
     }
     
@@ -245,79 +448,113 @@ public class ChatActivity extends AppCompatActivity {
             userTime = itemView.findViewById(R.id.you_message_time);
         }
         
-        public void bind(ChatMessage message) {
+        public void bind(ChatItem item) {
             userBase.setVisibility(View.VISIBLE);
             itemView.findViewById(R.id.ia_base).setVisibility(View.GONE);
             
             userName.setText("You");
-            userMessage.setText(message.getText());
-            userTime.setText(message.getTime());
+            // Loaded with the rest of the list off the main thread
+            userMessage.setText(item.content);
+            userTime.setText(item.message.getTime());
             
             userMessage.setTextIsSelectable(true);
-            
-            // Apply font
-            try {
-                Typeface font = Typeface.createFromAsset(itemView.getContext().getAssets(), "fonts/googlesans.ttf");
-                userName.setTypeface(font);
-                userMessage.setTypeface(font);
-                userTime.setTypeface(font);
-            } catch (Exception e) {
-                Log.w(TAG, "Could not apply font to user message", e);
-            }
         }
     }
     
-    // ViewHolder for AI messages
-    private class AiMessageViewHolder extends RecyclerView.ViewHolder {
-        private LinearLayout aiBase;
-        private CircleImageView aiProfile;
-        private TextView aiName;
-        private TextView aiMessage;
+    // ViewHolders for the parts of AI messages; listeners are set once per view
+    private class AiHeaderViewHolder extends RecyclerView.ViewHolder {
+        
+        public AiHeaderViewHolder(@NonNull View itemView) {
+            super(itemView);
+        }
+    }
+    
+    private class AiProseViewHolder extends RecyclerView.ViewHolder {
+        private TextView segmentText;
+        
+        public AiProseViewHolder(@NonNull View itemView) {
+            super(itemView);
+            segmentText = itemView.findViewById(R.id.ia_segment_text);
+            segmentText.setMovementMethod(LinkMovementMethod.getInstance());
+        }
+        
+        public void bind(ChatItem item) {
+            // Markdown is parsed in the background; the text layout is measured with the inflated font
+            boolean streaming = streamingReply != null && item.message.getId().equals(streamingReply.getId());
+            markdownPipeline.bindText(segmentText, item.getKey(), item.content, streaming);
+        }
+    }
+    
+    private class AiCodeViewHolder extends RecyclerView.ViewHolder {
+        private TextView codeText;
+        
+        public AiCodeViewHolder(@NonNull View itemView) {
+            super(itemView);
+            codeText = itemView.findViewById(R.id.ia_code_text);
+        }
+        
+        public void bind(ChatItem item) {
+            syntaxHighlighter.bind(codeText, item.content, item.language);
+        }
+    }
+    
+    private class AiTableViewHolder extends RecyclerView.ViewHolder {
+        private MarkdownTableView table;
+        
+        public AiTableViewHolder(@NonNull View itemView) {
+            super(itemView);
+            table = itemView.findViewById(R.id.ia_table);
+            // Not a text view, so the inflater factory does not set its font
+            table.setTypeface(ResourceCache.getInstance(itemView.getContext()).getTypeface());
+        }
+        
+        public void bind(ChatItem item) {
+            table.setRows(item.tableRows);
+        }
+    }
+    
+    private class AiFooterViewHolder extends RecyclerView.ViewHolder {
         private TextView aiTime;
         private ImageView copyButton;
         
-        public AiMessageViewHolder(@NonNull View itemView) {
+        public AiFooterViewHolder(@NonNull View itemView) {
             super(itemView);
-            aiBase = itemView.findViewById(R.id.ia_base);
-            aiProfile = itemView.findViewById(R.id.ia_perfil);
-            aiName = itemView.findViewById(R.id.ia_name_text);
-            aiMessage = itemView.findViewById(R.id.ia_message_time); // This seems to be the message text in the layout
             aiTime = itemView.findViewById(R.id.ia_message_time);
             copyButton = itemView.findViewById(R.id.imageview1);
+            
+            // Looks the message up on click; a footer is not rebound while its reply streams in
+            copyButton.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) return;
+                ChatMessage message = chatAdapter.getItem(position).message;
+                StreamingReply reply = streamingReply;
+                copyMessage(message, reply != null && reply.getId().equals(message.getId()) ? reply : null);
+            });
         }
         
-        public void bind(ChatMessage message) {
-            aiBase.setVisibility(View.VISIBLE);
-            itemView.findViewById(R.id.you_base).setVisibility(View.GONE);
-            
-            aiName.setText("Gemini");
-            
-            // Use Markwon to render markdown
-            markwon.setMarkdown(aiMessage, message.getText());
-            aiMessage.setMovementMethod(LinkMovementMethod.getInstance());
-            Linkify.addLinks(aiMessage, Linkify.ALL);
-            
-            aiTime.setText(message.getTime());
-            
-            // Set up copy functionality
-            if (copyButton != null) {
-                copyButton.setOnClickListener(v -> {
-                    ClipboardManager clipboard = (ClipboardManager) itemView.getContext().getSystemService(CLIPBOARD_SERVICE);
-                    ClipData clip = ClipData.newPlainText("AI Response", message.getText());
+        // Spilled text is read off the main thread; a streaming reply has its text only in {@code reply}
+        private void copyMessage(ChatMessage message, StreamingReply reply) {
+            splitExecutor.execute(() -> {
+                String text;
+                try {
+                    text = reply != null ? reply.substring(0) : message.loadText();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error loading message " + message.getId(), e);
+                    runOnUiThread(() -> Toast.makeText(ChatActivity.this, "Could not copy message",
+                        Toast.LENGTH_SHORT).show());
+                    return;
+                }
+                runOnUiThread(() -> {
+                    ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+                    ClipData clip = ClipData.newPlainText("AI Response", text);
                     clipboard.setPrimaryClip(clip);
-                    Toast.makeText(itemView.getContext(), "Copied to clipboard", Toast.LENGTH_SHORT).show();
+                    Toast.makeText(ChatActivity.this, "Copied to clipboard", Toast.LENGTH_SHORT).show();
                 });
-            }
-            
-            // Apply font
-            try {
-                Typeface font = Typeface.createFromAsset(itemView.getContext().getAssets(), "fonts/googlesans.ttf");
-                aiName.setTypeface(font);
-                aiMessage.setTypeface(font);
-                aiTime.setTypeface(font);
-            } catch (Exception e) {
-                Log.w(TAG, "Could not apply font to AI message", e);
-            }
+            });
+        }
+        
+        public void bind(ChatItem item) {
+            aiTime.setText(item.message.getTime());
         }
     }
 }
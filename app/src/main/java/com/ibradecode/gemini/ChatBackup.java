@@ -0,0 +1,459 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming export and import of the whole chat history.
+ *
+ * A backup is one JSON document:
+ * <pre>
+ * {"version":1, "exportedAt":..., "sessionCount":N, "sessions":[session, ...]}
+ * </pre>
+ * where each session has the fields of {@link ChatSession#toMap()}. A plain
+ * array of sessions, as stored by older versions, can be imported too.
+ *
+ * Sessions are written and read one at a time, so memory use is bounded by
+ * the largest session rather than the history. Both directions record a
+ * checkpoint next to the backup file every few sessions and resume from it
+ * after an interruption. Import merges messages into existing sessions,
+ * skipping messages already present (same timestamp, role and text), so
+ * importing the same backup twice writes nothing.
+ *
+ * Runs on the calling thread; callers use a background thread.
+ */
+public class ChatBackup {
+    private static final String TAG = "ChatBackup";
+
+    static final int FORMAT_VERSION = 1;
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int CHECKPOINT_INTERVAL = 16;
+
+    public interface ProgressListener {
+        /**
+         * Called after each session; {@code total} is -1 while unknown.
+         */
+        void onProgress(int done, int total);
+    }
+
+    public interface SessionSource {
+        /**
+         * Returns the fully loaded session, or null to skip it.
+         */
+        ChatSession load(String sessionId);
+    }
+
+    public interface SessionSink {
+        /**
+         * Returns the stored session with this id, or null if there is none.
+         */
+        ChatSession loadExisting(String sessionId);
+
+        void write(ChatSession session, boolean created) throws IOException;
+    }
+
+    public static class Result {
+        public int sessionsCreated;
+        public int sessionsUpdated;
+        public int sessionsUnchanged;
+        public int messagesAdded;
+        public int sessionsExported;
+
+        @Override
+        public String toString() {
+            return "Result{created=" + sessionsCreated + ", updated=" + sessionsUpdated
+                + ", unchanged=" + sessionsUnchanged + ", messagesAdded=" + messagesAdded
+                + ", exported=" + sessionsExported + "}";
+        }
+    }
+
+    private final Gson gson = new Gson();
+
+    // Export
+
+    /**
+     * Writes the given sessions to {@code target}. The file only appears once
+     * the export is complete; an interrupted export into the same target
+     * continues where it stopped.
+     */
+    public Result export(List<String> sessionIds, SessionSource source, File target,
+                         ProgressListener listener) throws IOException {
+        File part = new File(target.getPath() + PART_SUFFIX);
+        File checkpointFile = new File(target.getPath() + CHECKPOINT_SUFFIX);
+        FileUtil.deleteStaleTempFile(checkpointFile);
+
+        Map<String, Object> checkpoint = readCheckpoint(checkpointFile);
+        List<String> ids;
+        int done;
+        int written;
+        long offset;
+        if (checkpoint != null && checkpoint.get("ids") instanceof List && part.exists()
+                && part.length() >= getLong(checkpoint, "offset")) {
+            ids = toStringList((List<?>) checkpoint.get("ids"));
+            done = (int) getLong(checkpoint, "done");
+            written = (int) getLong(checkpoint, "written");
+            offset = getLong(checkpoint, "offset");
+            Log.i(TAG, "Resuming export at session " + done + " of " + ids.size());
+        } else {
+            ids = new ArrayList<>(sessionIds);
+            done = 0;
+            written = 0;
+            offset = 0;
+        }
+
+        Result result = new Result();
+        FileOutputStream fos = new FileOutputStream(part, offset > 0);
+        try {
+            FileChannel channel = fos.getChannel();
+            channel.truncate(offset);
+            channel.position(offset);
+            Writer out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+
+            if (offset == 0) {
+                JsonWriter header = new JsonWriter(out);
+                header.beginObject();
+                header.name("version").value(FORMAT_VERSION);
+                header.name("exportedAt").value(System.currentTimeMillis());
+                header.name("sessionCount").value(ids.size());
+                header.name("sessions");
+                header.beginArray();
+                // Left open; sessions are appended below with their own writers
+                header.flush();
+            }
+
+            while (done < ids.size()) {
+                ChatSession session = source.load(ids.get(done));
+                if (session != null) {
+                    if (written > 0) {
+                        out.write(',');
+                    }
+                    JsonWriter json = new JsonWriter(out);
+                    writeSession(json, session);
+                    json.flush();
+                    written++;
+                }
+                done++;
+
+                if (done % CHECKPOINT_INTERVAL == 0 && done < ids.size()) {
+                    out.flush();
+                    fos.getFD().sync();
+                    writeExportCheckpoint(checkpointFile, ids, done, written, channel.position());
+                }
+                listener.onProgress(done, ids.size());
+            }
+
+            out.write("]}");
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        FileUtil.commitTempFile(part, target);
+        checkpointFile.delete();
+        result.sessionsExported = written;
+        return result;
+    }
+
+    private void writeSession(JsonWriter json, ChatSession session) throws IOException {
+        json.beginObject();
+        json.name("id").value(session.getId());
+        json.name("lastMessageTime").value(session.getLastMessageTime());
+        json.name("timestamp").value(session.getTimestamp());
+        json.name("messages");
+        json.beginArray();
+        for (ChatMessage message : session.getMessages()) {
+            json.beginObject();
+            json.name("id").value(message.getId());
+            json.name("role").value(message.getRole());
+            json.name("text").value(message.loadText());
+            json.name("time").value(message.getTime());
+            json.name("timestamp").value(message.getTimestamp());
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private void writeExportCheckpoint(File file, List<String> ids, int done, int written, long offset)
+            throws IOException {
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put("ids", ids);
+        checkpoint.put("done", done);
+        checkpoint.put("written", written);
+        checkpoint.put("offset", offset);
+        FileUtil.writeBytesAtomic(file, gson.toJson(checkpoint).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Import
+
+    /**
+     * Merges the sessions of a backup into the sink. Re-running an
+     * interrupted import of the same file skips the sessions already done.
+     */
+    public Result importFrom(File backup, SessionSink sink, ProgressListener listener) throws IOException {
+        File checkpointFile = new File(backup.getPath() + CHECKPOINT_SUFFIX);
+        FileUtil.deleteStaleTempFile(checkpointFile);
+
+        int resumeFrom = 0;
+        Map<String, Object> checkpoint = readCheckpoint(checkpointFile);
+        if (checkpoint != null && getLong(checkpoint, "length") == backup.length()
+                && getLong(checkpoint, "modified") == backup.lastModified()) {
+            resumeFrom = (int) getLong(checkpoint, "done");
+            Log.i(TAG, "Resuming import at session " + resumeFrom);
+        }
+
+        Result result = new Result();
+        JsonReader reader = new JsonReader(new BufferedReader(
+            new InputStreamReader(new FileInputStream(backup), StandardCharsets.UTF_8)));
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Legacy backup: the old chat_sessions.json
+                importSessions(reader, -1, resumeFrom, backup, checkpointFile, sink, listener, result);
+            } else {
+                int total = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("version".equals(name)) {
+                        int version = reader.nextInt();
+                        if (version > FORMAT_VERSION) {
+                            throw new IOException("Unsupported backup version: " + version);
+                        }
+                    } else if ("sessionCount".equals(name)) {
+                        total = reader.nextInt();
+                    } else if ("sessions".equals(name)) {
+                        importSessions(reader, total, resumeFrom, backup, checkpointFile, sink, listener, result);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed backup file", e);
+        } finally {
+            reader.close();
+        }
+
+        checkpointFile.delete();
+        return result;
+    }
+
+    private void importSessions(JsonReader reader, int total, int resumeFrom, File backup, File checkpointFile,
+                                SessionSink sink, ProgressListener listener, Result result) throws IOException {
+        int index = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (index < resumeFrom) {
+                reader.skipValue();
+            } else {
+                ChatSession imported = readSession(reader);
+                if (imported != null) {
+                    merge(imported, sink, result);
+                }
+            }
+            index++;
+
+            if (index > resumeFrom && index % CHECKPOINT_INTERVAL == 0) {
+                Map<String, Object> checkpoint = new HashMap<>();
+                checkpoint.put("length", backup.length());
+                checkpoint.put("modified", backup.lastModified());
+                checkpoint.put("done", index);
+                FileUtil.writeBytesAtomic(checkpointFile, gson.toJson(checkpoint).getBytes(StandardCharsets.UTF_8));
+            }
+            listener.onProgress(index, total);
+        }
+        reader.endArray();
+    }
+
+    private ChatSession readSession(JsonReader reader) throws IOException {
+        String id = null;
+        String lastMessageTime = "";
+        long timestamp = 0;
+        List<ChatMessage> messages = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("id".equals(name)) {
+                id = reader.nextString();
+            } else if ("lastMessageTime".equals(name)) {
+                lastMessageTime = reader.nextString();
+            } else if ("timestamp".equals(name)) {
+                timestamp = (long) reader.nextDouble();
+            } else if ("messages".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ChatMessage message = readMessage(reader);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id == null) return null;
+        ChatSession session = new ChatSession(id, lastMessageTime);
+        if (timestamp > 0) {
+            session.setTimestamp(timestamp);
+        }
+        session.setMessages(messages);
+        return session;
+    }
+
+    private ChatMessage readMessage(JsonReader reader) throws IOException {
+        String id = null;
+        String role = null;
+        String text = null;
+        String time = "";
+        long timestamp = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("id".equals(name)) {
+                id = reader.nextString();
+            } else if ("role".equals(name)) {
+                role = reader.nextString();
+            } else if ("text".equals(name)) {
+                text = reader.nextString();
+            } else if ("time".equals(name)) {
+                time = reader.nextString();
+            } else if ("timestamp".equals(name)) {
+                timestamp = (long) reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (role == null || text == null) return null;
+        ChatMessage message = new ChatMessage(role, text, time);
+        if (id != null) {
+            message.setId(id);
+        }
+        if (timestamp > 0) {
+            message.setTimestamp(timestamp);
+        }
+        return message;
+    }
+
+    private void merge(ChatSession imported, SessionSink sink, Result result) throws IOException {
+        ChatSession existing = sink.loadExisting(imported.getId());
+        if (existing == null) {
+            sink.write(imported, true);
+            result.sessionsCreated++;
+            result.messagesAdded += imported.getMessages().size();
+            return;
+        }
+
+        int before = existing.getMessages().size();
+        ChatSession merged = mergeSessions(existing, imported);
+        if (merged == null) {
+            result.sessionsUnchanged++;
+            return;
+        }
+        sink.write(merged, false);
+        result.sessionsUpdated++;
+        result.messagesAdded += merged.getMessages().size() - before;
+    }
+
+    /**
+     * Adds the messages of {@code incoming} that {@code existing} lacks, in
+     * timestamp order, and returns the updated {@code existing}; returns null
+     * if there was nothing new.
+     */
+    static ChatSession mergeSessions(ChatSession existing, ChatSession incoming) throws IOException {
+        Set<String> known = new HashSet<>();
+        for (ChatMessage message : existing.getMessages()) {
+            known.add(messageKey(message));
+        }
+        List<ChatMessage> added = new ArrayList<>();
+        for (ChatMessage message : incoming.getMessages()) {
+            if (known.add(messageKey(message))) {
+                added.add(message);
+            }
+        }
+        if (added.isEmpty()) return null;
+
+        List<ChatMessage> merged = new ArrayList<>(existing.getMessages());
+        merged.addAll(added);
+        // Stable, so messages with equal timestamps keep their order
+        Collections.sort(merged, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+
+        existing.setMessages(merged);
+        existing.setTimestamp(Math.min(existing.getTimestamp(), incoming.getTimestamp()));
+        if (added.contains(merged.get(merged.size() - 1))) {
+            existing.setLastMessageTime(incoming.getLastMessageTime());
+        }
+        return existing;
+    }
+
+    /**
+     * Identity of a message for de-duplication across devices and backups.
+     */
+    static String messageKey(ChatMessage message) throws IOException {
+        String text = message.loadText();
+        return message.getTimestamp() + ":" + message.getRole() + ":" + (text != null ? text.hashCode() : 0);
+    }
+
+    // Checkpoints
+
+    private Map<String, Object> readCheckpoint(File file) {
+        if (!file.exists()) return null;
+        try {
+            return gson.fromJson(FileUtil.readFile(file.getPath()),
+                new TypeToken<Map<String, Object>>(){}.getType());
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring unreadable checkpoint " + file, e);
+            return null;
+        }
+    }
+
+    private static long getLong(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static List<String> toStringList(List<?> values) {
+        List<String> strings = new ArrayList<>(values.size());
+        for (Object value : values) {
+            strings.add(String.valueOf(value));
+        }
+        return strings;
+    }
+}
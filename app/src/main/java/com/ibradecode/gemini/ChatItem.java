@@ -0,0 +1,284 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One row of the chat list.
+ *
+ * A user message is a single row. An AI message is split into a header, a
+ * row per prose, code or table segment, and a footer, so a long reply is
+ * measured, laid out and recycled a segment at a time instead of as one
+ * huge text view. Rows carry the full text of their message or segment,
+ * which may have to be read from the {@link BlobStore}, so
+ * {@link #fromMessages(List)} is meant for a background thread and binding a
+ * row never does I/O. The segments of a message are cached by its id and
+ * text, about a million characters of it in all. A reply that
+ * is still streaming in is split by a {@link StreamSplitter} instead.
+ */
+public final class ChatItem {
+    private static final String TAG = "ChatItem";
+
+    public static final int TYPE_USER = 1;
+    public static final int TYPE_AI_HEADER = 2;
+    public static final int TYPE_AI_PROSE = 3;
+    public static final int TYPE_AI_CODE = 4;
+    public static final int TYPE_AI_TABLE = 5;
+    public static final int TYPE_AI_FOOTER = 6;
+
+    private static final int MAX_CACHE_CHARS = 1024 * 1024;
+
+    // Segments by message id; an entry is used only while its source matches the message
+    private static final LruCache<String, Split> cache = new LruCache<String, Split>(MAX_CACHE_CHARS) {
+        @Override
+        protected int sizeOf(String key, Split value) {
+            return value.chars + 64;
+        }
+    };
+
+    private static final class Split {
+        // Blob id of a spilled message, else its inline text; compared by reference first
+        final String source;
+        final boolean spilled;
+        final List<ChatItem> items;
+        final int chars;
+
+        Split(String source, boolean spilled, List<ChatItem> items) {
+            this.source = source;
+            this.spilled = spilled;
+            this.items = items;
+            // The inline text is held here too, besides its segments
+            int total = spilled ? 0 : source.length();
+            for (ChatItem item : items) {
+                if (item.content != null) total += item.content.length();
+            }
+            this.chars = total;
+        }
+    }
+
+    public final int type;
+    public final ChatMessage message;
+    // Position among the message's segments; 0 for whole-message rows
+    public final int index;
+    // Segment text, or the whole text of a user row; null for header and footer rows
+    public final String content;
+    // Parsed cells of a table segment
+    public final List<CharSequence[]> tableRows;
+    // Fence language of a code segment, lowercase; null if untagged
+    public final String language;
+
+    private ChatItem(int type, ChatMessage message, int index, String content, List<CharSequence[]> tableRows) {
+        this(type, message, index, content, tableRows, null);
+    }
+
+    private ChatItem(int type, ChatMessage message, int index, String content, List<CharSequence[]> tableRows,
+                     String language) {
+        this.type = type;
+        this.message = message;
+        this.index = index;
+        this.content = content;
+        this.tableRows = tableRows;
+        this.language = language;
+    }
+
+    /**
+     * Splits a reply that is still streaming in. Rows up to the end of its
+     * last closed code fence cannot change any more, so they are kept, and
+     * each update only reads and splits the text after them. Use one per
+     * list, on one thread.
+     */
+    public static final class StreamSplitter {
+        private String replyId;
+        // Header and segment rows of the text before stableLength
+        private final List<ChatItem> stableRows = new ArrayList<>();
+        private int stableLength;
+
+        /**
+         * Returns the rows of {@code reply} as far as it has arrived.
+         */
+        public List<ChatItem> split(StreamingReply reply) {
+            ChatMessage message = reply.getHeader();
+            if (!reply.getId().equals(replyId)) {
+                replyId = reply.getId();
+                stableRows.clear();
+                stableRows.add(new ChatItem(TYPE_AI_HEADER, message, 0, null, null));
+                stableLength = 0;
+            }
+
+            String tail = reply.substring(stableLength);
+            int closed = MarkdownRenderer.closedPrefixLength(tail);
+            if (closed > 0) {
+                addSegments(message, tail.substring(0, closed), stableRows);
+                stableLength += closed;
+                tail = tail.substring(closed);
+            }
+
+            List<ChatItem> items = new ArrayList<>(stableRows.size() + 4);
+            items.addAll(stableRows);
+            addSegments(message, tail, items);
+            items.add(new ChatItem(TYPE_AI_FOOTER, message, 0, null, null));
+            return items;
+        }
+    }
+
+    /**
+     * Flattens {@code messages} into rows. May perform disk I/O.
+     */
+    public static List<ChatItem> fromMessages(List<ChatMessage> messages) {
+        List<ChatItem> items = new ArrayList<>(messages.size() * 3);
+        for (ChatMessage message : messages) {
+            if (message.isFromUser()) {
+                items.add(new ChatItem(TYPE_USER, message, 0, loadUserText(message), null));
+            } else {
+                items.addAll(split(message));
+            }
+        }
+        return items;
+    }
+
+    private static List<ChatItem> split(ChatMessage message) {
+        String source = cacheSource(message);
+        Split cached = cache.get(message.getId());
+        if (cached != null && source != null && cached.spilled == message.isSpilled()
+                && (cached.source == source || cached.source.equals(source))) {
+            return cached.items;
+        }
+
+        List<ChatItem> items = new ArrayList<>();
+        items.add(new ChatItem(TYPE_AI_HEADER, message, 0, null, null));
+        String text;
+        boolean cacheable = true;
+        try {
+            text = message.loadText();
+        } catch (IOException e) {
+            // Shown, but not cached, so the next update tries the blob again
+            Log.e(TAG, "Error loading message " + message.getId(), e);
+            text = message.getPreview();
+            cacheable = false;
+        }
+        if (text != null) {
+            addSegments(message, text, items);
+        }
+        items.add(new ChatItem(TYPE_AI_FOOTER, message, 0, null, null));
+
+        items = Collections.unmodifiableList(items);
+        if (cacheable && source != null) {
+            cache.put(message.getId(), new Split(source, message.isSpilled(), items));
+        }
+        return items;
+    }
+
+    private static void addSegments(ChatMessage message, String text, List<ChatItem> items) {
+        for (MarkdownSegment segment : MarkdownRenderer.segmentMarkdown(text)) {
+            if (segment.isCode) {
+                items.add(new ChatItem(TYPE_AI_CODE, message, items.size(), segment.content, null,
+                    segment.language));
+            } else {
+                splitTables(message, segment.content, items);
+            }
+        }
+    }
+
+    // Display only: the preview shown for an unreadable blob is never written back
+    private static String loadUserText(ChatMessage message) {
+        try {
+            return message.loadText();
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading message " + message.getId(), e);
+            return message.getPreview();
+        }
+    }
+
+    // Separates pipe tables from the prose around them
+    private static void splitTables(ChatMessage message, String prose, List<ChatItem> items) {
+        StringBuilder text = new StringBuilder();
+        StringBuilder table = new StringBuilder();
+        for (String line : prose.split("\n", -1)) {
+            if (line.trim().startsWith("|")) {
+                table.append(line).append('\n');
+                continue;
+            }
+            if (table.length() > 0) {
+                flushTable(message, table, text, items);
+            }
+            text.append(line).append('\n');
+        }
+        if (table.length() > 0) {
+            flushTable(message, table, text, items);
+        }
+        addProse(message, text, items);
+    }
+
+    private static void flushTable(ChatMessage message, StringBuilder table, StringBuilder text, List<ChatItem> items) {
+        MarkdownSegment segment = new MarkdownSegment(false, table.toString());
+        if (segment.isTableLike()) {
+            addProse(message, text, items);
+            items.add(new ChatItem(TYPE_AI_TABLE, message, items.size(), segment.content,
+                MarkdownTableView.parseRows(segment.content)));
+        } else {
+            // Lines that merely start with a pipe
+            text.append(table);
+        }
+        table.setLength(0);
+    }
+
+    private static void addProse(ChatMessage message, StringBuilder text, List<ChatItem> items) {
+        String prose = text.toString().trim();
+        text.setLength(0);
+        if (!prose.isEmpty()) {
+            items.add(new ChatItem(TYPE_AI_PROSE, message, items.size(), prose, null));
+        }
+    }
+
+    /**
+     * Names this row across updates of its message, e.g. for a render cache.
+     */
+    public String getKey() {
+        return message.getId() + '#' + type + '#' + index;
+    }
+
+    public long getStableId() {
+        long hash = message.getStableId();
+        hash = (hash ^ type) * 0x100000001b3L;
+        hash = (hash ^ index) * 0x100000001b3L;
+        return hash;
+    }
+
+    public boolean isSameItem(ChatItem other) {
+        return type == other.type && index == other.index && message.getId().equals(other.message.getId());
+    }
+
+    public boolean hasSameContents(ChatItem other) {
+        switch (type) {
+            case TYPE_USER:
+                return equalsNullable(content, other.content)
+                        && equalsNullable(message.getTime(), other.message.getTime());
+            case TYPE_AI_FOOTER:
+                return equalsNullable(message.getTime(), other.message.getTime());
+            case TYPE_AI_HEADER:
+                return true;
+            case TYPE_AI_CODE:
+                return equalsNullable(content, other.content) && equalsNullable(language, other.language);
+            default:
+                return equalsNullable(content, other.content);
+        }
+    }
+
+    private static boolean equalsNullable(Object a, Object b) {
+        return a != null ? a.equals(b) : b == null;
+    }
+
+    // What the segments of a message were split from; null if it has no text yet
+    private static String cacheSource(ChatMessage message) {
+        String blobId = message.getBlobId();
+        if (message.isSpilled() && blobId != null) {
+            return blobId;
+        }
+        return message.getInlineText();
+    }
+}
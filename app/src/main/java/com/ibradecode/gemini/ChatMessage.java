@@ -1,30 +1,143 @@
 package com.ibradecode.gemini;
 
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
 
+/**
+ * A single chat message.
+ *
+ * The text of a large message may be spilled to the {@link BlobStore} when
+ * its session is saved. A spilled message keeps only the blob id, a short
+ * preview and the store holding the blob; {@link #loadText()} loads the full
+ * text on demand and keeps it softly reachable, so the heap holds the text of
+ * messages that are in use rather than of the whole history.
+ *
+ * Every message has a stable id, assigned on creation and persisted with
+ * it, so lists can tell an edited message from a new one.
+ */
 public class ChatMessage {
+    private String id;
     private String role; // "user" or "model"
-    private String text;
+    // Null while spilled
+    private volatile String text;
     private String time;
     private long timestamp;
+    private volatile String blobId;
+    private volatile String preview;
+    private transient volatile SoftReference<String> loadedText;
+    private transient volatile BlobStore blobs;
     
     public ChatMessage(String role, String text, String time) {
+        this.id = UUID.randomUUID().toString();
         this.role = role;
         this.text = text;
         this.time = time;
         this.timestamp = System.currentTimeMillis();
     }
     
+    /**
+     * Creates a message whose text is stored in {@code blobs}. With a null
+     * store the full text cannot be loaded.
+     */
+    public static ChatMessage spilled(String role, String blobId, String preview, String time,
+            BlobStore blobs) {
+        ChatMessage message = new ChatMessage(role, null, time);
+        message.blobId = blobId;
+        message.preview = preview;
+        message.blobs = blobs;
+        return message;
+    }
+    
     // Getters
+    public String getId() {
+        return id;
+    }
+    
+    /**
+     * 64-bit FNV-1a hash of the id, for adapters with stable ids.
+     */
+    public long getStableId() {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
     public String getRole() {
         return role;
     }
     
-    public String getText() {
+    /**
+     * Returns the full text, reading it from the {@link BlobStore} if the
+     * message is spilled and not cached. May perform disk I/O, so UI code
+     * loads text in the background (see {@link ChatItem}) and shows
+     * {@link #getPreview()} meanwhile.
+     *
+     * @throws IOException if the spilled text cannot be read; the preview is
+     *     never passed off as the text
+     */
+    @WorkerThread
+    public String loadText() throws IOException {
+        String current = text;
+        if (current != null) return current;
+        
+        String id = blobId;
+        if (id == null) return null;
+        SoftReference<String> cached = loadedText;
+        String loaded = cached != null ? cached.get() : null;
+        if (loaded != null) return loaded;
+        
+        BlobStore blobs = this.blobs;
+        if (blobs == null) {
+            throw new IOException("No blob store for message text " + id);
+        }
+        loaded = blobs.get(id);
+        loadedText = new SoftReference<>(loaded);
+        return loaded;
+    }
+    
+    /**
+     * The text if it is held on the heap, or null while the message is
+     * spilled. Never performs I/O.
+     */
+    String getInlineText() {
         return text;
     }
     
+    /**
+     * Start of the text, without loading a spilled message.
+     */
+    public String getPreview() {
+        String current = text;
+        return current != null ? current : preview;
+    }
+    
+    public boolean isSpilled() {
+        return text == null && blobId != null;
+    }
+    
+    public String getBlobId() {
+        return blobId;
+    }
+    
+    /**
+     * Length of the text held on the heap regardless of the soft cache.
+     */
+    int getHeapTextLength() {
+        String current = text;
+        if (current != null) return current.length();
+        String currentPreview = preview;
+        return currentPreview != null ? currentPreview.length() : 0;
+    }
+    
     public String getTime() {
         return time;
     }
@@ -42,12 +155,33 @@ public class ChatMessage {
     }
     
     // Setters
+    public void setId(String id) {
+        this.id = id;
+    }
+    
     public void setRole(String role) {
         this.role = role;
     }
     
-    public void setText(String text) {
+    public synchronized void setText(String text) {
         this.text = text;
+        this.blobId = null;
+        this.preview = null;
+        this.loadedText = null;
+        this.blobs = null;
+    }
+    
+    /**
+     * Drops the in-memory text once it is stored as blob {@code id} in
+     * {@code store}. Does nothing if the text was replaced in the meantime.
+     */
+    synchronized void spill(String spilledText, String id, BlobStore store) {
+        if (text != spilledText) return;
+        blobs = store;
+        blobId = id;
+        preview = BlobStore.preview(spilledText);
+        loadedText = new SoftReference<>(spilledText);
+        text = null;
     }
     
     public void setTime(String time) {
@@ -59,10 +193,11 @@ public class ChatMessage {
     }
     
     // Conversion methods
-    public Map<String, Object> toMap() {
+    public Map<String, Object> toMap() throws IOException {
         Map<String, Object> map = new HashMap<>();
+        map.put("id", id);
         map.put("role", role);
-        map.put("text", text);
+        map.put("text", loadText());
         map.put("time", time);
         map.put("timestamp", timestamp);
         return map;
@@ -76,6 +211,9 @@ public class ChatMessage {
             
             ChatMessage message = new ChatMessage(role, text, time);
             
+            if (map.get("id") instanceof String) {
+                message.setId((String) map.get("id"));
+            }
             if (map.containsKey("timestamp")) {
                 Object timestampObj = map.get("timestamp");
                 if (timestampObj instanceof Number) {
@@ -92,8 +230,9 @@ public class ChatMessage {
     @Override
     public String toString() {
         return "ChatMessage{" +
-                "role='" + role + '\'' +
-                ", text='" + text + '\'' +
+                "id='" + id + '\'' +
+                ", role='" + role + '\'' +
+                ", text='" + getPreview() + '\'' +
                 ", time='" + time + '\'' +
                 ", timestamp=" + timestamp +
                 '}';
@@ -108,14 +247,24 @@ public class ChatMessage {
         
         if (timestamp != that.timestamp) return false;
         if (role != null ? !role.equals(that.role) : that.role != null) return false;
-        if (text != null ? !text.equals(that.text) : that.text != null) return false;
+        if (!sameText(that)) return false;
         return time != null ? time.equals(that.time) : that.time == null;
     }
     
+    // Compares without loading spilled text: blobs are named after their content
+    private boolean sameText(ChatMessage other) {
+        String current = text;
+        String otherText = other.text;
+        if (current != null && otherText != null) return current.equals(otherText);
+        String id = current != null ? BlobStore.idOf(current) : blobId;
+        String otherId = otherText != null ? BlobStore.idOf(otherText) : other.blobId;
+        return Objects.equals(id, otherId);
+    }
+    
+    // Leaves out the text, which a spilled message does not hold
     @Override
     public int hashCode() {
         int result = role != null ? role.hashCode() : 0;
-        result = 31 * result + (text != null ? text.hashCode() : 0);
         result = 31 * result + (time != null ? time.hashCode() : 0);
         result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
         return result;
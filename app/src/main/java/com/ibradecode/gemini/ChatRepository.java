@@ -0,0 +1,838 @@
+package com.ibradecode.gemini;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide owner of the chat session cache.
+ *
+ * Storage is parsed once per process, on the persistence thread; every
+ * screen reads the same in-memory sessions and observes the same
+ * {@link LiveData}, which gets its first value once they are read. Mutations
+ * must happen on the main thread and are persisted through a
+ * {@link PersistenceExecutor}; bulk changes should go through
+ * {@link #batch(BatchAction)} so they are persisted and published once.
+ * Mutations and loads requested before the stored sessions are read wait
+ * for them, in order.
+ *
+ * Only a bounded LRU hot set of sessions keeps its messages in memory; all
+ * other sessions are header-only and are loaded with
+ * {@link #loadSession(String, SessionCallback)}. Sessions not opened for
+ * {@link #setColdArchiveAfterMillis(long) a while} are moved to the store's
+ * cold archive in the background.
+ *
+ * Message text is indexed for full-text search as sessions are written
+ * ({@link SearchIndexer}) and embedded in the background for semantic search
+ * ({@link VectorIndexer}). Once {@link #enableSync(SyncEngine.Transport)
+ * enabled}, written sessions are mirrored to a backup server
+ * ({@link SyncController}). This class owns the session list and its
+ * mutations; those collaborators, {@link HistoryBackup} and
+ * {@link StoreMaintenance} do the rest.
+ */
+public class ChatRepository {
+    private static final String TAG = "ChatRepository";
+    private static final long SAVE_DEBOUNCE_MS = 300;
+    private static final long SAVE_MAX_DELAY_MS = 2000;
+    private static final int DEFAULT_HOT_SET_CAPACITY = 8;
+    private static final long DEFAULT_COLD_ARCHIVE_AFTER_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private static volatile ChatRepository instance;
+
+    private final SessionStore store;
+    private final PersistenceExecutor persistenceExecutor;
+    // Full-text queries; semantic ones wait on the network and get their own thread
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(runnable ->
+        new Thread(runnable, "chat-search"));
+    private final SearchIndexer searchIndexer;
+    private final VectorIndexer vectorIndexer;
+    private final HistoryBackup backup;
+    private final SyncController sync;
+    private final StoreMaintenance maintenance;
+
+    private final SessionIndex sessions = new SessionIndex();
+    // No value until the stored sessions are read
+    private final MutableLiveData<List<ChatSession>> chatSessions = new MutableLiveData<>();
+    // Message for the user when stored history cannot be read
+    private final MutableLiveData<String> storageError = new MutableLiveData<>();
+    // Main thread only; actions requested before the stored sessions were read
+    private boolean sessionsLoaded;
+    private final List<Runnable> untilLoaded = new ArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Fully loaded sessions; everything else is header-only
+    private final HotSessionSet hotSessions = new HotSessionSet(sessions, DEFAULT_HOT_SET_CAPACITY);
+    private final MutationBatch currentBatch = new MutationBatch();
+    // Access times newer than the last manifest handed to the persistence executor
+    private boolean accessTimesChanged;
+
+    /**
+     * Mutations available inside {@link #batch(BatchAction)}.
+     */
+    public interface Transaction {
+        ChatSession getSession(String chatId);
+
+        void addSession(ChatSession session);
+
+        void updateSessionMessages(String chatId, List<ChatMessage> messages, String lastMessageTime);
+
+        void deleteSession(String chatId);
+    }
+
+    public interface BatchAction {
+        void run(Transaction transaction);
+    }
+
+    public interface SessionCallback {
+        void onSessionLoaded(ChatSession session);
+    }
+
+    public interface BackupListener {
+        void onProgress(int done, int total);
+
+        /**
+         * Called once on the main thread; {@code error} is null on success.
+         */
+        void onFinished(ChatBackup.Result result, Exception error);
+    }
+
+    public interface SyncCallback {
+        /**
+         * Called on the main thread; {@code error} is null on success.
+         */
+        void onSyncFinished(SyncEngine.Result result, Exception error);
+    }
+
+    public interface SearchCallback {
+        void onSearchResults(String query, List<SearchIndex.Hit> hits);
+    }
+
+    public interface SyncListener {
+        /**
+         * Called on the main thread after messages pulled from the sync
+         * server were added to {@code session}.
+         */
+        void onSessionSynced(ChatSession session);
+    }
+
+    public static ChatRepository getInstance(Context context) {
+        if (instance == null) {
+            synchronized (ChatRepository.class) {
+                if (instance == null) {
+                    instance = new ChatRepository(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private ChatRepository(Context context) {
+        store = new SessionStore(context);
+        persistenceExecutor = new PersistenceExecutor(this::writeSessions,
+            SAVE_DEBOUNCE_MS, SAVE_MAX_DELAY_MS);
+        searchIndexer = new SearchIndexer(store, searchExecutor, mainHandler);
+        vectorIndexer = new VectorIndexer(store, new ApiClient(context), mainHandler);
+        backup = new HistoryBackup(store, persistenceExecutor, searchIndexer, mainHandler);
+        sync = new SyncController(store.getStoreDir(), persistenceExecutor, mainHandler);
+        maintenance = new StoreMaintenance(store, DEFAULT_COLD_ARCHIVE_AFTER_MS);
+
+        // Flush pending writes as soon as the app leaves the foreground
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                    saveAccessTimes();
+                    persistenceExecutor.flush();
+                    persistenceExecutor.execute(searchIndexer::save);
+                    if (sync.hasPendingChanges()) {
+                        syncNow(null);
+                    }
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                persistenceExecutor.flush();
+            }
+        });
+
+        loadChatSessions();
+    }
+
+    public LiveData<List<ChatSession>> getChatSessions() {
+        return chatSessions;
+    }
+
+    /**
+     * Gets a message for the user if the stored history could not be read.
+     * Nothing is saved in that case, so the history is not overwritten.
+     */
+    public LiveData<String> getStorageError() {
+        return storageError;
+    }
+
+    /**
+     * Returns the session as currently cached, which may be header-only.
+     * Returns null until the stored sessions are read.
+     */
+    public ChatSession getSession(String chatId) {
+        return sessions.get(chatId);
+    }
+
+    /**
+     * Delivers the fully loaded session on the main thread, reading it from
+     * disk (or the cold archive) on the persistence thread when needed.
+     * Delivers null if the session does not exist.
+     */
+    @MainThread
+    public void loadSession(String chatId, SessionCallback callback) {
+        whenLoaded(() -> loadSessionNow(chatId, callback));
+    }
+
+    private void loadSessionNow(String chatId, SessionCallback callback) {
+        ChatSession session = sessions.get(chatId);
+        if (session == null || session.isLoaded()) {
+            if (session != null) {
+                touch(session, false);
+            }
+            callback.onSessionLoaded(session);
+            return;
+        }
+
+        persistenceExecutor.execute(() -> {
+            boolean archived = store.isArchived(chatId);
+            ChatSession loaded = store.loadSession(chatId);
+            mainHandler.post(() -> onSessionLoaded(chatId, loaded, archived, callback));
+        });
+    }
+
+    /**
+     * Delivers a session holding at least its newest {@code count} messages
+     * on the main thread. A session already in memory is delivered as it is;
+     * otherwise only the tail is read on the persistence thread, and the
+     * result is a detached copy that is not cached and must not be passed
+     * back to the repository. Delivers null if the session does not exist.
+     */
+    @MainThread
+    public void loadTail(String chatId, int count, SessionCallback callback) {
+        whenLoaded(() -> loadTailNow(chatId, count, callback));
+    }
+
+    private void loadTailNow(String chatId, int count, SessionCallback callback) {
+        ChatSession session = sessions.get(chatId);
+        if (session == null || session.isLoaded()) {
+            callback.onSessionLoaded(session);
+            return;
+        }
+
+        persistenceExecutor.execute(() -> {
+            ChatSession tail = store.loadTail(chatId, count);
+            mainHandler.post(() -> callback.onSessionLoaded(tail));
+        });
+    }
+
+    /**
+     * Like {@link #loadTail(String, int, SessionCallback)}, but the copy read
+     * from disk holds only the messages in {@code [from, from + count)}.
+     */
+    @MainThread
+    public void loadRange(String chatId, int from, int count, SessionCallback callback) {
+        whenLoaded(() -> loadRangeNow(chatId, from, count, callback));
+    }
+
+    private void loadRangeNow(String chatId, int from, int count, SessionCallback callback) {
+        ChatSession session = sessions.get(chatId);
+        if (session == null || session.isLoaded()) {
+            callback.onSessionLoaded(session);
+            return;
+        }
+
+        persistenceExecutor.execute(() -> {
+            ChatSession range = store.loadRange(chatId, from, count);
+            mainHandler.post(() -> callback.onSessionLoaded(range));
+        });
+    }
+
+    private void onSessionLoaded(String chatId, ChatSession loaded, boolean archived, SessionCallback callback) {
+        ChatSession current = sessions.get(chatId);
+        if (current == null) {
+            // Deleted while loading
+            callback.onSessionLoaded(null);
+            return;
+        }
+
+        if (!current.isLoaded()) {
+            if (loaded == null) {
+                Log.w(TAG, "Session " + chatId + " is missing on disk");
+                loaded = new ChatSession(chatId, current.getLastMessageTime());
+                loaded.setTimestamp(current.getTimestamp());
+            }
+            loaded.setLastAccessed(current.getLastAccessed());
+            sessions.replace(loaded);
+            current = loaded;
+        }
+
+        // Re-hydrated sessions are written back to the hot tier
+        touch(current, archived);
+        callback.onSessionLoaded(current);
+    }
+
+    public void setHotSetCapacity(int capacity) {
+        hotSessions.setCapacity(capacity);
+        trimHotSet();
+    }
+
+    public void setColdArchiveAfterMillis(long millis) {
+        maintenance.setColdArchiveAfterMillis(millis);
+    }
+
+    /**
+     * Estimated heap bytes held by a session's messages; 0 for header-only sessions.
+     */
+    public long getHeapBytes(String chatId) {
+        ChatSession session = sessions.get(chatId);
+        return session != null && session.isLoaded() ? session.estimateHeapBytes() : 0;
+    }
+
+    public long getHotSetHeapBytes() {
+        return hotSessions.getHeapBytes();
+    }
+
+    /**
+     * Bytes a session occupies on disk, hot or archived. Performs file I/O.
+     */
+    public long getDiskBytes(String chatId) {
+        return store.getDiskBytes(chatId);
+    }
+
+    @MainThread
+    public void addSession(ChatSession session) {
+        if (!sessionsLoaded) {
+            untilLoaded.add(() -> addSession(session));
+            return;
+        }
+        sessions.addFirst(session);
+        hotSessions.put(session);
+        onSessionsChanged(session.getId());
+        trimHotSet();
+    }
+
+    /**
+     * Replaces the messages of a session and moves it to the top of the list.
+     * The list is copied, so callers may keep mutating theirs.
+     */
+    @MainThread
+    public void updateSessionMessages(String chatId, List<ChatMessage> messages, String lastMessageTime) {
+        if (!sessionsLoaded) {
+            List<ChatMessage> copy = new ArrayList<>(messages);
+            untilLoaded.add(() -> updateSessionMessages(chatId, copy, lastMessageTime));
+            return;
+        }
+        ChatSession session = sessions.get(chatId);
+        if (session == null) return;
+
+        session.setMessages(new ArrayList<>(messages));
+        session.setLastMessageTime(lastMessageTime);
+        session.setLastAccessed(System.currentTimeMillis());
+        sessions.moveToFront(chatId);
+        hotSessions.put(session);
+        onSessionsChanged(chatId);
+        trimHotSet();
+    }
+
+    @MainThread
+    public void deleteSession(String chatId) {
+        if (!sessionsLoaded) {
+            untilLoaded.add(() -> deleteSession(chatId));
+            return;
+        }
+        hotSessions.remove(chatId);
+        if (sessions.remove(chatId) != null) {
+            onSessionsChanged(chatId);
+        }
+    }
+
+    /**
+     * Applies several mutations and persists and publishes them once, when
+     * the outermost batch returns. Mutations are visible through
+     * {@link #getSession(String)} right away; observers of
+     * {@link #getChatSessions()} only see the final list. There is no
+     * rollback: if {@code action} throws, the mutations made so far are
+     * still committed.
+     */
+    @MainThread
+    public void batch(BatchAction action) {
+        if (!sessionsLoaded) {
+            untilLoaded.add(() -> batch(action));
+            return;
+        }
+        currentBatch.begin();
+        try {
+            action.run(transaction);
+        } finally {
+            if (currentBatch.end()) {
+                commitBatch();
+            }
+        }
+    }
+
+    private final Transaction transaction = new Transaction() {
+        @Override
+        public ChatSession getSession(String chatId) {
+            return ChatRepository.this.getSession(chatId);
+        }
+
+        @Override
+        public void addSession(ChatSession session) {
+            ChatRepository.this.addSession(session);
+        }
+
+        @Override
+        public void updateSessionMessages(String chatId, List<ChatMessage> messages, String lastMessageTime) {
+            ChatRepository.this.updateSessionMessages(chatId, messages, lastMessageTime);
+        }
+
+        @Override
+        public void deleteSession(String chatId) {
+            ChatRepository.this.deleteSession(chatId);
+        }
+    };
+
+    private void commitBatch() {
+        Set<String> dirtyIds = currentBatch.drain();
+        if (dirtyIds == null) return;
+
+        List<ChatSession> snapshot = sessions.snapshot();
+        persistenceExecutor.markAllDirty(dirtyIds, snapshot);
+        accessTimesChanged = false;
+        chatSessions.setValue(snapshot);
+        trimHotSet();
+    }
+
+    /**
+     * Searches the text of all messages off the main thread and delivers the
+     * ranked hits on the main thread. The last word of the query is matched
+     * as a prefix, for search-as-you-type.
+     */
+    public void search(String query, int limit, SearchCallback callback) {
+        searchIndexer.search(query, limit, callback);
+    }
+
+    /**
+     * Finds messages similar in meaning to the query and delivers them on the
+     * main thread. Needs a round trip to the embedding provider, so it is
+     * meant for submitted queries rather than search-as-you-type.
+     */
+    public void searchSimilar(String query, int limit, SearchCallback callback) {
+        vectorIndexer.searchSimilar(query, limit, callback);
+    }
+
+    /**
+     * Replaces the embedding provider, e.g. with {@link HashingEmbeddingProvider}
+     * when offline or in tests. Vectors of the previous provider are discarded
+     * and all messages are embedded again.
+     */
+    @MainThread
+    public void setEmbeddingProvider(EmbeddingProvider provider) {
+        vectorIndexer.setProvider(provider, sessions.snapshot());
+    }
+
+    /**
+     * Exports all sessions to {@code target} in the background, see {@link ChatBackup}.
+     * Progress and the result are delivered on the main thread.
+     */
+    @MainThread
+    public void exportHistory(File target, BackupListener listener) {
+        if (!sessionsLoaded) {
+            untilLoaded.add(() -> exportHistory(target, listener));
+            return;
+        }
+        List<String> ids = new ArrayList<>(sessions.size());
+        for (ChatSession session : sessions.snapshot()) {
+            ids.add(session.getId());
+        }
+        backup.export(ids, target, listener);
+    }
+
+    /**
+     * Merges the sessions of a backup into the history in the background, see
+     * {@link ChatBackup}. A session that is edited while it is being imported
+     * keeps the edited version.
+     */
+    @MainThread
+    public void importHistory(File source, BackupListener listener) {
+        backup.importFrom(source, listener, this::publishImported);
+    }
+
+    /**
+     * Starts mirroring sessions to a backup server. On the first call every
+     * existing session is queued for upload.
+     */
+    @MainThread
+    public void enableSync(SyncEngine.Transport transport) {
+        if (!sessionsLoaded) {
+            untilLoaded.add(() -> enableSync(transport));
+            return;
+        }
+        List<String> ids = new ArrayList<>(sessions.size());
+        for (ChatSession session : sessions.snapshot()) {
+            ids.add(session.getId());
+        }
+        sync.enable(ids, transport, new SyncEngine.LocalSessions() {
+            @Override
+            public ChatSession load(String sessionId) throws IOException {
+                // The session in memory may have edits that are not on disk yet
+                ChatSession live = runOnMainThread(() -> {
+                    ChatSession session = sessions.get(sessionId);
+                    return session != null && session.isLoaded() ? copyOf(session) : session;
+                });
+                if (live == null || live.isLoaded()) return live;
+                // A header-only session is current on disk once pending writes are done
+                return runOnPersistenceThread(() -> store.loadSession(sessionId));
+            }
+
+            @Override
+            public void save(ChatSession session) throws IOException {
+                saveSyncedSession(session);
+            }
+
+            @Override
+            public void delete(String sessionId) {
+                mainHandler.post(() -> sync.applyRemoteChange(() -> deleteSession(sessionId)));
+            }
+        });
+    }
+
+    @MainThread
+    public void addSyncListener(SyncListener listener) {
+        sync.addListener(listener);
+    }
+
+    @MainThread
+    public void removeSyncListener(SyncListener listener) {
+        sync.removeListener(listener);
+    }
+
+    public void enableSync(String baseUrl, String authToken) {
+        enableSync(new HttpSyncTransport(baseUrl, authToken));
+    }
+
+    /**
+     * Pushes local changes and pulls remote ones in the background.
+     * {@code callback} may be null.
+     */
+    public void syncNow(SyncCallback callback) {
+        sync.syncNow(callback);
+    }
+
+    /**
+     * Merges a session pulled by the sync engine into the live session on the
+     * main thread and persists it like any other edit. Runs on the sync thread.
+     */
+    private void saveSyncedSession(ChatSession synced) throws IOException {
+        String id = synced.getId();
+        for (int attempt = 0; attempt < 3; attempt++) {
+            // A header-only session is read first, so the merge sees all of its messages
+            boolean headerOnly = runOnMainThread(() -> {
+                ChatSession session = sessions.get(id);
+                return session != null && !session.isLoaded();
+            });
+            ChatSession stored = headerOnly ? runOnPersistenceThread(() -> store.loadSession(id)) : null;
+            if (runOnMainThread(() -> applySyncedSession(synced, stored))) return;
+        }
+        throw new IOException("Session " + id + " kept changing while it was synced");
+    }
+
+    /**
+     * Returns false if {@code stored}, the disk copy of a header-only session,
+     * no longer matches the session.
+     */
+    @MainThread
+    private boolean applySyncedSession(ChatSession synced, ChatSession stored) {
+        String id = synced.getId();
+        ChatSession current = sessions.get(id);
+        if (current == null) {
+            sync.applyRemoteChange(() -> {
+                sessions.addLast(synced);
+                hotSessions.put(synced);
+                onSessionsChanged(id);
+            });
+            trimHotSet();
+            return true;
+        }
+
+        ChatSession base = current;
+        if (!current.isLoaded()) {
+            if (stored == null || stored.getMessageCount() != current.getMessageCount()) return false;
+            base = stored;
+        }
+        List<ChatMessage> merged = mergeMessages(base.getMessages(), synced.getMessages());
+        if (merged == null) return true;
+
+        ChatSession updated = new ChatSession(id, base.getLastMessageTime());
+        updated.setMessages(merged);
+        updated.setTimestamp(Math.min(base.getTimestamp(), synced.getTimestamp()));
+        updated.setLastAccessed(current.getLastAccessed());
+        sync.applyRemoteChange(() -> {
+            sessions.replace(updated);
+            hotSessions.put(updated);
+            onSessionsChanged(id);
+        });
+        trimHotSet();
+        sync.notifySynced(updated);
+        return true;
+    }
+
+    /**
+     * Adds the messages of {@code incoming} that {@code current} lacks, in
+     * timestamp order, or returns null if there are none. Messages are told
+     * apart by id, so spilled text is never loaded.
+     */
+    static List<ChatMessage> mergeMessages(List<ChatMessage> current, List<ChatMessage> incoming) {
+        Set<String> known = new HashSet<>();
+        for (ChatMessage message : current) {
+            known.add(message.getId());
+        }
+        List<ChatMessage> merged = null;
+        for (ChatMessage message : incoming) {
+            if (known.add(message.getId())) {
+                if (merged == null) {
+                    merged = new ArrayList<>(current);
+                }
+                merged.add(message);
+            }
+        }
+        if (merged == null) return null;
+        // Stable, so messages with equal timestamps keep their order
+        Collections.sort(merged, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+        return merged;
+    }
+
+    private static ChatSession copyOf(ChatSession session) {
+        ChatSession copy = new ChatSession(session.getId(), session.getLastMessageTime());
+        copy.setMessages(new ArrayList<>(session.getMessages()));
+        copy.setLastMessageTime(session.getLastMessageTime());
+        copy.setTimestamp(session.getTimestamp());
+        copy.setLastAccessed(session.getLastAccessed());
+        return copy;
+    }
+
+    private <T> T runOnMainThread(Callable<T> callable) throws IOException {
+        FutureTask<T> task = new FutureTask<>(callable);
+        mainHandler.post(task);
+        return await(task);
+    }
+
+    private <T> T runOnPersistenceThread(Callable<T> callable) throws IOException {
+        FutureTask<T> task = new FutureTask<>(callable);
+        persistenceExecutor.execute(task);
+        return await(task);
+    }
+
+    private static <T> T await(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    /**
+     * Posts headers of sessions written directly to the store to the main
+     * thread, as one batch. Runs on the persistence thread.
+     */
+    private void publishImported(List<ChatSession> headers) {
+        mainHandler.post(() -> batch(transaction -> {
+            for (ChatSession header : headers) {
+                onSessionImported(header);
+            }
+        }));
+    }
+
+    private void onSessionImported(ChatSession header) {
+        ChatSession current = sessions.get(header.getId());
+        if (current == null) {
+            sessions.addLast(header);
+        } else {
+            // The stored file now has the merged messages; reload it on next open
+            header.setLastAccessed(current.getLastAccessed());
+            hotSessions.remove(header.getId());
+            sessions.replace(header);
+        }
+        // Only the manifest changes; the session file is already written
+        onSessionsChanged(null);
+    }
+
+    /**
+     * Writes pending mutations as soon as possible.
+     */
+    public void flush() {
+        saveAccessTimes();
+        persistenceExecutor.flush();
+    }
+
+    private void writeSessions(List<ChatSession> snapshot, Set<String> dirtySessionIds) throws IOException {
+        if (store.isReadOnly()) {
+            // Retrying cannot help until the stored history is readable, i.e. in a later process
+            Log.w(TAG, "Stored history is unreadable; not saving " + dirtySessionIds.size() + " changed sessions");
+            return;
+        }
+        store.save(snapshot, dirtySessionIds);
+
+        Set<String> deletedIds = new HashSet<>(dirtySessionIds);
+        for (ChatSession session : snapshot) {
+            deletedIds.remove(session.getId());
+        }
+        vectorIndexer.onSessionsWritten(snapshot, dirtySessionIds, deletedIds);
+        sync.onSessionsWritten(snapshot, dirtySessionIds, deletedIds);
+        searchIndexer.onSessionsWritten(snapshot, dirtySessionIds, deletedIds);
+        maintenance.onSessionsWritten(snapshot);
+    }
+
+    private void onSessionsChanged(String chatId) {
+        if (chatId != null) {
+            sync.onSessionChanged(chatId);
+        }
+        if (currentBatch.isActive()) {
+            currentBatch.record(chatId);
+            return;
+        }
+
+        List<ChatSession> snapshot = sessions.snapshot();
+        persistenceExecutor.markDirty(chatId, snapshot);
+        accessTimesChanged = false;
+        chatSessions.setValue(snapshot);
+    }
+
+    private void touch(ChatSession session, boolean dirty) {
+        session.setLastAccessed(System.currentTimeMillis());
+        hotSessions.put(session);
+        if (dirty) {
+            persistenceExecutor.markDirty(session.getId(), sessions.snapshot());
+            accessTimesChanged = false;
+        } else {
+            // Opening a chat does not rewrite the manifest; the time goes out with the next save
+            accessTimesChanged = true;
+        }
+        trimHotSet();
+    }
+
+    /**
+     * Hands the in-memory access times to the persistence executor if no
+     * save has carried them yet. They only steer the cold archive, so they
+     * are written when the app is hidden rather than on every open.
+     */
+    @MainThread
+    private void saveAccessTimes() {
+        if (!accessTimesChanged || !sessionsLoaded || currentBatch.isActive()) return;
+        accessTimesChanged = false;
+        persistenceExecutor.markDirty(null, sessions.snapshot());
+    }
+
+    private void trimHotSet() {
+        // Deferred until the batch is committed, so its snapshot keeps the loaded sessions
+        if (currentBatch.isActive()) return;
+        hotSessions.trim();
+    }
+
+    /**
+     * Reads the stored sessions on the persistence thread and publishes them
+     * on the main thread, then runs what was requested in the meantime.
+     */
+    private void loadChatSessions() {
+        persistenceExecutor.execute(() -> {
+            List<ChatSession> loaded;
+            try {
+                loaded = store.load();
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading chat history", e);
+                mainHandler.post(() -> onChatSessionsLoaded(Collections.emptyList(),
+                    "Your chat history could not be read. To avoid overwriting it, "
+                        + "chats will not be saved."));
+                return;
+            }
+            mainHandler.post(() -> onChatSessionsLoaded(loaded, null));
+        });
+    }
+
+    @MainThread
+    private void onChatSessionsLoaded(List<ChatSession> loaded, String error) {
+        List<String> migratedIds = new ArrayList<>();
+        for (ChatSession session : loaded) {
+            sessions.addLast(session);
+            if (session.isLoaded()) {
+                migratedIds.add(session.getId());
+            }
+        }
+
+        if (!migratedIds.isEmpty()) {
+            // Legacy history arrives fully loaded; the store writes all of it with the first save
+            persistenceExecutor.markAllDirty(migratedIds, sessions.snapshot());
+            for (ChatSession session : loaded) {
+                if (session.isLoaded()) {
+                    hotSessions.put(session);
+                }
+            }
+            trimHotSet();
+        }
+
+        sessionsLoaded = true;
+        chatSessions.setValue(sessions.snapshot());
+        if (error != null) {
+            storageError.setValue(error);
+        }
+        List<Runnable> pending = new ArrayList<>(untilLoaded);
+        untilLoaded.clear();
+        for (Runnable action : pending) {
+            action.run();
+        }
+
+        // Maintenance would treat every stored session as deleted
+        if (error != null) return;
+        List<ChatSession> snapshot = sessions.snapshot();
+        persistenceExecutor.execute(() -> maintenance.archiveColdSessions(snapshot));
+        persistenceExecutor.execute(() -> maintenance.encryptPlaintextSessions(snapshot));
+        persistenceExecutor.execute(() -> maintenance.collectGarbageBlobs(snapshot));
+        persistenceExecutor.execute(() -> searchIndexer.build(snapshot));
+        vectorIndexer.build(snapshot);
+    }
+
+    // Runs now, or once the stored sessions are read
+    @MainThread
+    private void whenLoaded(Runnable action) {
+        if (sessionsLoaded) {
+            action.run();
+        } else {
+            untilLoaded.add(action);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.ibradecode.gemini;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,14 +12,75 @@ public class ChatSession {
     private String lastMessageTime;
     private long timestamp;
     private List<ChatMessage> messages;
+    private long lastAccessed;
+    
+    // Header-only sessions keep metadata but no messages (see ChatRepository)
+    private boolean loaded = true;
+    private int storedMessageCount;
+    private String lastMessagePreview;
+    
+    // Bumped by every change, so freeze() can reuse its last copy
+    private int modCount;
+    private ChatSession frozenCopy;
+    private int frozenModCount;
+    private boolean frozen;
     
     public ChatSession(String id, String lastMessageTime) {
         this.id = id;
         this.lastMessageTime = lastMessageTime;
         this.timestamp = System.currentTimeMillis();
+        this.lastAccessed = timestamp;
         this.messages = new ArrayList<>();
     }
     
+    public static ChatSession header(String id, String lastMessageTime, long timestamp,
+                                     int messageCount, String lastMessagePreview) {
+        ChatSession session = new ChatSession(id, lastMessageTime);
+        session.timestamp = timestamp;
+        session.loaded = false;
+        session.storedMessageCount = messageCount;
+        session.lastMessagePreview = lastMessagePreview;
+        return session;
+    }
+    
+    /**
+     * Returns a copy that later changes to this session, made through its
+     * setters, do not affect, for handing to another thread. The copy cannot be changed and its message
+     * list is unmodifiable; the messages themselves are shared. Without a
+     * change in between, repeated calls return the same copy.
+     */
+    public ChatSession freeze() {
+        if (frozen) return this;
+        ChatSession copy = frozenCopy;
+        if (copy != null && frozenModCount == modCount) return copy;
+        
+        copy = new ChatSession(id, lastMessageTime);
+        copy.timestamp = timestamp;
+        copy.lastAccessed = lastAccessed;
+        copy.loaded = loaded;
+        copy.storedMessageCount = storedMessageCount;
+        copy.lastMessagePreview = lastMessagePreview;
+        copy.messages = loaded ? Collections.unmodifiableList(new ArrayList<>(messages))
+            : Collections.<ChatMessage>emptyList();
+        copy.frozen = true;
+        frozenCopy = copy;
+        frozenModCount = modCount;
+        return copy;
+    }
+    
+    public boolean isFrozen() {
+        return frozen;
+    }
+    
+    /**
+     * Returns a header-only copy of this session that holds no messages.
+     */
+    public ChatSession toHeader() {
+        ChatSession header = header(id, lastMessageTime, timestamp, getMessageCount(), getLastMessageText());
+        header.lastAccessed = lastAccessed;
+        return header;
+    }
+    
     // Getters
     public String getId() {
         return id;
@@ -35,13 +98,41 @@ public class ChatSession {
         return messages;
     }
     
+    public boolean isLoaded() {
+        return loaded;
+    }
+    
+    public int getMessageCount() {
+        return loaded ? messages.size() : storedMessageCount;
+    }
+    
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+    
+    /**
+     * Rough number of heap bytes held by this session's messages.
+     */
+    public long estimateHeapBytes() {
+        long bytes = 64;
+        for (ChatMessage message : messages) {
+            String time = message.getTime();
+            bytes += 96 + 2L * (message.getHeapTextLength() + (time != null ? time.length() : 0));
+        }
+        return bytes;
+    }
+    
     public String getLastMessageText() {
+        if (!loaded) {
+            return storedMessageCount == 0 || lastMessagePreview == null
+                ? "New conversation" : lastMessagePreview;
+        }
         if (messages.isEmpty()) {
             return "New conversation";
         }
         
         ChatMessage lastMessage = messages.get(messages.size() - 1);
-        String text = lastMessage.getText();
+        String text = lastMessage.getPreview();
         
         // Truncate if too long
         if (text.length() > 60) {
@@ -57,19 +148,29 @@ public class ChatSession {
     
     // Setters
     public void setId(String id) {
+        onChange();
         this.id = id;
     }
     
     public void setLastMessageTime(String lastMessageTime) {
+        onChange();
         this.lastMessageTime = lastMessageTime;
     }
     
     public void setTimestamp(long timestamp) {
+        onChange();
         this.timestamp = timestamp;
     }
     
+    public void setLastAccessed(long lastAccessed) {
+        onChange();
+        this.lastAccessed = lastAccessed;
+    }
+    
     public void setMessages(List<ChatMessage> messages) {
+        onChange();
         this.messages = messages != null ? messages : new ArrayList<>();
+        this.loaded = true;
         
         // Update last message time if messages exist
         if (!this.messages.isEmpty()) {
@@ -80,13 +181,21 @@ public class ChatSession {
     
     public void addMessage(ChatMessage message) {
         if (message != null) {
+            onChange();
             messages.add(message);
             lastMessageTime = message.getTime();
         }
     }
     
+    private void onChange() {
+        if (frozen) {
+            throw new IllegalStateException("Session " + id + " is frozen");
+        }
+        modCount++;
+    }
+    
     // Conversion methods
-    public Map<String, Object> toMap() {
+    public Map<String, Object> toMap() throws IOException {
         Map<String, Object> map = new HashMap<>();
         map.put("id", id);
         map.put("lastMessageTime", lastMessageTime);
@@ -99,9 +208,7 @@ public class ChatSession {
         }
         map.put("messages", messageMaps);
         
-        // For backward compatibility with old format
-        map.put("history", new com.google.gson.Gson().toJson(messageMaps));
-        
+        // The old "history" field is still read by fromMap() but no longer written
         return map;
     }
     
@@ -179,7 +286,7 @@ public class ChatSession {
                 "id='" + id + '\'' +
                 ", lastMessageTime='" + lastMessageTime + '\'' +
                 ", timestamp=" + timestamp +
-                ", messagesCount=" + messages.size() +
+                ", messagesCount=" + getMessageCount() +
                 '}';
     }
     
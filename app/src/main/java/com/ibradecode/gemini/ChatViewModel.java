@@ -3,6 +3,8 @@ package com.ibradecode.gemini;
 import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -11,42 +13,101 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.Call;
 
 public class ChatViewModel extends AndroidViewModel {
     private static final String TAG = "ChatViewModel";
-    private static final String PREFS_NAME = "ChatsHome";
-    private static final String HISTORY_KEY = "history";
+    private static final int SEARCH_RESULT_LIMIT = 50;
+    // Messages shown when a chat opens, and added per loadOlderMessages()
+    private static final int PAGE_SIZE = 30;
     
     private ApiClient apiClient;
-    private SharedPreferences sharedPreferences;
+    private ChatRepository repository;
     private Gson gson;
+    private SharedPreferences settings;
     
     private MutableLiveData<List<ChatMessage>> chatMessages = new MutableLiveData<>();
-    private MutableLiveData<List<ChatSession>> chatSessions = new MutableLiveData<>();
     private MutableLiveData<Boolean> isLoading = new MutableLiveData<>();
     private MutableLiveData<String> errorMessage = new MutableLiveData<>();
+    private MutableLiveData<List<SearchIndex.Hit>> searchResults = new MutableLiveData<>();
+    private String currentQuery = "";
+    private static final String SETTINGS = "settings";
+    private static final String KEY_RETRIEVAL_CONTEXT = "retrieval_context";
+    // Null sends the full history with every prompt
+    private ContextSelector contextSelector;
     
     private String currentChatId;
     private List<ChatMessage> currentMessages = new ArrayList<>();
-    private List<ChatSession> sessions = new ArrayList<>();
+    // Index of the oldest message published to chatMessages
+    private int windowStart;
+    // False while the current chat is read from storage a page at a time; currentMessages then
+    // holds the pages read so far, all of them shown, starting at storedStart in the stored chat
+    private boolean historyLoaded = true;
+    private int storedStart;
+    // Page reads whose request is no longer current are dropped
+    private int pageRequest;
+    private boolean pageLoading;
+    // Bumped whenever a chat is opened, dropping sends that waited for the previous one
+    private int openedChat;
+    
+    private static final Object STREAM_UPDATE = new Object();
+    private final FrameUpdateScheduler uiScheduler = new FrameUpdateScheduler();
+    private final MutableLiveData<StreamingReply> streamingReply = new MutableLiveData<>();
+    // Main thread only
+    private StreamState activeStream;
+    private final ChatRepository.SyncListener syncListener = this::onSessionSynced;
+    // Builds request bodies, which may read spilled text
+    private final ExecutorService requestExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    private static class StreamState {
+        final String chatId;
+        final String messageId = UUID.randomUUID().toString();
+        // Appended on the OkHttp thread
+        final StreamingReply reply;
+        Call call;
+        
+        StreamState(String chatId, String time) {
+            this.chatId = chatId;
+            this.reply = new StreamingReply(messageId, time, System.currentTimeMillis());
+        }
+    }
     
     public ChatViewModel(@NonNull Application application) {
         super(application);
         apiClient = new ApiClient(application);
-        sharedPreferences = application.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        repository = ChatRepository.getInstance(application);
         gson = new Gson();
+        // Short chats are sent whole either way; on long ones this keeps requests bounded
+        settings = application.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE);
+        applyRetrievalContext(settings.getBoolean(KEY_RETRIEVAL_CONTEXT, true));
         
-        loadChatSessions();
         isLoading.setValue(false);
+        repository.addSyncListener(syncListener);
+    }
+    
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        cancelStream();
+        uiScheduler.release();
+        requestExecutor.shutdown();
+        repository.removeSyncListener(syncListener);
+        repository.flush();
     }
     
     // LiveData getters
@@ -55,7 +116,15 @@ public class ChatViewModel extends AndroidViewModel {
     }
     
     public LiveData<List<ChatSession>> getChatSessions() {
-        return chatSessions;
+        return repository.getChatSessions();
+    }
+    
+    /**
+     * The reply that is still streaming in, or null. It is set again on
+     * every update; it joins {@link #getChatMessages()} once it is finished.
+     */
+    public LiveData<StreamingReply> getStreamingReply() {
+        return streamingReply;
     }
     
     public LiveData<Boolean> getIsLoading() {
@@ -66,31 +135,77 @@ public class ChatViewModel extends AndroidViewModel {
         return errorMessage;
     }
     
-    // Chat session management
-    public void loadChatSessions() {
-        try {
-            String sessionsJson = sharedPreferences.getString(HISTORY_KEY, "[]");
-            List<Map<String, Object>> sessionMaps = gson.fromJson(sessionsJson, 
-                new TypeToken<List<Map<String, Object>>>(){}.getType());
-            
-            sessions.clear();
-            for (Map<String, Object> sessionMap : sessionMaps) {
-               ChatSession session = ChatSession.fromMap(sessionMap);
-               if (session != null) {
-               sessions.add(session);
-              }
+    /**
+     * Non-null if the stored history could not be read; see {@link ChatRepository#getStorageError()}.
+     */
+    public LiveData<String> getStorageError() {
+        return repository.getStorageError();
+    }
+    
+    public ChatSession getSession(String chatId) {
+        return repository.getSession(chatId);
+    }
+    
+    public LiveData<List<SearchIndex.Hit>> getSearchResults() {
+        return searchResults;
+    }
+    
+    /**
+     * Sends only recent and relevant older messages instead of the full history when enabled.
+     * The choice is kept for later chats.
+     */
+    public void setRetrievalContextEnabled(boolean enabled) {
+        applyRetrievalContext(enabled);
+        settings.edit().putBoolean(KEY_RETRIEVAL_CONTEXT, enabled).apply();
+    }
+    
+    public boolean isRetrievalContextEnabled() {
+        return contextSelector != null;
+    }
+    
+    private void applyRetrievalContext(boolean enabled) {
+        if (enabled != isRetrievalContextEnabled()) {
+            contextSelector = enabled ? new ContextSelector() : null;
+        }
+    }
+    
+    // Search
+    public void search(String query) {
+        currentQuery = query != null ? query : "";
+        if (currentQuery.trim().isEmpty()) {
+            searchResults.setValue(null);
+            return;
+        }
+        
+        repository.search(currentQuery, SEARCH_RESULT_LIMIT, (searchedQuery, hits) -> {
+            // Drop results for queries the user has already typed past
+            if (searchedQuery.equals(currentQuery)) {
+                searchResults.setValue(hits);
             }
-            
-            chatSessions.setValue(new ArrayList<>(sessions));
-        } catch (Exception e) {
-            Log.e(TAG, "Error loading chat sessions", e);
-            sessions.clear();
-            chatSessions.setValue(new ArrayList<>());
+        });
+    }
+    
+    /**
+     * Searches by meaning instead of keywords; results replace the keyword hits for the same query.
+     */
+    public void searchByMeaning(String query) {
+        currentQuery = query != null ? query : "";
+        if (currentQuery.trim().isEmpty()) {
+            searchResults.setValue(null);
+            return;
         }
+        
+        repository.searchSimilar(currentQuery, SEARCH_RESULT_LIMIT, (searchedQuery, hits) -> {
+            if (searchedQuery.equals(currentQuery)) {
+                searchResults.setValue(hits);
+            }
+        });
     }
     
+    // Chat session management
     public void createNewChatSession(String username) {
         try {
+            cancelStream();
             String chatId = generateChatId();
             ChatSession newSession = new ChatSession(chatId, getCurrentTime());
             
@@ -103,15 +218,17 @@ public class ChatViewModel extends AndroidViewModel {
                 "Hello, I'm " + username + "! From now on you'll start calling by my name.", 
                 getCurrentTime()));
             
-            newSession.setMessages(initialMessages);
-            sessions.add(0, newSession);
-            
-            saveChatSessions();
-            chatSessions.setValue(new ArrayList<>(sessions));
+            newSession.setMessages(new ArrayList<>(initialMessages));
+            repository.addSession(newSession);
             
             currentChatId = chatId;
+            openedChat++;
+            pageRequest++;
+            pageLoading = false;
             currentMessages = new ArrayList<>(initialMessages);
-            chatMessages.setValue(new ArrayList<>(currentMessages));
+            historyLoaded = true;
+            windowStart = 0;
+            publishMessages();
             
         } catch (Exception e) {
             Log.e(TAG, "Error creating new chat session", e);
@@ -121,23 +238,40 @@ public class ChatViewModel extends AndroidViewModel {
     
     public void loadChatSession(String chatId) {
         try {
+            cancelStream();
             currentChatId = chatId;
+            openedChat++;
+            currentMessages = new ArrayList<>();
+            windowStart = 0;
+            historyLoaded = false;
+            storedStart = 0;
+            pageLoading = true;
+            int request = ++pageRequest;
+            // Blocks sending until the newest page is shown
+            isLoading.setValue(true);
             
-            for (ChatSession session : sessions) {
-                if (session.getId().equals(chatId)) {
-                    currentMessages = new ArrayList<>(session.getMessages());
-                    chatMessages.setValue(new ArrayList<>(currentMessages));
-                    return;
+            // Reading the newest page costs the same however long the chat is. Older
+            // pages are read as the list scrolls up, and the rest when a message is sent.
+            repository.loadTail(chatId, PAGE_SIZE, tail -> {
+                if (request != pageRequest) return;
+                pageLoading = false;
+                
+                ChatSession cached = repository.getSession(chatId);
+                if (tail == null || cached == null || tail == cached) {
+                    // Not found, or already in memory as a whole
+                    showHistory(tail, PAGE_SIZE);
+                } else {
+                    currentMessages = new ArrayList<>(tail.getMessages());
+                    storedStart = Math.max(0, cached.getMessageCount() - currentMessages.size());
+                    publishMessages();
                 }
-            }
-            
-            // If session not found, create empty list
-            currentMessages = new ArrayList<>();
-            chatMessages.setValue(new ArrayList<>());
+                isLoading.setValue(false);
+            });
             
         } catch (Exception e) {
             Log.e(TAG, "Error loading chat session", e);
             errorMessage.setValue("Failed to load chat");
+            isLoading.setValue(false);
         }
     }
     
@@ -146,46 +280,53 @@ public class ChatViewModel extends AndroidViewModel {
             return;
         }
         
+        if (currentChatId != null && !historyLoaded) {
+            // The request and the saved chat need the whole history, so the first send reads it
+            String chatId = currentChatId;
+            int opened = openedChat;
+            isLoading.setValue(true);
+            // Older pages would be dropped by showHistory anyway
+            pageLoading = true;
+            repository.loadSession(chatId, session -> {
+                if (opened != openedChat) return;
+                if (!historyLoaded) {
+                    showHistory(session, currentMessages.size());
+                }
+                sendMessage(messageText);
+            });
+            return;
+        }
+        
         try {
+            cancelStream();
             isLoading.setValue(true);
             
             // Add user message
             ChatMessage userMessage = new ChatMessage("user", messageText.trim(), getCurrentTime());
             currentMessages.add(userMessage);
-            chatMessages.setValue(new ArrayList<>(currentMessages));
-            
-            // Prepare conversation history for API
-            String conversationHistory = gson.toJson(convertMessagesToApiFormat(currentMessages));
+            publishMessages();
             
-            // Send to API
-            apiClient.sendMessage(messageText.trim(), conversationHistory, new ApiClient.ApiCallback() {
-                @Override
-                public void onSuccess(String response) {
-                    try {
-                        // Add AI response
-                        ChatMessage aiMessage = new ChatMessage("model", response, getCurrentTime());
-                        currentMessages.add(aiMessage);
-                        
-                        // Update UI
-                        chatMessages.postValue(new ArrayList<>(currentMessages));
-                        
-                        // Save to storage
-                        saveChatSession();
-                        
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error processing AI response", e);
-                        errorMessage.postValue("Error processing response");
-                    } finally {
-                        isLoading.postValue(false);
-                    }
-                }
-                
-                @Override
-                public void onError(String error) {
-                    Log.e(TAG, "API error: " + error);
-                    errorMessage.postValue(error);
-                    isLoading.postValue(false);
+            // The history is read off the main thread, since spilled text may have to be loaded
+            String prompt = messageText.trim();
+            StreamState stream = new StreamState(currentChatId, getCurrentTime());
+            activeStream = stream;
+            List<ChatMessage> history = new ArrayList<>(currentMessages);
+            ContextSelector selector = contextSelector;
+            requestExecutor.execute(() -> {
+                String conversationHistory;
+                try {
+                    conversationHistory = gson.toJson(convertMessagesToApiFormat(
+                        selectContext(selector, stream.chatId, history, prompt)));
+                } catch (Exception e) {
+                    Log.e(TAG, "Error preparing message history", e);
+                    mainHandler.post(() -> {
+                        if (stream != activeStream) return;
+                        errorMessage.setValue("Failed to send message");
+                        finishStream();
+                    });
+                    return;
                 }
+                mainHandler.post(() -> startStream(stream, prompt, conversationHistory));
             });
             
         } catch (Exception e) {
@@ -197,14 +338,16 @@ public class ChatViewModel extends AndroidViewModel {
     
     public void deleteChatSession(String chatId) {
         try {
-            sessions.removeIf(session -> session.getId().equals(chatId));
-            saveChatSessions();
-            chatSessions.setValue(new ArrayList<>(sessions));
+            repository.deleteSession(chatId);
             
             // If current chat was deleted, clear messages
             if (chatId.equals(currentChatId)) {
                 currentChatId = null;
+                openedChat++;
+                pageRequest++;
+                historyLoaded = true;
                 currentMessages.clear();
+                windowStart = 0;
                 chatMessages.setValue(new ArrayList<>());
             }
             
@@ -214,43 +357,224 @@ public class ChatViewModel extends AndroidViewModel {
         }
     }
     
-    private void saveChatSession() {
-        if (currentChatId == null) return;
-        
+    public void deleteChatSessions(Collection<String> chatIds) {
         try {
-            // Find and update the current session
-            for (ChatSession session : sessions) {
-                if (session.getId().equals(currentChatId)) {
-                    session.setMessages(new ArrayList<>(currentMessages));
-                    session.setLastMessageTime(getCurrentTime());
-                    break;
+            repository.batch(transaction -> {
+                for (String chatId : chatIds) {
+                    transaction.deleteSession(chatId);
                 }
-            }
+            });
             
-            saveChatSessions();
-            chatSessions.setValue(new ArrayList<>(sessions));
+            if (currentChatId != null && chatIds.contains(currentChatId)) {
+                currentChatId = null;
+                openedChat++;
+                pageRequest++;
+                historyLoaded = true;
+                currentMessages.clear();
+                windowStart = 0;
+                chatMessages.setValue(new ArrayList<>());
+            }
             
         } catch (Exception e) {
-            Log.e(TAG, "Error saving chat session", e);
+            Log.e(TAG, "Error deleting chat sessions", e);
+            errorMessage.setValue("Failed to delete chats");
+        }
+    }
+    
+    // The text stays in the reply; observers copy only the part they have not split yet
+    private void showStreamedText(StreamState stream) {
+        if (stream != activeStream || !Objects.equals(stream.chatId, currentChatId)) return;
+        if (stream.reply.length() == 0) return;
+        streamingReply.setValue(stream.reply);
+    }
+    
+    /**
+     * Adds the text received so far to the chat as a finished message.
+     * Returns false if there is none, or the chat is no longer open.
+     */
+    private boolean commitStreamedText(StreamState stream) {
+        if (!Objects.equals(stream.chatId, currentChatId) || stream.reply.length() == 0) return false;
+        currentMessages.add(stream.reply.toMessage());
+        publishMessages();
+        return true;
+    }
+    
+    /**
+     * Adds messages pulled from the sync server to the open chat, so the next
+     * save does not drop them.
+     */
+    private void onSessionSynced(ChatSession session) {
+        if (!session.getId().equals(currentChatId)) return;
+        if (!historyLoaded) {
+            // The synced session is whole, so the rest need not be read page by page
+            showHistory(session, currentMessages.size());
+            return;
+        }
+        
+        // A reply that is still streaming is added after them when it finishes
+        List<ChatMessage> merged = ChatRepository.mergeMessages(currentMessages, session.getMessages());
+        if (merged != null) {
+            currentMessages = merged;
+            publishMessages();
         }
     }
     
-    private void saveChatSessions() {
+    // Stream the reply; chunks reach the list at most once per frame
+    private void startStream(StreamState stream, String prompt, String conversationHistory) {
+        // Cancelled, or replaced by a newer prompt, while the history was prepared
+        if (stream != activeStream) return;
+        
         try {
-            List<Map<String, Object>> sessionMaps = new ArrayList<>();
-            for (ChatSession session : sessions) {
-                sessionMaps.add(session.toMap());
+            stream.call = startRequest(stream, prompt, conversationHistory);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending message", e);
+            errorMessage.setValue("Failed to send message");
+            finishStream();
+        }
+    }
+    
+    private Call startRequest(StreamState stream, String prompt, String conversationHistory) {
+        return apiClient.streamMessage(prompt, conversationHistory, new ApiClient.StreamCallback() {
+            @Override
+            public void onChunk(String text) {
+                // Runs on the OkHttp thread; other state is only touched on the main thread
+                stream.reply.append(text);
+                uiScheduler.post(STREAM_UPDATE, () -> showStreamedText(stream));
             }
             
-            String sessionsJson = gson.toJson(sessionMaps);
-            sharedPreferences.edit().putString(HISTORY_KEY, sessionsJson).apply();
+            @Override
+            public void onComplete(String fullText) {
+                // Replaces any pending chunk update, so the final text lands last
+                uiScheduler.post(STREAM_UPDATE, () -> {
+                    if (stream != activeStream) return;
+                    try {
+                        commitStreamedText(stream);
+                        saveChatSession();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error processing AI response", e);
+                        errorMessage.setValue("Error processing response");
+                    } finally {
+                        finishStream();
+                    }
+                });
+            }
             
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "API error: " + error);
+                uiScheduler.post(STREAM_UPDATE, () -> {
+                    if (stream != activeStream) return;
+                    errorMessage.setValue(error);
+                    // Keep whatever arrived before the failure
+                    if (commitStreamedText(stream)) {
+                        saveChatSession();
+                    }
+                    finishStream();
+                });
+            }
+        });
+    }
+    
+    /**
+     * Adds the previous page of the current chat to {@link #getChatMessages()},
+     * reading it from storage if the chat is not in memory as a whole. Does
+     * nothing once the whole history is shown, or while a page is being read.
+     */
+    public void loadOlderMessages() {
+        if (historyLoaded) {
+            if (windowStart == 0) return;
+            windowStart = Math.max(0, windowStart - PAGE_SIZE);
+            publishMessages();
+            return;
+        }
+        if (pageLoading || storedStart == 0) return;
+        
+        String chatId = currentChatId;
+        int from = Math.max(0, storedStart - PAGE_SIZE);
+        int count = storedStart - from;
+        int request = ++pageRequest;
+        pageLoading = true;
+        repository.loadRange(chatId, from, count, page -> {
+            if (request != pageRequest) return;
+            pageLoading = false;
+            
+            if (page == null) {
+                // The rest is still read when a message is sent
+                Log.w(TAG, "Could not read older messages of " + chatId);
+                storedStart = 0;
+            } else if (page == repository.getSession(chatId)) {
+                showHistory(page, currentMessages.size() + count);
+            } else {
+                currentMessages.addAll(0, page.getMessages());
+                storedStart = from;
+                publishMessages();
+            }
+        });
+    }
+    
+    public boolean hasOlderMessages() {
+        return historyLoaded ? windowStart > 0 : storedStart > 0;
+    }
+    
+    // Switches the current chat to its whole history, with the newest {@code shown} messages on screen
+    private void showHistory(ChatSession session, int shown) {
+        currentMessages = session != null ? new ArrayList<>(session.getMessages()) : new ArrayList<>();
+        historyLoaded = true;
+        pageRequest++;
+        pageLoading = false;
+        windowStart = Math.max(0, currentMessages.size() - shown);
+        publishMessages();
+    }
+    
+    // Publishes the messages from windowStart on; new messages are always included
+    private void publishMessages() {
+        chatMessages.setValue(new ArrayList<>(currentMessages.subList(windowStart, currentMessages.size())));
+    }
+    
+    private void finishStream() {
+        activeStream = null;
+        streamingReply.setValue(null);
+        isLoading.setValue(false);
+    }
+    
+    /**
+     * Stops a reply that is still streaming, keeping the text received so far.
+     */
+    private void cancelStream() {
+        StreamState stream = activeStream;
+        if (stream == null) return;
+        
+        if (stream.call != null) {
+            stream.call.cancel();
+        }
+        uiScheduler.cancel(STREAM_UPDATE);
+        if (commitStreamedText(stream)) {
+            saveChatSession();
+        }
+        finishStream();
+    }
+    
+    private void saveChatSession() {
+        if (currentChatId == null) return;
+        
+        try {
+            repository.updateSessionMessages(currentChatId, currentMessages, getCurrentTime());
         } catch (Exception e) {
-            Log.e(TAG, "Error saving chat sessions", e);
+            Log.e(TAG, "Error saving chat session", e);
+        }
+    }
+    
+    // Runs on the request thread; a selector is only ever used there
+    private static List<ChatMessage> selectContext(ContextSelector selector, String chatId,
+            List<ChatMessage> history, String prompt) throws IOException {
+        if (selector == null || chatId == null) {
+            return history;
         }
+        return selector.select(chatId, history, prompt);
     }
     
-    private List<HashMap<String, Object>> convertMessagesToApiFormat(List<ChatMessage> messages) {
+    private List<HashMap<String, Object>> convertMessagesToApiFormat(List<ChatMessage> messages)
+            throws IOException {
         List<HashMap<String, Object>> apiMessages = new ArrayList<>();
         
         for (ChatMessage message : messages) {
@@ -259,7 +583,7 @@ public class ChatViewModel extends AndroidViewModel {
             
             List<HashMap<String, String>> parts = new ArrayList<>();
             HashMap<String, String> textPart = new HashMap<>();
-            textPart.put("text", message.getText());
+            textPart.put("text", message.loadText());
             parts.add(textPart);
             
             apiMessage.put("parts", parts);
@@ -0,0 +1,477 @@
+package com.ibradecode.gemini;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-session file of independently deflated message blocks.
+ *
+ * Layout:
+ * <pre>
+ * magic(int) version(int) dictionaryId(int) flags(int)
+ * id(str) lastMessageTime(str) timestamp(long)
+ * messageCount(int) blockCount(int)
+ * blockTable : (firstMessage(int) messageCount(int) rawLength(int) storedLength(int) rawCrc(int)) * blockCount
+ * blocks     : [seal](deflate(message * n)) * blockCount
+ * </pre>
+ * Messages use the encoding of {@link BinarySessionFormat}. Every block is
+ * compressed against a preset dictionary of common chat text, which keeps
+ * small blocks compact, and blocks are small enough that reading the newest
+ * page of a session only inflates the tail block(s).
+ *
+ * With {@link #FLAG_ENCRYPTED} every block is sealed on its own by a
+ * {@link StorageCipher}; the header and block table stay readable. When a
+ * session is re-encoded over its previous file, completed blocks whose
+ * messages are unchanged (same raw CRC) are copied as they are, so an
+ * append compresses and encrypts only the tail.
+ *
+ * Version 3 files hold messages in version 2 of the message encoding, whose
+ * spilled and id flags an older reader would misparse, so older readers
+ * reject them. Version 2 files (flags and CRCs) and version 1 files (neither)
+ * are still read; their messages decode the same way.
+ */
+public class CompressedSessionFile {
+
+    static final int MAGIC = 0x474D5A31; // "GMZ1"
+    // Bump together with BinarySessionFormat.VERSION
+    static final int VERSION = 3;
+    static final int FLAG_ENCRYPTED = 1;
+
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    static final int MAX_BLOCK_MESSAGES = 32;
+    static final int MAX_BLOCK_BYTES = 16 * 1024;
+    private static final int BLOCK_ENTRY_SIZE_V1 = 16;
+    private static final int BLOCK_ENTRY_SIZE = 20;
+
+    // Phrases, words and markup that recur in chat transcripts (Indonesian and
+    // English). Deflate matches against the end of the dictionary first, so the
+    // most frequent material is placed last.
+    private static final byte[] DICTIONARY = (
+        "function class public private static return import const let var def " +
+        "if (else {for (while (try {catch (new String int void null true false " +
+        "```java\n```python\n```javascript\n```kotlin\n```bash\n```json\n```\n" +
+        "| --- | --- |\n| Nama | Keterangan |\n" +
+        "Here is an example of how to Let me know if you have any other questions! " +
+        "I hope this helps. You can use the following code: For example, " +
+        "This is because the Note that Make sure to In this case, " +
+        "berikut contoh kode yang bisa kamu pakai: misalnya, kalau kamu mau " +
+        "semoga membantu ya! jangan ragu buat tanya lagi yaa 😁 hehe " +
+        "jadi intinya, pertama, kedua, ketiga, selain itu, karena itu, " +
+        "aku bisa bantu kamu untuk dengan yang dan di ke dari ini itu ada tidak " +
+        "apa bagaimana kenapa gimana bisa nggak gak udah sudah belum juga aja " +
+        "the and to of a in is that it for you with on this be are as can " +
+        "\n\n* **\n\n1. **\n2. **\n3. **\n\n### \n\n## \n\n# " +
+        "Of course ! From now on I'll start speaking to you by your name. " +
+        "Hello, I'm ! From now on you'll start calling by my name. " +
+        "gemini ibra decode "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final int DICTIONARY_ID = dictionaryId(DICTIONARY);
+
+    private CompressedSessionFile() {
+    }
+
+    /**
+     * Metadata and block table of a session file, without any message data.
+     */
+    public static class Header {
+        public String id;
+        public String lastMessageTime;
+        public long timestamp;
+        public int messageCount;
+        int version;
+        int flags;
+        int[] blockFirstMessage;
+        int[] blockMessageCount;
+        int[] blockRawLength;
+        int[] blockStoredLength;
+        int[] blockCrc;
+        long[] blockOffset;
+
+        public int getBlockCount() {
+            return blockFirstMessage.length;
+        }
+
+        public boolean isEncrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+    }
+
+    // Writing
+
+    public static byte[] encode(ChatSession session, int level) throws IOException {
+        return encode(session, level, MAX_BLOCK_MESSAGES, MAX_BLOCK_BYTES, null, null);
+    }
+
+    /**
+     * Encodes with custom block limits; larger blocks compress better but make tail reads inflate more.
+     */
+    public static byte[] encode(ChatSession session, int level, int maxBlockMessages, int maxBlockBytes)
+            throws IOException {
+        return encode(session, level, maxBlockMessages, maxBlockBytes, null, null);
+    }
+
+    public static byte[] encode(ChatSession session, int level, StorageCipher cipher, File previous)
+            throws IOException {
+        return encode(session, level, MAX_BLOCK_MESSAGES, MAX_BLOCK_BYTES, cipher, previous);
+    }
+
+    /**
+     * Encodes the session, sealing every block with {@code cipher} unless it is
+     * null. If {@code previous} is an earlier file of the same session written
+     * with the same settings, its unchanged completed blocks are reused.
+     */
+    public static byte[] encode(ChatSession session, int level, int maxBlockMessages, int maxBlockBytes,
+            StorageCipher cipher, File previous) throws IOException {
+        List<ChatMessage> messages = session.getMessages();
+        int flags = cipher != null ? FLAG_ENCRYPTED : 0;
+
+        List<int[]> table = new ArrayList<>();
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(level);
+        RandomAccessFile previousFile = null;
+        try {
+            ByteBuffer previousBuffer = null;
+            Header previousHeader = null;
+            if (previous != null && previous.exists()) {
+                try {
+                    previousFile = new RandomAccessFile(previous, "r");
+                    previousBuffer = map(previousFile);
+                    previousHeader = parseHeader(previousBuffer);
+                    if (previousHeader.version != VERSION || previousHeader.flags != flags
+                            || !previousHeader.id.equals(session.getId())) {
+                        previousHeader = null;
+                    }
+                } catch (IOException e) {
+                    // Unreadable previous file; encode everything
+                    previousHeader = null;
+                }
+            }
+
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            DataOutputStream rawOut = new DataOutputStream(raw);
+            CRC32 crc = new CRC32();
+            int i = 0;
+            while (i < messages.size()) {
+                int block = table.size();
+                if (previousHeader != null) {
+                    if (canReuseBlock(previousHeader, block, i, messages, maxBlockMessages, maxBlockBytes,
+                            raw, rawOut, crc)) {
+                        blocks.write(readStoredBlock(previousBuffer, previousHeader, block));
+                        table.add(new int[] {i, previousHeader.blockMessageCount[block], raw.size(),
+                            previousHeader.blockStoredLength[block], (int) crc.getValue()});
+                        i += previousHeader.blockMessageCount[block];
+                        continue;
+                    }
+                    // Everything from the first changed block on is written fresh
+                    previousHeader = null;
+                }
+
+                raw.reset();
+                int blockStart = i;
+                while (i < messages.size()) {
+                    BinarySessionFormat.writeMessage(rawOut, messages.get(i++));
+                    if (i - blockStart >= maxBlockMessages || raw.size() >= maxBlockBytes) break;
+                }
+                byte[] plain = raw.toByteArray();
+                byte[] stored = deflate(deflater, plain);
+                if (cipher != null) {
+                    stored = cipher.seal(stored, session.getId(), block);
+                }
+                crc.reset();
+                crc.update(plain, 0, plain.length);
+                table.add(new int[] {blockStart, i - blockStart, plain.length, stored.length, (int) crc.getValue()});
+                blocks.write(stored);
+            }
+        } finally {
+            deflater.end();
+            if (previousFile != null) {
+                previousFile.close();
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(blocks.size() + 256);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(DICTIONARY_ID);
+        header.writeInt(flags);
+        BinarySessionFormat.writeString(header, session.getId());
+        BinarySessionFormat.writeString(header, session.getLastMessageTime());
+        header.writeLong(session.getTimestamp());
+        header.writeInt(messages.size());
+        header.writeInt(table.size());
+        for (int[] entry : table) {
+            for (int value : entry) {
+                header.writeInt(value);
+            }
+        }
+        blocks.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Whether block {@code block} of the previous file is complete and holds
+     * exactly the messages starting at {@code first}. Leaves the raw encoding
+     * of those messages in {@code raw} and its checksum in {@code crc}.
+     */
+    private static boolean canReuseBlock(Header previous, int block, int first, List<ChatMessage> messages,
+            int maxBlockMessages, int maxBlockBytes, ByteArrayOutputStream raw, DataOutputStream rawOut,
+            CRC32 crc) throws IOException {
+        if (block >= previous.getBlockCount() || previous.blockFirstMessage[block] != first) return false;
+
+        int count = previous.blockMessageCount[block];
+        // A block that ended only because the session ended would have grown
+        boolean complete = block < previous.getBlockCount() - 1
+            || count >= maxBlockMessages || previous.blockRawLength[block] >= maxBlockBytes;
+        if (!complete || first + count > messages.size()) return false;
+
+        raw.reset();
+        for (int i = first; i < first + count; i++) {
+            BinarySessionFormat.writeMessage(rawOut, messages.get(i));
+        }
+        if (raw.size() != previous.blockRawLength[block]) return false;
+        crc.reset();
+        crc.update(raw.toByteArray(), 0, raw.size());
+        return (int) crc.getValue() == previous.blockCrc[block];
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 3));
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    // Reading
+
+    public static Header readHeader(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return parseHeader(map(raf));
+        }
+    }
+
+    public static ChatSession read(File file) throws IOException {
+        return readRange(file, 0, Integer.MAX_VALUE, null);
+    }
+
+    public static ChatSession read(File file, StorageCipher cipher) throws IOException {
+        return readRange(file, 0, Integer.MAX_VALUE, cipher, null);
+    }
+
+    /**
+     * Reads the whole session; spilled messages load their text from {@code blobs}.
+     */
+    public static ChatSession read(File file, StorageCipher cipher, BlobStore blobs) throws IOException {
+        return readRange(file, 0, Integer.MAX_VALUE, cipher, blobs);
+    }
+
+    /**
+     * Reads the session with only its newest {@code count} messages.
+     */
+    public static ChatSession readTail(File file, int count) throws IOException {
+        return readTail(file, count, null);
+    }
+
+    public static ChatSession readTail(File file, int count, StorageCipher cipher) throws IOException {
+        return readTail(file, count, cipher, null);
+    }
+
+    public static ChatSession readTail(File file, int count, StorageCipher cipher, BlobStore blobs)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer = map(raf);
+            Header header = parseHeader(buffer);
+            return toSession(header, readMessages(buffer, header,
+                Math.max(0, header.messageCount - count), header.messageCount, cipher, blobs));
+        }
+    }
+
+    /**
+     * Reads the session with the messages in {@code [from, from + limit)}. Only
+     * blocks overlapping the range are decrypted and inflated.
+     */
+    public static ChatSession readRange(File file, int from, int limit) throws IOException {
+        return readRange(file, from, limit, null);
+    }
+
+    public static ChatSession readRange(File file, int from, int limit, StorageCipher cipher) throws IOException {
+        return readRange(file, from, limit, cipher, null);
+    }
+
+    public static ChatSession readRange(File file, int from, int limit, StorageCipher cipher, BlobStore blobs)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer = map(raf);
+            Header header = parseHeader(buffer);
+            int start = Math.max(0, Math.min(from, header.messageCount));
+            int end = (int) Math.min((long) start + limit, header.messageCount);
+            return toSession(header, readMessages(buffer, header, start, end, cipher, blobs));
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf) throws IOException {
+        FileChannel channel = raf.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    private static Header parseHeader(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a compressed session file");
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported compressed session version: " + version);
+            }
+            int dictionaryId = buffer.getInt();
+            if (dictionaryId != DICTIONARY_ID) {
+                throw new IOException("Unknown compression dictionary: " + dictionaryId);
+            }
+
+            Header header = new Header();
+            header.version = version;
+            header.flags = version >= 2 ? buffer.getInt() : 0;
+            header.id = BinarySessionFormat.readString(buffer);
+            header.lastMessageTime = BinarySessionFormat.readString(buffer);
+            header.timestamp = buffer.getLong();
+            header.messageCount = buffer.getInt();
+
+            int blockCount = buffer.getInt();
+            int entrySize = version >= 2 ? BLOCK_ENTRY_SIZE : BLOCK_ENTRY_SIZE_V1;
+            if (blockCount < 0 || (long) blockCount * entrySize > buffer.remaining()) {
+                throw new IOException("Corrupt block table");
+            }
+            header.blockFirstMessage = new int[blockCount];
+            header.blockMessageCount = new int[blockCount];
+            header.blockRawLength = new int[blockCount];
+            header.blockStoredLength = new int[blockCount];
+            header.blockCrc = new int[blockCount];
+            header.blockOffset = new long[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                header.blockFirstMessage[i] = buffer.getInt();
+                header.blockMessageCount[i] = buffer.getInt();
+                header.blockRawLength[i] = buffer.getInt();
+                header.blockStoredLength[i] = buffer.getInt();
+                if (version >= 2) {
+                    header.blockCrc[i] = buffer.getInt();
+                }
+            }
+
+            long offset = buffer.position();
+            for (int i = 0; i < blockCount; i++) {
+                header.blockOffset[i] = offset;
+                offset += header.blockStoredLength[i];
+            }
+            if (offset > buffer.limit()) {
+                throw new IOException("Truncated session file");
+            }
+            return header;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt session file", e);
+        }
+    }
+
+    private static List<ChatMessage> readMessages(ByteBuffer buffer, Header header, int start, int end,
+            StorageCipher cipher, BlobStore blobs) throws IOException {
+        List<ChatMessage> messages = new ArrayList<>(Math.max(0, end - start));
+        if (start >= end) return messages;
+        if (header.isEncrypted() && cipher == null) {
+            throw new IOException("Session " + header.id + " is encrypted");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            for (int block = 0; block < header.getBlockCount(); block++) {
+                int first = header.blockFirstMessage[block];
+                int last = first + header.blockMessageCount[block];
+                if (last <= start || first >= end) continue;
+
+                byte[] stored = readStoredBlock(buffer, header, block);
+                if (header.isEncrypted()) {
+                    stored = cipher.open(stored, header.id, block);
+                }
+                ByteBuffer raw = ByteBuffer.wrap(inflateBlock(inflater, stored, header.blockRawLength[block]));
+                for (int i = first; i < last; i++) {
+                    ChatMessage message = BinarySessionFormat.readMessage(raw, blobs);
+                    if (i >= start && i < end) {
+                        messages.add(message);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt message block", e);
+        } finally {
+            inflater.end();
+        }
+        return messages;
+    }
+
+    private static byte[] readStoredBlock(ByteBuffer buffer, Header header, int block) {
+        byte[] stored = new byte[header.blockStoredLength[block]];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) header.blockOffset[block]);
+        slice.get(stored);
+        return stored;
+    }
+
+    private static byte[] inflateBlock(Inflater inflater, byte[] compressed, int rawLength)
+            throws IOException {
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int total = 0;
+            while (total < raw.length) {
+                int count = inflater.inflate(raw, total, raw.length - total);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Truncated message block");
+                    }
+                }
+                total += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt message block", e);
+        }
+        return raw;
+    }
+
+    private static ChatSession toSession(Header header, List<ChatMessage> messages) {
+        ChatSession session = new ChatSession(header.id, header.lastMessageTime);
+        session.setMessages(messages);
+        session.setLastMessageTime(header.lastMessageTime);
+        session.setTimestamp(header.timestamp);
+        return session;
+    }
+
+    private static int dictionaryId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return (int) adler.getValue();
+    }
+}
@@ -0,0 +1,174 @@
+package com.ibradecode.gemini;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Chooses which messages of a long conversation are sent with a new prompt.
+ *
+ * Instead of the whole history, the request carries the first
+ * {@code pinnedMessages} (the introduction), the last {@code recentMessages}
+ * and the {@code topK} older messages that are most relevant to the prompt,
+ * in their original order. Relevance is BM25 over the terms of each message,
+ * from a per-session index that is extended as messages are appended, and
+ * rebuilt when a message before the end changed, e.g. one merged in by sync. A
+ * selected message brings its partner along (the question with its answer),
+ * so the model sees whole turns.
+ *
+ * Not thread-safe; {@link ChatViewModel} uses it on its request thread.
+ */
+public class ContextSelector {
+
+    public static final int DEFAULT_PINNED_MESSAGES = 2;
+    public static final int DEFAULT_RECENT_MESSAGES = 8;
+    public static final int DEFAULT_TOP_K = 6;
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    private final int pinnedMessages;
+    private final int recentMessages;
+    private final int topK;
+
+    private String indexedSessionId;
+    private SessionTermIndex index;
+
+    public ContextSelector() {
+        this(DEFAULT_PINNED_MESSAGES, DEFAULT_RECENT_MESSAGES, DEFAULT_TOP_K);
+    }
+
+    public ContextSelector(int pinnedMessages, int recentMessages, int topK) {
+        this.pinnedMessages = pinnedMessages;
+        this.recentMessages = recentMessages;
+        this.topK = topK;
+    }
+
+    /**
+     * Returns the messages of {@code history} to send with {@code prompt}, in
+     * chronological order. Short histories are returned unchanged.
+     */
+    public List<ChatMessage> select(String sessionId, List<ChatMessage> history, String prompt)
+            throws IOException {
+        int size = history.size();
+        if (size <= pinnedMessages + recentMessages + topK * 2) {
+            return new ArrayList<>(history);
+        }
+
+        if (index == null || !sessionId.equals(indexedSessionId) || !index.isPrefixOf(history)) {
+            index = new SessionTermIndex();
+            indexedSessionId = sessionId;
+        }
+        index.update(history);
+
+        int olderStart = Math.min(pinnedMessages, size);
+        int recentStart = Math.max(olderStart, size - recentMessages);
+
+        TreeSet<Integer> selected = new TreeSet<>();
+        for (int i = 0; i < olderStart; i++) {
+            selected.add(i);
+        }
+        for (int i = recentStart; i < size; i++) {
+            selected.add(i);
+        }
+        for (int i : index.topMatches(TextTokenizer.tokenize(prompt), olderStart, recentStart, topK)) {
+            selected.add(i);
+            int partner = history.get(i).isFromUser() ? i + 1 : i - 1;
+            if (partner >= olderStart && partner < recentStart) {
+                selected.add(partner);
+            }
+        }
+
+        List<ChatMessage> context = new ArrayList<>(selected.size());
+        for (int i : selected) {
+            context.add(history.get(i));
+        }
+        return context;
+    }
+
+    /**
+     * Inverted index over the messages of one session, extended incrementally.
+     */
+    private static class SessionTermIndex {
+        private final Map<String, List<int[]>> postings = new HashMap<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        // Id of the message at each indexed position
+        private final List<String> messageIds = new ArrayList<>();
+        private long totalLength;
+
+        /**
+         * True if the indexed messages are still the first ones of {@code messages}.
+         */
+        boolean isPrefixOf(List<ChatMessage> messages) {
+            if (messageIds.size() > messages.size()) return false;
+            for (int i = 0; i < messageIds.size(); i++) {
+                if (!messageIds.get(i).equals(messages.get(i).getId())) return false;
+            }
+            return true;
+        }
+
+        void update(List<ChatMessage> messages) throws IOException {
+            for (int i = lengths.size(); i < messages.size(); i++) {
+                List<String> terms = TextTokenizer.tokenize(messages.get(i).loadText());
+                Map<String, Integer> frequencies = new HashMap<>();
+                for (String term : terms) {
+                    Integer frequency = frequencies.get(term);
+                    frequencies.put(term, frequency != null ? frequency + 1 : 1);
+                }
+                for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                    List<int[]> list = postings.get(entry.getKey());
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        postings.put(entry.getKey(), list);
+                    }
+                    list.add(new int[] {i, entry.getValue()});
+                }
+                lengths.add(terms.size());
+                messageIds.add(messages.get(i).getId());
+                totalLength += terms.size();
+            }
+        }
+
+        /**
+         * Indexes in {@code [from, to)} with the highest BM25 score for the query, best first.
+         */
+        List<Integer> topMatches(List<String> query, int from, int to, int limit) {
+            List<Integer> matches = new ArrayList<>();
+            if (lengths.isEmpty() || limit <= 0) return matches;
+
+            float averageLength = (float) totalLength / lengths.size();
+            Map<Integer, Float> scores = new HashMap<>();
+            for (String term : new TreeSet<>(query)) {
+                List<int[]> list = postings.get(term);
+                if (list == null) continue;
+
+                float idf = (float) Math.log(1 + (lengths.size() - list.size() + 0.5) / (list.size() + 0.5));
+                for (int[] posting : list) {
+                    int message = posting[0];
+                    if (message < from || message >= to) continue;
+                    float norm = K1 * (1 - B + B * lengths.get(message) / averageLength);
+                    float value = idf * posting[1] * (K1 + 1) / (posting[1] + norm);
+                    Float score = scores.get(message);
+                    scores.put(message, score != null ? score + value : value);
+                }
+            }
+
+            PriorityQueue<Map.Entry<Integer, Float>> best = new PriorityQueue<>(limit + 1,
+                (a, b) -> Float.compare(a.getValue(), b.getValue()));
+            for (Map.Entry<Integer, Float> entry : scores.entrySet()) {
+                best.add(entry);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            while (!best.isEmpty()) {
+                matches.add(0, best.poll().getKey());
+            }
+            return matches;
+        }
+    }
+}
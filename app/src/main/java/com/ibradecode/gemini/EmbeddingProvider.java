@@ -0,0 +1,26 @@
+package com.ibradecode.gemini;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Turns text into embedding vectors for semantic search.
+ *
+ * Implementations are called off the main thread and may block, e.g. on a
+ * network request. Vectors of one provider are only comparable with each
+ * other, so a stored index is discarded when {@link #getModelId()} or
+ * {@link #getDimensions()} changes.
+ */
+public interface EmbeddingProvider {
+
+    String getModelId();
+
+    int getDimensions();
+
+    /**
+     * Embeds each text, returning one vector of {@link #getDimensions()} floats
+     * per text in the same order. {@code query} is true for search queries and
+     * false for stored messages.
+     */
+    float[][] embed(List<String> texts, boolean query) throws IOException;
+}
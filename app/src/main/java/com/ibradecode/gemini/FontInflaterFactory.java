@@ -0,0 +1,63 @@
+package com.ibradecode.gemini;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.app.AppCompatDelegate;
+import androidx.core.view.LayoutInflaterCompat;
+
+/**
+ * Gives every text view the app font as it is inflated.
+ *
+ * Views are still created by AppCompat, so its widget substitution keeps
+ * working; text views then get the font from the {@link ResourceCache},
+ * keeping their bold or italic style. Views that ask for a monospace face
+ * keep it. This covers layouts inflated later, such as list rows, without
+ * walking the view tree.
+ */
+public class FontInflaterFactory implements LayoutInflater.Factory2 {
+
+    private final AppCompatDelegate delegate;
+    private final Typeface typeface;
+
+    private FontInflaterFactory(AppCompatDelegate delegate, Typeface typeface) {
+        this.delegate = delegate;
+        this.typeface = typeface;
+    }
+
+    /**
+     * Must be called before {@code super.onCreate()}, while the activity's
+     * inflater has no factory yet.
+     */
+    public static void install(AppCompatActivity activity) {
+        Typeface typeface = ResourceCache.getInstance(activity).getTypeface();
+        LayoutInflaterCompat.setFactory2(activity.getLayoutInflater(),
+            new FontInflaterFactory(activity.getDelegate(), typeface));
+    }
+
+    @Override
+    public View onCreateView(View parent, String name, Context context, AttributeSet attrs) {
+        View view = delegate.createView(parent, name, context, attrs);
+        if (view instanceof TextView) {
+            applyTypeface((TextView) view);
+        }
+        return view;
+    }
+
+    @Override
+    public View onCreateView(String name, Context context, AttributeSet attrs) {
+        return onCreateView(null, name, context, attrs);
+    }
+
+    private void applyTypeface(TextView view) {
+        Typeface current = view.getTypeface();
+        if (current == Typeface.MONOSPACE) return;
+        int style = current != null ? current.getStyle() : Typeface.NORMAL;
+        view.setTypeface(typeface, style);
+    }
+}
@@ -0,0 +1,181 @@
+package com.ibradecode.gemini;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.MainThread;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces UI updates to at most one pass per display frame.
+ *
+ * Updates are posted under a key from any thread; a later update replaces a
+ * pending one with the same key, so a burst of streamed chunks or scroll
+ * requests between two frames costs a single model update and layout pass.
+ * Pending updates run together on the main thread from a
+ * {@link Choreographer} frame callback.
+ *
+ * When frames are dropped, or the updates themselves use up much of the
+ * frame budget, the scheduler skips frames before the next pass (up to
+ * {@link #MAX_SKIPPED_FRAMES}) and returns to every frame once frames are
+ * on time again.
+ */
+public class FrameUpdateScheduler implements Choreographer.FrameCallback {
+
+    private static final long DEFAULT_FRAME_NANOS = 16_666_667L;
+    // Shorter deltas are callback jitter, not a faster display
+    private static final long MIN_FRAME_NANOS = 4_000_000L;
+    private static final int MAX_SKIPPED_FRAMES = 3;
+    // Frames late by more than half an interval count as dropped
+    private static final float JANK_FACTOR = 1.5f;
+    // On-time frames needed before updating more often again
+    private static final int RECOVERY_FRAMES = 10;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final Map<Object, Runnable> pending = new LinkedHashMap<>();
+    private boolean frameRequested;
+
+    // Main thread only
+    private Choreographer choreographer;
+    private long frameIntervalNanos = DEFAULT_FRAME_NANOS;
+    private long lastFrameNanos;
+    private int skipFrames;
+    private int framesUntilUpdate;
+    private int onTimeFrames;
+    private boolean released;
+
+    /**
+     * Runs {@code update} on the main thread with the next batch, replacing
+     * any pending update with the same key. May be called from any thread.
+     */
+    public void post(Object key, Runnable update) {
+        synchronized (lock) {
+            pending.put(key, update);
+            if (frameRequested) return;
+            frameRequested = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            requestFrame();
+        } else {
+            mainHandler.post(this::requestFrame);
+        }
+    }
+
+    public void cancel(Object key) {
+        synchronized (lock) {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Runs every pending update now instead of waiting for a frame.
+     */
+    @MainThread
+    public void flush() {
+        runPending();
+    }
+
+    /**
+     * Drops pending updates and stops scheduling frames.
+     */
+    @MainThread
+    public void release() {
+        released = true;
+        synchronized (lock) {
+            pending.clear();
+        }
+        if (choreographer != null) {
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    /**
+     * Frames currently skipped between update passes; 0 while keeping up.
+     */
+    @MainThread
+    public int getSkippedFrames() {
+        return skipFrames;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (released) return;
+
+        if (lastFrameNanos != 0) {
+            adjustBackoff(frameTimeNanos - lastFrameNanos);
+        }
+        lastFrameNanos = frameTimeNanos;
+
+        if (framesUntilUpdate > 0) {
+            framesUntilUpdate--;
+            choreographer.postFrameCallback(this);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean ran = runPending();
+        if (System.nanoTime() - start > frameIntervalNanos / 2) {
+            // The updates alone take most of a frame; give layout and drawing room
+            increaseBackoff();
+        }
+        framesUntilUpdate = skipFrames;
+
+        synchronized (lock) {
+            if (pending.isEmpty() && !ran) {
+                // Nothing arrived for a whole frame; idle until the next post
+                frameRequested = false;
+                lastFrameNanos = 0;
+                return;
+            }
+        }
+        choreographer.postFrameCallback(this);
+    }
+
+    private void requestFrame() {
+        if (released) return;
+        if (choreographer == null) {
+            choreographer = Choreographer.getInstance();
+        }
+        choreographer.postFrameCallback(this);
+    }
+
+    private boolean runPending() {
+        List<Runnable> updates;
+        synchronized (lock) {
+            if (pending.isEmpty()) return false;
+            updates = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Runnable update : updates) {
+            update.run();
+        }
+        return true;
+    }
+
+    private void adjustBackoff(long deltaNanos) {
+        if (deltaNanos <= 0) return;
+        if (deltaNanos < frameIntervalNanos && deltaNanos >= MIN_FRAME_NANOS) {
+            // Faster display than assumed (90 or 120 Hz)
+            frameIntervalNanos = deltaNanos;
+        }
+
+        if (deltaNanos > frameIntervalNanos * JANK_FACTOR) {
+            increaseBackoff();
+        } else if (skipFrames > 0 && ++onTimeFrames >= RECOVERY_FRAMES) {
+            skipFrames--;
+            onTimeFrames = 0;
+        }
+    }
+
+    private void increaseBackoff() {
+        skipFrames = Math.min(MAX_SKIPPED_FRAMES, skipFrames + 1);
+        onTimeFrames = 0;
+    }
+}
@@ -0,0 +1,145 @@
+package com.ibradecode.gemini;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Durable atomic file writes with group commit.
+ *
+ * Concurrent writers join the currently open batch; one of them becomes the
+ * leader and commits the whole batch (write temp files, fsync, rename) while
+ * the others wait. Writes to the same file inside one batch are coalesced, so
+ * a burst of saves costs one fsync per file rather than one per save. Each
+ * {@link #write(File, byte[])} returns only once its data (or newer data for
+ * the same file) is durable.
+ *
+ * If any file of a batch fails to write, none is renamed after the failure:
+ * files whose temp write failed, and every file not yet renamed, report an
+ * error to their writers. A file written after the files it refers to, such
+ * as a manifest, therefore never lands without them.
+ */
+public class GroupCommitWriter {
+
+    private static final GroupCommitWriter DEFAULT = new GroupCommitWriter();
+
+    private static class Batch {
+        final Map<File, byte[]> writes = new LinkedHashMap<>();
+        final Map<File, IOException> errors = new HashMap<>();
+        boolean done;
+    }
+
+    private final Object lock = new Object();
+    private Batch openBatch = new Batch();
+    private boolean committing;
+
+    public static GroupCommitWriter getDefault() {
+        return DEFAULT;
+    }
+
+    public void write(File target, byte[] data) throws IOException {
+        writeAll(Collections.singletonMap(target, data));
+    }
+
+    /**
+     * Writes several files in the same batch. Files are renamed into place in
+     * iteration order, after all of them have been fsynced.
+     */
+    public void writeAll(Map<File, byte[]> files) throws IOException {
+        List<File> keys = new ArrayList<>(files.size());
+        Batch batch;
+        boolean leader = false;
+
+        synchronized (lock) {
+            batch = openBatch;
+            for (Map.Entry<File, byte[]> entry : files.entrySet()) {
+                File key = entry.getKey().getAbsoluteFile();
+                // Re-insert so the file keeps the order of its latest writer
+                batch.writes.remove(key);
+                batch.writes.put(key, entry.getValue());
+                keys.add(key);
+            }
+
+            while (!batch.done) {
+                if (!committing && openBatch == batch) {
+                    // Close the batch; later writers start the next one
+                    committing = true;
+                    openBatch = new Batch();
+                    leader = true;
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for group commit", e);
+                }
+            }
+        }
+
+        if (leader) {
+            try {
+                commit(batch);
+            } finally {
+                synchronized (lock) {
+                    batch.done = true;
+                    committing = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        for (File key : keys) {
+            IOException error = batch.errors.get(key);
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private void commit(Batch batch) {
+        Map<File, File> temps = new LinkedHashMap<>();
+        IOException failure = null;
+        for (Map.Entry<File, byte[]> entry : batch.writes.entrySet()) {
+            try {
+                temps.put(entry.getKey(), FileUtil.writeTempFile(entry.getKey(), entry.getValue()));
+            } catch (IOException e) {
+                batch.errors.put(entry.getKey(), e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        // A later file may refer to an earlier one (the session manifest does), so nothing
+        // is moved into place after a failed write
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Map.Entry<File, File> entry : temps.entrySet()) {
+            File target = entry.getKey();
+            if (failure != null) {
+                entry.getValue().delete();
+                batch.errors.put(target, new IOException("Not written because another write in the batch failed",
+                    failure));
+                continue;
+            }
+            try {
+                FileUtil.commitTempFile(entry.getValue(), target);
+                dirs.add(target.getParentFile());
+            } catch (IOException e) {
+                batch.errors.put(target, e);
+                failure = e;
+            }
+        }
+
+        for (File dir : dirs) {
+            FileUtil.syncDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.ibradecode.gemini;
+
+import java.util.List;
+
+/**
+ * Offline stand-in for the embeddings endpoint.
+ *
+ * Hashes the normalized terms of a text, plus character trigrams for
+ * robustness against spelling variants, into a fixed number of buckets
+ * with random signs. Vectors only capture lexical overlap, but they are
+ * deterministic and need no network, which makes them suitable for tests
+ * and as a fallback.
+ */
+public class HashingEmbeddingProvider implements EmbeddingProvider {
+
+    public static final int DEFAULT_DIMENSIONS = 256;
+    private static final float TRIGRAM_WEIGHT = 0.5f;
+
+    private final int dimensions;
+
+    public HashingEmbeddingProvider() {
+        this(DEFAULT_DIMENSIONS);
+    }
+
+    public HashingEmbeddingProvider(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public String getModelId() {
+        return "hashing-v1";
+    }
+
+    @Override
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public float[][] embed(List<String> texts, boolean query) {
+        float[][] vectors = new float[texts.size()][];
+        for (int i = 0; i < texts.size(); i++) {
+            vectors[i] = embed(texts.get(i));
+        }
+        return vectors;
+    }
+
+    private float[] embed(String text) {
+        float[] vector = new float[dimensions];
+        for (String term : TextTokenizer.tokenize(text)) {
+            add(vector, term.hashCode(), 1f);
+            String padded = "^" + term + "$";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                add(vector, padded.substring(i, i + 3).hashCode() * 31 + 7, TRIGRAM_WEIGHT);
+            }
+        }
+        return vector;
+    }
+
+    private void add(float[] vector, int hash, float weight) {
+        int mixed = hash * 0x9E3779B9;
+        int bucket = (mixed >>> 1) % dimensions;
+        vector[bucket] += (mixed & 1) == 0 ? weight : -weight;
+    }
+}
@@ -0,0 +1,102 @@
+package com.ibradecode.gemini;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs {@link ChatBackup} exports and imports against the session store in
+ * the background, delivering progress and results on the main thread.
+ */
+public class HistoryBackup {
+    private static final String TAG = "HistoryBackup";
+    private static final int IMPORT_PUBLISH_BATCH = 32;
+
+    /**
+     * Receives the headers of imported sessions, in batches, on the
+     * persistence thread. The sessions are already written to the store.
+     */
+    public interface ImportSink {
+        void onImported(List<ChatSession> headers);
+    }
+
+    private final SessionStore store;
+    private final PersistenceExecutor persistenceExecutor;
+    private final SearchIndexer searchIndexer;
+    private final Handler mainHandler;
+    private final ExecutorService backupExecutor = Executors.newSingleThreadExecutor(runnable ->
+        new Thread(runnable, "chat-backup"));
+
+    public HistoryBackup(SessionStore store, PersistenceExecutor persistenceExecutor,
+            SearchIndexer searchIndexer, Handler mainHandler) {
+        this.store = store;
+        this.persistenceExecutor = persistenceExecutor;
+        this.searchIndexer = searchIndexer;
+        this.mainHandler = mainHandler;
+    }
+
+    /**
+     * Exports {@code sessionIds} to {@code target} once pending writes are done.
+     */
+    public void export(List<String> sessionIds, File target, ChatRepository.BackupListener listener) {
+        // Export reads the store only, so it just has to wait for pending writes
+        persistenceExecutor.execute(() -> backupExecutor.execute(() -> {
+            try {
+                ChatBackup.Result result = new ChatBackup().export(sessionIds, store::loadSession, target,
+                    (done, total) -> mainHandler.post(() -> listener.onProgress(done, total)));
+                mainHandler.post(() -> listener.onFinished(result, null));
+            } catch (Exception e) {
+                Log.e(TAG, "Error exporting chat history", e);
+                mainHandler.post(() -> listener.onFinished(null, e));
+            }
+        }));
+    }
+
+    /**
+     * Merges the sessions of a backup into the store on the persistence
+     * thread and hands their headers to {@code sink}.
+     */
+    public void importFrom(File source, ChatRepository.BackupListener listener, ImportSink sink) {
+        persistenceExecutor.execute(() -> {
+            List<ChatSession> imported = new ArrayList<>();
+            try {
+                ChatBackup.Result result = new ChatBackup().importFrom(source, new ChatBackup.SessionSink() {
+                    @Override
+                    public ChatSession loadExisting(String sessionId) {
+                        return store.loadSession(sessionId);
+                    }
+
+                    @Override
+                    public void write(ChatSession session, boolean created) throws IOException {
+                        store.writeSession(session);
+                        searchIndexer.onSessionWritten(session);
+                        imported.add(session.toHeader());
+                        if (imported.size() >= IMPORT_PUBLISH_BATCH) {
+                            publish(imported, sink);
+                        }
+                    }
+                }, (done, total) -> mainHandler.post(() -> listener.onProgress(done, total)));
+                publish(imported, sink);
+                mainHandler.post(() -> listener.onFinished(result, null));
+            } catch (Exception e) {
+                Log.e(TAG, "Error importing chat history", e);
+                publish(imported, sink);
+                mainHandler.post(() -> listener.onFinished(null, e));
+            }
+        });
+    }
+
+    private static void publish(List<ChatSession> headers, ImportSink sink) {
+        if (headers.isEmpty()) return;
+
+        List<ChatSession> batch = new ArrayList<>(headers);
+        headers.clear();
+        sink.onImported(batch);
+    }
+}
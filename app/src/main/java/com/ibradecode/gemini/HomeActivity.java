@@ -5,15 +5,18 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Typeface;
 import android.graphics.drawable.GradientDrawable;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ListView;
@@ -25,7 +28,9 @@ import androidx.lifecycle.ViewModelProvider;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class HomeActivity extends AppCompatActivity {
     private static final String TAG = "HomeActivity";
@@ -38,11 +43,15 @@ public class HomeActivity extends AppCompatActivity {
     private LinearLayout emptyStateLayout;
     private LinearLayout newChatButton;
     private TextView titleText;
+    private EditText searchInput;
     
     private String username;
+    private List<ChatSession> allSessions = new ArrayList<>();
+    private List<SearchIndex.Hit> searchHits;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        FontInflaterFactory.install(this);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.home);
         
@@ -51,7 +60,6 @@ public class HomeActivity extends AppCompatActivity {
         setupClickListeners();
         loadUserData();
         observeViewModel();
-        applyCustomFont();
     }
     
     private void initializeViews() {
@@ -59,6 +67,7 @@ public class HomeActivity extends AppCompatActivity {
         emptyStateLayout = findViewById(R.id.linear4);
         newChatButton = findViewById(R.id.linear2);
         titleText = findViewById(R.id.textview4);
+        searchInput = findViewById(R.id.search_input);
         
         // Style new chat button
         newChatButton.setBackground(new GradientDrawable() {
@@ -76,6 +85,30 @@ public class HomeActivity extends AppCompatActivity {
     private void setupClickListeners() {
         newChatButton.setOnClickListener(v -> createNewChat());
         
+        searchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                viewModel.search(s.toString());
+            }
+        });
+        
+        // Submitting the query searches by meaning as well as by keywords
+        searchInput.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                viewModel.searchByMeaning(searchInput.getText().toString());
+                return true;
+            }
+            return false;
+        });
+        
         listView.setOnItemClickListener((parent, view, position, id) -> {
             List<ChatSession> sessions = homeAdapter.getSessions();
             if (position < sessions.size()) {
@@ -102,7 +135,19 @@ public class HomeActivity extends AppCompatActivity {
     private void observeViewModel() {
         viewModel.getChatSessions().observe(this, sessions -> {
             if (sessions != null) {
-                updateUI(sessions);
+                allSessions = sessions;
+                refreshList();
+            }
+        });
+        
+        viewModel.getSearchResults().observe(this, hits -> {
+            searchHits = hits;
+            refreshList();
+        });
+        
+        viewModel.getStorageError().observe(this, error -> {
+            if (error != null) {
+                showStorageErrorDialog(error);
             }
         });
         
@@ -115,6 +160,25 @@ public class HomeActivity extends AppCompatActivity {
         });
     }
     
+    private void refreshList() {
+        if (searchHits == null) {
+            updateUI(allSessions);
+            return;
+        }
+        
+        // One row per matching session, ordered by its best hit
+        List<ChatSession> matches = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (SearchIndex.Hit hit : searchHits) {
+            if (!seen.add(hit.sessionId)) continue;
+            ChatSession session = viewModel.getSession(hit.sessionId);
+            if (session != null) {
+                matches.add(session);
+            }
+        }
+        updateUI(matches);
+    }
+    
     private void updateUI(List<ChatSession> sessions) {
         if (sessions.isEmpty()) {
             emptyStateLayout.setVisibility(View.VISIBLE);
@@ -151,6 +215,14 @@ public class HomeActivity extends AppCompatActivity {
         finish();
     }
     
+    private void showStorageErrorDialog(String error) {
+        MaterialAlertDialogBuilder dialog = new MaterialAlertDialogBuilder(this);
+        dialog.setTitle("Chat history unavailable");
+        dialog.setMessage(error);
+        dialog.setPositiveButton("OK", null);
+        dialog.create().show();
+    }
+    
     private void showDeleteDialog(ChatSession session) {
         MaterialAlertDialogBuilder dialog = new MaterialAlertDialogBuilder(this);
         dialog.setTitle("Delete Conversation");
@@ -168,32 +240,13 @@ public class HomeActivity extends AppCompatActivity {
         dialog.create().show();
     }
     
-    private void applyCustomFont() {
-        try {
-            Typeface customFont = Typeface.createFromAsset(getAssets(), "fonts/googlesans.ttf");
-            applyFontToViewGroup((ViewGroup) findViewById(android.R.id.content), customFont);
-        } catch (Exception e) {
-            Log.w(TAG, "Could not apply custom font", e);
-        }
-    }
-    
-    private void applyFontToViewGroup(ViewGroup viewGroup, Typeface typeface) {
-        for (int i = 0; i < viewGroup.getChildCount(); i++) {
-            View child = viewGroup.getChildAt(i);
-            if (child instanceof ViewGroup) {
-                applyFontToViewGroup((ViewGroup) child, typeface);
-            } else if (child instanceof TextView) {
-                ((TextView) child).setTypeface(typeface);
-            }
-        }
-    }
-    
     // ListView Adapter
     private class HomeAdapter extends BaseAdapter {
         private List<ChatSession> sessions = new ArrayList<>();
         
+        // Repository snapshots are immutable, so they can be used without copying
         public void updateSessions(List<ChatSession> newSessions) {
-            this.sessions = new ArrayList<>(newSessions);
+            this.sessions = newSessions;
             notifyDataSetChanged();
         }
         
@@ -213,7 +266,12 @@ public class HomeActivity extends AppCompatActivity {
         
         @Override
         public long getItemId(int position) {
-            return position;
+            return sessions.get(position).getId().hashCode();
+        }
+        
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
         
         @Override
@@ -234,16 +292,6 @@ public class HomeActivity extends AppCompatActivity {
             time.setText(session.getLastMessageTime());
             preview.setText(session.getLastMessageText());
             
-            // Apply custom font
-            try {
-                Typeface font = Typeface.createFromAsset(getAssets(), "fonts/googlesans.ttf");
-                title.setTypeface(font);
-                time.setTypeface(font);
-                preview.setTypeface(font);
-            } catch (Exception e) {
-                Log.w(TAG, "Could not apply font to list item", e);
-            }
-            
             return view;
         }
     }
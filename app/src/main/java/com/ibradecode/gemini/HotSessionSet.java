@@ -0,0 +1,63 @@
+package com.ibradecode.gemini;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The bounded set of sessions that keep their messages in memory.
+ *
+ * Sessions are kept in access order; once the set grows past its capacity
+ * the least recently used ones are swapped for their headers in the
+ * {@link SessionIndex}, and are read from disk again when next opened.
+ * Not thread-safe; {@link ChatRepository} confines it to the main thread.
+ */
+public class HotSessionSet {
+
+    private final SessionIndex sessions;
+    private final LinkedHashMap<String, ChatSession> hot = new LinkedHashMap<>(16, 0.75f, true);
+    private int capacity;
+
+    public HotSessionSet(SessionIndex sessions, int capacity) {
+        this.sessions = sessions;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Adds or refreshes a loaded session. Call {@link #trim()} afterwards.
+     */
+    public void put(ChatSession session) {
+        hot.put(session.getId(), session);
+    }
+
+    public void remove(String sessionId) {
+        hot.remove(sessionId);
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public long getHeapBytes() {
+        long total = 0;
+        for (ChatSession session : hot.values()) {
+            total += session.estimateHeapBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Evicts the least recently used sessions until the set fits its capacity.
+     */
+    public void trim() {
+        Iterator<Map.Entry<String, ChatSession>> eldest = hot.entrySet().iterator();
+        while (hot.size() > capacity && eldest.hasNext()) {
+            ChatSession session = eldest.next().getValue();
+            eldest.remove();
+            // Swap in a header; the persistence executor keeps a frozen copy of a dirty one
+            if (sessions.get(session.getId()) == session) {
+                sessions.replace(session.toHeader());
+            }
+        }
+    }
+}
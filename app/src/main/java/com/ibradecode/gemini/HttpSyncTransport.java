@@ -0,0 +1,73 @@
+package com.ibradecode.gemini;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * {@link SyncEngine.Transport} for a self-hosted backup server, over the
+ * shared HTTP client. Pushes go to {@code POST <baseUrl>/sync/push} with a
+ * gzip-encoded body and pulls to {@code GET <baseUrl>/sync/pull}; responses
+ * are decompressed transparently by OkHttp.
+ */
+public class HttpSyncTransport implements SyncEngine.Transport {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final String baseUrl;
+    private final String authToken;
+    private final OkHttpClient client;
+
+    public HttpSyncTransport(String baseUrl, String authToken) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.authToken = authToken;
+        this.client = ApiClient.getSharedClient();
+    }
+
+    @Override
+    public String push(byte[] gzippedRequest) throws IOException {
+        Request request = newRequest(baseUrl + "/sync/push")
+                .post(RequestBody.create(gzippedRequest, JSON))
+                .header("Content-Encoding", "gzip")
+                .build();
+        return execute(request);
+    }
+
+    @Override
+    public String pull(long cursor, String deviceId) throws IOException {
+        Request request = newRequest(baseUrl + "/sync/pull?since=" + cursor + "&device=" + encode(deviceId))
+                .get()
+                .build();
+        return execute(request);
+    }
+
+    private Request.Builder newRequest(String url) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (authToken != null && !authToken.isEmpty()) {
+            builder.header("Authorization", "Bearer " + authToken);
+        }
+        return builder;
+    }
+
+    private String execute(Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new IOException("Sync server error: " + response.code());
+            }
+            return response.body().string();
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.ibradecode.gemini;
+
+import android.text.SpannableStringBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Renders markdown that grows by appends, such as a streamed response.
+ *
+ * The source is split into blocks at blank lines, headings and code fences.
+ * A block is rendered once, when the next line shows it is complete, and its
+ * spans are appended to the output; only the last, still open block (an
+ * unfinished paragraph or an unclosed code fence) is rendered again on each
+ * append. The cost of an append therefore depends on the size of the open
+ * block, not on the length of the whole response.
+ *
+ * {@link #setText(CharSequence)} accepts the whole text instead of a chunk.
+ * If the text no longer starts with what was rendered, rendering resumes
+ * from the last committed block boundary before the first difference,
+ * rather than from the start.
+ *
+ * Not thread-safe.
+ */
+public class IncrementalMarkdownRenderer {
+
+    public interface BlockRenderer {
+        CharSequence render(String block);
+    }
+
+    private static final String FENCE = "```";
+
+    private final BlockRenderer renderer;
+    private final StringBuilder source = new StringBuilder();
+    private final SpannableStringBuilder output = new SpannableStringBuilder();
+
+    // Source offset where the open block starts, and where its rendering starts in the output
+    private int blockStart;
+    private int outputBlockStart;
+    // Offset of the first line not yet scanned for block boundaries
+    private int scanned;
+    private boolean inFence;
+    // Source and output offsets where committed blocks end, in order; never inside a fence
+    private int[] boundarySource = new int[16];
+    private int[] boundaryOutput = new int[16];
+    // Source length that decided each boundary; a fence line ends the block before it
+    private int[] boundaryFoundAt = new int[16];
+    private int boundaryCount;
+
+    public IncrementalMarkdownRenderer() {
+        this(MarkdownRenderer::renderBlock);
+    }
+
+    public IncrementalMarkdownRenderer(BlockRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Appends {@code chunk} and returns the rendering of everything so far.
+     * The returned builder is reused by later calls.
+     */
+    public CharSequence append(CharSequence chunk) {
+        return append(chunk, 0);
+    }
+
+    /**
+     * Renders {@code text}, reusing the blocks committed for the part it
+     * shares with what was rendered before. The returned builder is reused
+     * by later calls.
+     */
+    public CharSequence setText(CharSequence text) {
+        int common = 0;
+        int length = Math.min(text.length(), source.length());
+        while (common < length && text.charAt(common) == source.charAt(common)) {
+            common++;
+        }
+        if (common < source.length()) {
+            rewind(common);
+        }
+        return append(text, source.length());
+    }
+
+    public void reset() {
+        rewind(0);
+    }
+
+    private CharSequence append(CharSequence text, int start) {
+        source.append(text, start, text.length());
+        commitCompletedBlocks();
+        renderOpenBlock();
+        return output;
+    }
+
+    /**
+     * Drops the source and output after the last committed block that
+     * depends only on the source before {@code offset}.
+     */
+    private void rewind(int offset) {
+        int index = Arrays.binarySearch(boundaryFoundAt, 0, boundaryCount, offset);
+        boundaryCount = index >= 0 ? index + 1 : -index - 1;
+        blockStart = boundaryCount > 0 ? boundarySource[boundaryCount - 1] : 0;
+        outputBlockStart = boundaryCount > 0 ? boundaryOutput[boundaryCount - 1] : 0;
+        source.setLength(blockStart);
+        output.delete(outputBlockStart, output.length());
+        scanned = blockStart;
+        inFence = false;
+    }
+
+    public String getSource() {
+        return source.toString();
+    }
+
+    private void commitCompletedBlocks() {
+        int lineEnd;
+        while ((lineEnd = source.indexOf("\n", scanned)) >= 0) {
+            int lineStart = scanned;
+            scanned = lineEnd + 1;
+            String line = source.substring(lineStart, lineEnd).trim();
+
+            if (inFence) {
+                if (line.startsWith(FENCE)) {
+                    inFence = false;
+                    commit(scanned);
+                }
+            } else if (line.startsWith(FENCE)) {
+                // The fence starts a block of its own
+                commit(lineStart);
+                inFence = true;
+            } else if (line.isEmpty() || line.startsWith("#")) {
+                commit(scanned);
+            }
+        }
+    }
+
+    private void commit(int end) {
+        if (end <= blockStart) return;
+        output.replace(outputBlockStart, output.length(), renderer.render(source.substring(blockStart, end)));
+        blockStart = end;
+        outputBlockStart = output.length();
+
+        if (boundaryCount == boundarySource.length) {
+            boundarySource = Arrays.copyOf(boundarySource, boundaryCount * 2);
+            boundaryOutput = Arrays.copyOf(boundaryOutput, boundaryCount * 2);
+            boundaryFoundAt = Arrays.copyOf(boundaryFoundAt, boundaryCount * 2);
+        }
+        boundarySource[boundaryCount] = blockStart;
+        boundaryOutput[boundaryCount] = outputBlockStart;
+        boundaryFoundAt[boundaryCount] = scanned;
+        boundaryCount++;
+    }
+
+    private void renderOpenBlock() {
+        if (blockStart >= source.length()) {
+            output.delete(outputBlockStart, output.length());
+            return;
+        }
+        output.replace(outputBlockStart, output.length(), renderer.render(source.substring(blockStart)));
+    }
+}
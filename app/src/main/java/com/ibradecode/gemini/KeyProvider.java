@@ -0,0 +1,16 @@
+package com.ibradecode.gemini;
+
+import java.io.IOException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Supplies the AES key that encrypts chat storage at rest.
+ */
+public interface KeyProvider {
+
+    /**
+     * Returns the key, creating it on first use. May be called from any thread.
+     */
+    SecretKey getKey() throws IOException;
+}
@@ -0,0 +1,142 @@
+package com.ibradecode.gemini;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Storage key wrapped by a key that never leaves the Android Keystore.
+ *
+ * The data key itself is a random software AES key, so encrypting message
+ * blocks does not go through the Keystore for every block; only the
+ * one-time unwrap at startup does. The wrapped key is kept in the no-backup
+ * directory, since the Keystore key does not survive a restore on another
+ * device. Before API 23 there is no Keystore support for AES, and the data
+ * key is stored unwrapped in app-private storage.
+ *
+ * Key file: format(byte) then either iv(12) wrappedKey, or the raw key.
+ */
+public class KeystoreKeyProvider implements KeyProvider {
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String WRAPPING_KEY_ALIAS = "chat_storage_wrapping_key";
+    private static final String KEY_FILE = "chat_storage.key";
+    private static final String WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final byte FORMAT_RAW = 0;
+    private static final byte FORMAT_WRAPPED = 1;
+
+    private final File keyFile;
+    private SecretKey key;
+
+    public KeystoreKeyProvider(Context context) {
+        this.keyFile = new File(context.getNoBackupFilesDir(), KEY_FILE);
+    }
+
+    @Override
+    public synchronized SecretKey getKey() throws IOException {
+        if (key == null) {
+            key = keyFile.exists() ? readKey() : createKey();
+        }
+        return key;
+    }
+
+    private SecretKey readKey() throws IOException {
+        byte[] data;
+        try (RandomAccessFile raf = new RandomAccessFile(keyFile, "r")) {
+            data = new byte[(int) raf.length()];
+            raf.readFully(data);
+        }
+        if (data.length == 0) {
+            throw new IOException("Empty storage key file");
+        }
+
+        if (data[0] == FORMAT_RAW) {
+            return new SecretKeySpec(data, 1, data.length - 1, "AES");
+        }
+        if (data[0] != FORMAT_WRAPPED || data.length <= 1 + IV_SIZE) {
+            throw new IOException("Unknown storage key format: " + data[0]);
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getWrappingKey(false),
+                new GCMParameterSpec(TAG_BITS, data, 1, IV_SIZE));
+            byte[] raw = cipher.doFinal(data, 1 + IV_SIZE, data.length - 1 - IV_SIZE);
+            return new SecretKeySpec(raw, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error unwrapping storage key", e);
+        }
+    }
+
+    private SecretKey createKey() throws IOException {
+        byte[] raw = new byte[SoftwareKeyProvider.KEY_SIZE];
+        new SecureRandom().nextBytes(raw);
+
+        byte[] data;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+                // The Keystore picks the IV itself
+                cipher.init(Cipher.ENCRYPT_MODE, getWrappingKey(true));
+                byte[] iv = cipher.getIV();
+                byte[] wrapped = cipher.doFinal(raw);
+                if (iv.length != IV_SIZE) {
+                    throw new GeneralSecurityException("Unexpected IV size: " + iv.length);
+                }
+                data = new byte[1 + IV_SIZE + wrapped.length];
+                data[0] = FORMAT_WRAPPED;
+                System.arraycopy(iv, 0, data, 1, IV_SIZE);
+                System.arraycopy(wrapped, 0, data, 1 + IV_SIZE, wrapped.length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error wrapping storage key", e);
+            }
+        } else {
+            data = new byte[1 + raw.length];
+            data[0] = FORMAT_RAW;
+            System.arraycopy(raw, 0, data, 1, raw.length);
+        }
+
+        FileUtil.writeBytesAtomic(keyFile, data);
+        SecretKey secretKey = new SecretKeySpec(raw, "AES");
+        Arrays.fill(raw, (byte) 0);
+        return secretKey;
+    }
+
+    private static SecretKey getWrappingKey(boolean create) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        KeyStore.Entry entry = keyStore.getEntry(WRAPPING_KEY_ALIAS, null);
+        if (entry instanceof KeyStore.SecretKeyEntry) {
+            return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+        }
+        if (!create) {
+            throw new GeneralSecurityException("Storage wrapping key is missing from the Keystore");
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(WRAPPING_KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+            .setKeySize(256)
+            .build());
+        return generator.generateKey();
+    }
+}
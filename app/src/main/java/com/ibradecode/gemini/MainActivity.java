@@ -57,6 +57,8 @@ public class MainActivity extends AppCompatActivity {
 	@Override
 	protected void onCreate(Bundle _savedInstanceState) {
 		super.onCreate(_savedInstanceState);
+		// Load the font, Markwon and shared drawables while the splash is shown
+		ResourceCache.preload(this);
 		setContentView(R.layout.main);
 		initialize(_savedInstanceState);
 		initializeLogic();
@@ -0,0 +1,227 @@
+package com.ibradecode.gemini;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.TextView;
+
+import androidx.annotation.MainThread;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders message markdown off the main thread and caches the result.
+ *
+ * {@link #bind(TextView, ChatMessage)} shows a cached rendering at once. On a
+ * miss it shows the plain preview and renders on a background thread, which
+ * also loads spilled text and can precompute the text layout. The result is
+ * applied only if the view is still bound to the same message, and renders
+ * nobody is waiting for any more are skipped. The cache is process-wide,
+ * keyed by message id and text, and bounded in bytes, so scrolling back
+ * through a chat, or reopening it, does not parse markdown again.
+ *
+ * A message that is still streaming in is rendered incrementally, so each
+ * update re-renders only its last open block, and keeps showing its previous
+ * rendering until the new one is ready. Its partial renderings are neither
+ * precomputed, which would measure the whole text again on every update,
+ * nor cached.
+ */
+public class MarkdownRenderPipeline {
+    private static final String TAG = "MarkdownRenderPipeline";
+
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+
+    public interface Renderer {
+        /**
+         * Called on a background thread.
+         */
+        Spanned render(String markdown);
+    }
+
+    private static final LruCache<String, CharSequence> cache = new LruCache<String, CharSequence>(
+            (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16)) {
+        @Override
+        protected int sizeOf(String key, CharSequence value) {
+            // Chars plus a rough allowance for spans and measured layout
+            int perChar = value instanceof PrecomputedTextCompat ? 6 : 3;
+            return 64 + value.length() * perChar;
+        }
+    };
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "markdown-render");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private final Renderer renderer;
+    private final boolean precompute;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread only
+    private final Map<TextView, String> boundKeys = new WeakHashMap<>();
+    private final Set<String> wantedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> pendingKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean released;
+    // Render thread only
+    private IncrementalMarkdownRenderer streamRenderer;
+    private String streamOwner;
+
+    public MarkdownRenderPipeline(Renderer renderer, boolean precompute) {
+        this.renderer = renderer;
+        this.precompute = precompute;
+    }
+
+    @MainThread
+    public void bind(TextView view, ChatMessage message) {
+        bind(view, message, false);
+    }
+    
+    /**
+     * @param streaming whether the text of {@code message} is still growing
+     */
+    @MainThread
+    public void bind(TextView view, ChatMessage message, boolean streaming) {
+        bind(view, message.getId(), cacheKey(message), message.getPreview(), message::loadText, streaming);
+    }
+    
+    /**
+     * Binds markdown that is already in memory, such as one segment of a
+     * message. {@code owner} names the text across edits, e.g. the message
+     * id and segment index.
+     */
+    @MainThread
+    public void bindText(TextView view, String owner, String markdown, boolean streaming) {
+        bind(view, owner, owner + ':' + markdown.length() + ':' + markdown.hashCode(), markdown,
+            () -> markdown, streaming);
+    }
+    
+    private interface TextSource {
+        /**
+         * Called on the render thread; may perform disk I/O.
+         */
+        String load() throws IOException;
+    }
+    
+    private void bind(TextView view, String owner, String key, String placeholder, TextSource source,
+            boolean streaming) {
+        String previous = boundKeys.put(view, key);
+        if (previous != null && !previous.equals(key) && !boundKeys.containsValue(previous)) {
+            wantedKeys.remove(previous);
+        }
+
+        CharSequence cached = cache.get(key);
+        if (cached != null) {
+            apply(view, cached);
+            return;
+        }
+
+        // Streaming text keeps its last rendering rather than flashing back to plain text
+        if (!streaming || previous == null || !previous.startsWith(owner + ':')) {
+            view.setText(placeholder);
+        }
+        wantedKeys.add(key);
+        if (!pendingKeys.add(key)) return;
+
+        PrecomputedTextCompat.Params params = precompute && !streaming
+            ? TextViewCompat.getTextMetricsParams(view) : null;
+        executor.execute(() -> {
+            CharSequence rendered = null;
+            try {
+                if (!released && wantedKeys.contains(key)) {
+                    String text = source.load();
+                    if (text == null) text = "";
+                    rendered = streaming ? renderStreaming(owner, text) : render(text, params);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error rendering " + owner, e);
+            }
+            CharSequence result = rendered;
+            mainHandler.post(() -> onRendered(key, result, !streaming));
+        });
+    }
+
+    /**
+     * Stops delivering results to this pipeline's views. Cached renderings are kept.
+     */
+    @MainThread
+    public void release() {
+        released = true;
+        boundKeys.clear();
+        wantedKeys.clear();
+    }
+
+    private CharSequence render(String text, PrecomputedTextCompat.Params params) {
+        Spanned spanned = renderer.render(text);
+        if (params == null) return spanned;
+        return PrecomputedTextCompat.create(spanned, params);
+    }
+
+    private CharSequence renderStreaming(String owner, String text) {
+        if (streamRenderer == null || !owner.equals(streamOwner)) {
+            streamRenderer = new IncrementalMarkdownRenderer(this::renderBlock);
+            streamOwner = owner;
+        }
+        // The renderer reuses its output, so hand the main thread a copy; owners are
+        // segments, so this is the size of the growing segment, not of the reply
+        return new SpannableStringBuilder(streamRenderer.setText(text));
+    }
+
+    private CharSequence renderBlock(String block) {
+        Spanned spanned = renderer.render(block);
+        // Renderers trim a document's trailing newlines; keep completed blocks apart
+        if (block.endsWith("\n") && (spanned.length() == 0 || spanned.charAt(spanned.length() - 1) != '\n')) {
+            return new SpannableStringBuilder(spanned).append("\n\n");
+        }
+        return spanned;
+    }
+
+    private void onRendered(String key, CharSequence rendered, boolean cacheable) {
+        pendingKeys.remove(key);
+        if (rendered == null) return;
+
+        if (cacheable) {
+            cache.put(key, rendered);
+        }
+        if (released) return;
+        for (Map.Entry<TextView, String> entry : boundKeys.entrySet()) {
+            if (key.equals(entry.getValue())) {
+                apply(entry.getKey(), rendered);
+            }
+        }
+        wantedKeys.remove(key);
+    }
+
+    private static void apply(TextView view, CharSequence rendered) {
+        if (rendered instanceof PrecomputedTextCompat) {
+            try {
+                TextViewCompat.setPrecomputedText(view, (PrecomputedTextCompat) rendered);
+                return;
+            } catch (IllegalArgumentException e) {
+                // Measured for different text params (e.g. another font size); lay out again
+            }
+        }
+        view.setText(rendered);
+    }
+
+    private static String cacheKey(ChatMessage message) {
+        // Spilled text is named by its content hash, so the key never needs the text itself
+        String blobId = message.getBlobId();
+        if (message.isSpilled() && blobId != null) {
+            return message.getId() + ':' + blobId;
+        }
+        String text = message.getInlineText();
+        return message.getId() + ':' + (text != null ? text.length() + ":" + text.hashCode() : "");
+    }
+}
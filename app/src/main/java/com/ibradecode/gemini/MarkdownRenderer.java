@@ -12,21 +12,25 @@ import android.graphics.Color;
 import android.content.Context;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
-import android.widget.TextView;
 import android.widget.HorizontalScrollView;
-import android.view.Gravity;
-import android.graphics.drawable.GradientDrawable;
 import android.widget.TableLayout;
-import android.widget.TableRow;
+
+import androidx.annotation.VisibleForTesting;
+
 import java.util.regex.*;
 import java.util.*;
 
 public class MarkdownRenderer {
 
+    private static final int CODE_COLOR = Color.parseColor("#4CAF50");
+    // Language tag, then the code up to the closing fence
+    private static final Pattern CODE_FENCE = Pattern.compile("```([\\w+#.-]*)[ \\t]*\\n?([\\s\\S]*?)```");
+    private static final Pattern OPEN_CODE_FENCE = Pattern.compile("(?m)^[ \\t]*```([\\w+#.-]*)[^\\n]*(?:\\n|$)");
+    private static final Pattern NUMBERED_ITEM = Pattern.compile("^\\d+\\.\\s+");
+
     public static List<MarkdownSegment> segmentMarkdown(String markdown) {
         List<MarkdownSegment> segments = new ArrayList<>();
-        Pattern pattern = Pattern.compile("```(.*?)```", Pattern.DOTALL);
-        Matcher matcher = Pattern.compile("```(?:\\w+)?\\s*([\\s\\S]*?)```").matcher(markdown);
+        Matcher matcher = CODE_FENCE.matcher(markdown);
 
         int lastIndex = 0;
         while (matcher.find()) {
@@ -38,22 +42,50 @@ public class MarkdownRenderer {
                 segments.add(new MarkdownSegment(false, beforeCode));
             }
 
-            String code = matcher.group(1).trim();
-            segments.add(new MarkdownSegment(true, code));
+            String code = matcher.group(2).trim();
+            segments.add(new MarkdownSegment(true, code, languageOf(matcher.group(1))));
 
             lastIndex = codeEnd;
         }
 
         if (lastIndex < markdown.length()) {
-            String afterCode = markdown.substring(lastIndex).trim();
+            String rest = markdown.substring(lastIndex);
+            // A fence still open at the end, e.g. while a reply streams in, is code too
+            Matcher open = OPEN_CODE_FENCE.matcher(rest);
+            int codeStart = open.find() ? open.start() : rest.length();
+
+            String afterCode = rest.substring(0, codeStart).trim();
             if (!afterCode.isEmpty()) {
                 segments.add(new MarkdownSegment(false, afterCode));
             }
+            if (codeStart < rest.length()) {
+                String code = rest.substring(open.end()).trim();
+                segments.add(new MarkdownSegment(true, code, languageOf(open.group(1))));
+            }
         }
 
         return segments;
     }
 
+    /**
+     * Length of the prefix of {@code markdown} that ends with its last closed
+     * code fence, or 0. Appending text cannot change the segments of that
+     * prefix, and segmenting the prefix and the rest separately gives the
+     * segments of the whole.
+     */
+    public static int closedPrefixLength(String markdown) {
+        Matcher matcher = CODE_FENCE.matcher(markdown);
+        int end = 0;
+        while (matcher.find()) {
+            end = matcher.end();
+        }
+        return end;
+    }
+
+    private static String languageOf(String info) {
+        return info == null || info.isEmpty() ? null : info.toLowerCase(Locale.ROOT);
+    }
+
     public static SpannableStringBuilder render(String markdown) {
     SpannableStringBuilder spannable = new SpannableStringBuilder();
     String[] lines = markdown.split("\n");
@@ -76,7 +108,7 @@ public class MarkdownRenderer {
             spannable.append(applyHeader(line, 3));
         } else if (line.startsWith("#### ")) {
             spannable.append(applyHeader(line, 4));
-        } else if (line.matches("^\\d+\\.\\s+.*")) {
+        } else if (NUMBERED_ITEM.matcher(line).lookingAt()) {
             spannable.append(applyNumberedItem(line));
         } else if (line.startsWith("* ")) {
             spannable.append(applyBulletItem(line));
@@ -88,6 +120,32 @@ public class MarkdownRenderer {
 
     return spannable;
 }
+    /**
+     * Renders one block as split by {@link IncrementalMarkdownRenderer}: either
+     * a fenced code block, which may still be unclosed, or markdown text.
+     */
+    public static SpannableStringBuilder renderBlock(String block) {
+        if (!block.startsWith("```")) {
+            return render(block);
+        }
+
+        int codeStart = block.indexOf('\n');
+        String code = codeStart < 0 ? "" : block.substring(codeStart + 1);
+        int fenceEnd = code.lastIndexOf("```");
+        if (fenceEnd >= 0 && code.substring(fenceEnd).trim().equals("```")) {
+            code = code.substring(0, fenceEnd);
+        }
+        if (code.endsWith("\n")) {
+            code = code.substring(0, code.length() - 1);
+        }
+
+        SpannableStringBuilder spannable = new SpannableStringBuilder(code);
+        spannable.setSpan(new TypefaceSpan("monospace"), 0, spannable.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        spannable.setSpan(new ForegroundColorSpan(CODE_COLOR), 0, spannable.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        spannable.append("\n");
+        return spannable;
+    }
+
     private static SpannableStringBuilder applyHeader(String line, int level) {
     String prefix = new String(new char[level]).replace("\0", "#") + " ";
     if (line.startsWith(prefix)) {
@@ -111,137 +169,370 @@ public class MarkdownRenderer {
     }
 
     private static SpannableStringBuilder applyNumberedItem(String line) {
-        String content = line.replaceFirst("^\\d+\\.\\s+", "").trim();
+        String content = NUMBERED_ITEM.matcher(line).replaceFirst("").trim();
         return applyInlineStyles(content);
     }
 
     private static SpannableStringBuilder applyInlineStyles(String line) {
-        SpannableStringBuilder spannable = new SpannableStringBuilder(line);
-        applyBold(spannable);
-        applyItalic(spannable);
-        applyCode(spannable);
-        applyLinks(spannable);
-        return spannable;
+        return new InlineParser(line).parse();
     }
 
-    private static void applyBold(SpannableStringBuilder spannable) {
-        Pattern pattern = Pattern.compile("\\*\\*(.*?)\\*\\*");
-        Matcher matcher = pattern.matcher(spannable.toString());
-        while (matcher.find()) {
-            spannable.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(1), matcher.end(1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-        removeMarkers(spannable, "**");
+/**
+ * Adds the table as a single canvas-drawn {@link MarkdownTableView} instead
+ * of a row and text view per cell.
+ */
+public static void renderTableWithLayout(String markdown, TableLayout tableLayout, Context context) {
+    MarkdownTableView table = new MarkdownTableView(context);
+    table.setTypeface(ResourceCache.getInstance(context).getTypeface());
+    table.setMarkdown(markdown);
+    tableLayout.addView(table);
+}
+
+public static SpannableStringBuilder renderInline(String markdown) {
+    return new InlineParser(markdown).parse();
+}
+
+    /**
+     * Parses inline markdown like {@link #renderInline(String)}, but writes
+     * the spans as tags: {@code <b>}, {@code <i>}, {@code <code>} and
+     * {@code <a href="url">}. Spannables are stubs in local unit tests.
+     */
+    @VisibleForTesting
+    static String renderInlineMarkup(String markdown) {
+        return new InlineParser(markdown).parseMarkup();
     }
 
-    private static void applyItalic(SpannableStringBuilder spannable) {
-        Pattern pattern = Pattern.compile("\\*(.*?)\\*");
-        Matcher matcher = pattern.matcher(spannable.toString());
-        while (matcher.find()) {
-            spannable.setSpan(new StyleSpan(Typeface.ITALIC), matcher.start(1), matcher.end(1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    /**
+     * Single-pass parser for inline markdown: **bold**, *italic*, `code`
+     * and [links](url), with backslash escapes.
+     *
+     * The line is scanned once into tokens: runs of literal text and
+     * delimiter runs. A closing {@code *} run is matched against the nearest
+     * open run as soon as it is seen, which gives nested emphasis, and a code
+     * span is taken verbatim up to the next backtick run of the same length,
+     * so markers inside code stay literal. Unmatched delimiters are emitted
+     * as text. The text and all span ranges are then built in one go.
+     */
+    private static final class InlineParser {
+        private static final int BOLD = 0;
+        private static final int ITALIC = 1;
+        private static final int CODE = 2;
+        private static final int LINK = 3;
+        // Longest backtick run tracked for unmatched-closer lookups
+        private static final int MAX_TICKS = 16;
+
+        private final String source;
+        private final List<Token> tokens = new ArrayList<>();
+        private final List<SpanRange> spans = new ArrayList<>();
+        // Open '*' runs and '[' brackets, innermost last
+        private final List<Token> openers = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        // Position after which no backtick run of a given length exists
+        private final int[] noCloserAfter = new int[MAX_TICKS + 1];
+        // Next ']' at or after the last '[' looked up; MAX_VALUE if there is none
+        private int nextBracketClose = -1;
+
+        InlineParser(String source) {
+            this.source = source;
+            Arrays.fill(noCloserAfter, -1);
         }
-        removeMarkers(spannable, "*");
-    }
 
-    private static void applyCode(SpannableStringBuilder spannable) {
-        Pattern pattern = Pattern.compile("`(.*?)`");
-        Matcher matcher = pattern.matcher(spannable.toString());
-        while (matcher.find()) {
-            spannable.setSpan(new TypefaceSpan("monospace"), matcher.start(1), matcher.end(1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            spannable.setSpan(new ForegroundColorSpan(Color.parseColor("#4CAF50")), matcher.start(1), matcher.end(1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        SpannableStringBuilder parse() {
+            scan();
+            return build();
         }
-        removeMarkers(spannable, "`");
-    }
 
-  private static void applyLinks(SpannableStringBuilder spannable) {
-    Pattern pattern = Pattern.compile("\\[(.*?)\\]\\((.*?)\\)");
-    Matcher matcher = pattern.matcher(spannable.toString());
+        String parseMarkup() {
+            scan();
+            return buildMarkup();
+        }
 
-    while (matcher.find()) {
-        String label = matcher.group(1);
-        String url = matcher.group(2);
+        private void scan() {
+            int length = source.length();
+            int i = 0;
+            while (i < length) {
+                char c = source.charAt(i);
+                if (c == '\\' && i + 1 < length && isEscapable(source.charAt(i + 1))) {
+                    text.append(source.charAt(i + 1));
+                    i += 2;
+                } else if (c == '`') {
+                    i = parseCode(i);
+                } else if (c == '*') {
+                    i = parseEmphasis(i);
+                } else if (c == '[' && canClose(i)) {
+                    flushText();
+                    Token bracket = new Token('[', 1);
+                    tokens.add(bracket);
+                    openers.add(bracket);
+                    i++;
+                } else if (c == ']') {
+                    i = parseLinkEnd(i);
+                } else {
+                    text.append(c);
+                    i++;
+                }
+            }
+            flushText();
+        }
 
-        int start = matcher.start();
-        int end = matcher.end();
+        // A '[' with no ']' after it can never start a link, so it must not fence off emphasis
+        private boolean canClose(int bracket) {
+            if (nextBracketClose < bracket) {
+                int close = source.indexOf(']', bracket + 1);
+                nextBracketClose = close >= 0 ? close : Integer.MAX_VALUE;
+            }
+            return nextBracketClose != Integer.MAX_VALUE;
+        }
 
-        spannable.replace(start, end, label);
+        private int parseCode(int start) {
+            int ticks = runLength(start, '`');
+            int contentStart = start + ticks;
+            int close = findTicks(contentStart, ticks);
+            if (close < 0) {
+                // No closing run; the backticks are literal
+                text.append(source, start, contentStart);
+                return contentStart;
+            }
 
-        String updatedText = spannable.toString();
-        int labelStart = updatedText.indexOf(label, start);
-        int labelEnd = labelStart + label.length();
+            Token open = addMarker();
+            text.append(source, contentStart, close);
+            Token end = addMarker();
+            spans.add(new SpanRange(CODE, open, end, null));
+            return close + ticks;
+        }
 
-        if (labelStart >= 0 && labelEnd <= spannable.length()) {
-            spannable.setSpan(new URLSpan(url), labelStart, labelEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        private int parseEmphasis(int start) {
+            int count = runLength(start, '*');
+            int end = start + count;
+            boolean canOpen = end < source.length() && !Character.isWhitespace(source.charAt(end));
+            boolean canClose = start > 0 && !Character.isWhitespace(source.charAt(start - 1));
+
+            flushText();
+            Token run = new Token('*', count);
+            tokens.add(run);
+
+            if (canClose) {
+                for (int o = openers.size() - 1; o >= 0 && run.count > 0; o--) {
+                    Token opener = openers.get(o);
+                    // Emphasis does not cross into a link label
+                    if (opener.delimiter == '[') break;
+
+                    int use = run.count >= 2 && opener.count >= 2 ? 2 : 1;
+                    spans.add(new SpanRange(use == 2 ? BOLD : ITALIC, opener, run, null));
+                    opener.count -= use;
+                    run.count -= use;
+                    // Runs opened inside the matched pair can no longer close
+                    int keep = opener.count > 0 ? o + 1 : o;
+                    openers.subList(keep, openers.size()).clear();
+                    o = keep;
+                }
+            }
+            if (canOpen && run.count > 0) {
+                openers.add(run);
+            }
+            return end;
         }
 
-        matcher = pattern.matcher(spannable.toString());
-    }
-}
+        private int parseLinkEnd(int start) {
+            int bracket = -1;
+            for (int o = openers.size() - 1; o >= 0; o--) {
+                if (openers.get(o).delimiter == '[') {
+                    bracket = o;
+                    break;
+                }
+            }
+            int urlEnd = -1;
+            if (bracket >= 0 && start + 1 < source.length() && source.charAt(start + 1) == '(') {
+                urlEnd = findUrlEnd(start + 2);
+            }
+            if (urlEnd < 0) {
+                // No link, so the bracket is plain text and emphasis may match across it
+                if (bracket >= 0) {
+                    openers.remove(bracket);
+                }
+                text.append(']');
+                return start + 1;
+            }
 
-public static void renderTableWithLayout(String markdown, TableLayout tableLayout, Context context) {
-    String[] lines = markdown.split("\n");
-    List<String[]> rows = new ArrayList<>();
+            Token open = openers.get(bracket);
+            open.count = 0;
+            // Unclosed emphasis inside the label stays literal
+            openers.subList(bracket, openers.size()).clear();
+            Token end = addMarker();
+            spans.add(new SpanRange(LINK, open, end, source.substring(start + 2, urlEnd)));
+            return urlEnd + 1;
+        }
+
+        private int findUrlEnd(int from) {
+            for (int i = from; i < source.length(); i++) {
+                char c = source.charAt(i);
+                if (c == ')') return i;
+                if (Character.isWhitespace(c)) return -1;
+            }
+            return -1;
+        }
+
+        private int findTicks(int from, int ticks) {
+            int slot = Math.min(ticks, MAX_TICKS);
+            if (noCloserAfter[slot] >= 0 && from >= noCloserAfter[slot]) return -1;
+
+            int i = source.indexOf('`', from);
+            while (i >= 0) {
+                int run = runLength(i, '`');
+                if (run == ticks) return i;
+                i = source.indexOf('`', i + run);
+            }
+            noCloserAfter[slot] = from;
+            return -1;
+        }
+
+        private int runLength(int start, char c) {
+            int end = start;
+            while (end < source.length() && source.charAt(end) == c) {
+                end++;
+            }
+            return end - start;
+        }
+
+        private Token addMarker() {
+            flushText();
+            Token marker = new Token('\0', 0);
+            tokens.add(marker);
+            return marker;
+        }
+
+        private void flushText() {
+            if (text.length() == 0) return;
+            tokens.add(new Token(text.toString()));
+            text.setLength(0);
+        }
+
+        // Lays the tokens out as text and records where each one went
+        private String layOut() {
+            StringBuilder out = new StringBuilder(source.length());
+            for (Token token : tokens) {
+                token.start = out.length();
+                if (token.text != null) {
+                    out.append(token.text);
+                } else {
+                    // Unmatched markers are literal; matched ones sit innermost and vanish
+                    for (int n = 0; n < token.count; n++) {
+                        out.append(token.delimiter);
+                    }
+                }
+                token.end = out.length();
+            }
+            return out.toString();
+        }
 
-    for (String line : lines) {
-        if (line.contains("---")) continue;
-        if (line.contains("|")) {
-            String[] raw = line.split("\\|");
-            List<String> cleaned = new ArrayList<>();
-            for (String cell : raw) {
-                String trimmed = cell.trim();
-                if (!trimmed.isEmpty()) cleaned.add(trimmed);
+        private String buildMarkup() {
+            String out = layOut();
+            // Tags at each offset: closing ones innermost first, then opening ones outermost first
+            Map<Integer, List<String>> closing = new HashMap<>();
+            Map<Integer, List<String>> opening = new HashMap<>();
+            for (SpanRange span : spans) {
+                int start = span.open.end;
+                int end = span.close.start;
+                if (end <= start) continue;
+                String tag = span.type == BOLD ? "b" : span.type == ITALIC ? "i" : span.type == CODE ? "code" : "a";
+                addTag(opening, start, span.type == LINK ? "<a href=\"" + span.url + "\">" : "<" + tag + ">", false);
+                addTag(closing, end, "</" + tag + ">", true);
             }
-            if (!cleaned.isEmpty()) rows.add(cleaned.toArray(new String[0]));
+
+            StringBuilder markup = new StringBuilder();
+            for (int i = 0; i <= out.length(); i++) {
+                appendTags(markup, closing.get(i));
+                appendTags(markup, opening.get(i));
+                if (i < out.length()) {
+                    markup.append(out.charAt(i));
+                }
+            }
+            return markup.toString();
+        }
+
+        // Spans are recorded inner first, so outer tags open first and close last
+        private static void addTag(Map<Integer, List<String>> tags, int offset, String tag, boolean last) {
+            List<String> list = tags.get(offset);
+            if (list == null) {
+                list = new ArrayList<>();
+                tags.put(offset, list);
+            }
+            if (last) {
+                list.add(tag);
+            } else {
+                list.add(0, tag);
+            }
+        }
+
+        private static void appendTags(StringBuilder markup, List<String> tags) {
+            if (tags == null) return;
+            for (String tag : tags) {
+                markup.append(tag);
+            }
+        }
+
+        private SpannableStringBuilder build() {
+            SpannableStringBuilder spannable = new SpannableStringBuilder(layOut());
+            for (SpanRange span : spans) {
+                int start = span.open.end;
+                int end = span.close.start;
+                if (end <= start) continue;
+                switch (span.type) {
+                    case BOLD:
+                        spannable.setSpan(new StyleSpan(Typeface.BOLD), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        break;
+                    case ITALIC:
+                        spannable.setSpan(new StyleSpan(Typeface.ITALIC), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        break;
+                    case CODE:
+                        spannable.setSpan(new TypefaceSpan("monospace"), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        spannable.setSpan(new ForegroundColorSpan(CODE_COLOR), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        break;
+                    case LINK:
+                        spannable.setSpan(new URLSpan(span.url), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        break;
+                }
+            }
+            return spannable;
+        }
+
+        private static boolean isEscapable(char c) {
+            return c == '*' || c == '`' || c == '[' || c == ']' || c == '\\' || c == '_' || c == '#';
         }
     }
 
-    for (int i = 0; i < rows.size(); i++) {
-        TableRow tableRow = new TableRow(context);
-        tableRow.setPadding(4, 6, 4, 6);
-        tableRow.setLayoutParams(new TableLayout.LayoutParams(
-            TableLayout.LayoutParams.MATCH_PARENT,
-            TableLayout.LayoutParams.WRAP_CONTENT
-        ));
-
-        for (String cellText : rows.get(i)) {
-            TextView cell = new TextView(context);
-            cell.setText(renderInline(cellText)); // ✅ bold, link, code
-            cell.setPadding(8, 6, 8, 6);
-            cell.setTextSize(13f);
-            cell.setTextColor(Color.WHITE);
-            cell.setGravity(Gravity.START);
-           cell.setTypeface(Typeface.createFromAsset(context.getAssets(),"fonts/googlesans.ttf"), 0);
-            
-
-            GradientDrawable bg = new GradientDrawable();
-            bg.setCornerRadius(12f);
-            bg.setColor(i == 0 ? Color.parseColor("#37474F") : Color.parseColor("#212121"));
-            cell.setBackground(bg);
-
-            TableRow.LayoutParams params = new TableRow.LayoutParams(
-                TableRow.LayoutParams.WRAP_CONTENT, TableRow.LayoutParams.WRAP_CONTENT);
-            params.setMargins(4, 2, 4, 2);
-            cell.setLayoutParams(params);
-
-            tableRow.addView(cell);
-        }
-
-        tableLayout.addView(tableRow);
+    private static final class Token {
+        // Literal text, or null for a delimiter run
+        final String text;
+        final char delimiter;
+        // Delimiters not consumed by a match
+        int count;
+        int start;
+        int end;
+
+        Token(String text) {
+            this.text = text;
+            this.delimiter = 0;
+        }
+
+        Token(char delimiter, int count) {
+            this.text = null;
+            this.delimiter = delimiter;
+            this.count = count;
+        }
     }
-}
-public static SpannableStringBuilder renderInline(String markdown) {
-    SpannableStringBuilder spannable = new SpannableStringBuilder(markdown);
-    applyBold(spannable);
-    applyItalic(spannable);
-    applyCode(spannable);
-    applyLinks(spannable);
-    return spannable;
-}
 
-    private static void removeMarkers(SpannableStringBuilder spannable, String marker) {
-        int index = spannable.toString().indexOf(marker);
-        while (index != -1) {
-            spannable.delete(index, index + marker.length());
-            index = spannable.toString().indexOf(marker);
+    private static final class SpanRange {
+        final int type;
+        final Token open;
+        final Token close;
+        final String url;
+
+        SpanRange(int type, Token open, Token close, String url) {
+            this.type = type;
+            this.open = open;
+            this.close = close;
+            this.url = url;
         }
     }
-}
\ No newline at end of file
+}
@@ -3,10 +3,17 @@ package com.ibradecode.gemini;
 public class MarkdownSegment {
     public boolean isCode;
     public String content;
+    // Fence info string of a code segment, e.g. "java"; null if absent
+    public String language;
 
     public MarkdownSegment(boolean isCode, String content) {
+        this(isCode, content, null);
+    }
+
+    public MarkdownSegment(boolean isCode, String content, String language) {
         this.isCode = isCode;
         this.content = content;
+        this.language = language;
     }
     public boolean isTableLike() {
     return content.contains("|") && content.contains("---");
@@ -0,0 +1,326 @@
+package com.ibradecode.gemini;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.style.ClickableSpan;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws a markdown table directly on its canvas.
+ *
+ * There are no child views: the cells' inline markdown is rendered once,
+ * and column widths are measured once per table and font. Only
+ * cells that wrap are laid out up front, to know their row's height; the
+ * rest get their {@link StaticLayout} when first drawn. Every cell shares
+ * one background paint and one text paint.
+ *
+ * With hardware acceleration {@link #onDraw(Canvas)} records the whole
+ * table into the view's display list, whatever part of it is on screen,
+ * and scrolling replays that list without drawing again. A table therefore
+ * costs time in proportion to its cells once per bind, not per frame.
+ *
+ * Links in cells open on tap: touches are mapped to a cell with the same
+ * row and column offsets used for drawing.
+ *
+ * Wide tables report their natural width; put the view in a
+ * {@code HorizontalScrollView} to scroll them sideways.
+ */
+public class MarkdownTableView extends View {
+
+    private static final int HEADER_COLOR = Color.parseColor("#37474F");
+    private static final int BODY_COLOR = Color.parseColor("#212121");
+    private static final float TEXT_SIZE_SP = 13f;
+    private static final float MAX_COLUMN_WIDTH_DP = 240f;
+
+    private final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint cellPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF cellRect = new RectF();
+    private final float cellPaddingH;
+    private final float cellPaddingV;
+    private final float cellMargin;
+    private final float cornerRadius;
+    private final int maxColumnWidth;
+
+    private List<CharSequence[]> rows = new ArrayList<>();
+    private int columnCount;
+
+    // Layout state, rebuilt when the table or font change
+    private boolean layoutValid;
+    private int[] columnWidths = new int[0];
+    private int[] columnLefts = new int[0];
+    private StaticLayout[][] cellLayouts = new StaticLayout[0][];
+    // Top of every row, plus the bottom of the last one
+    private int[] rowTops = new int[1];
+    private int contentWidth;
+
+    // Link under the finger since ACTION_DOWN, opened if it is still there on ACTION_UP
+    private ClickableSpan pressedLink;
+
+    public MarkdownTableView(Context context) {
+        this(context, null);
+    }
+
+    public MarkdownTableView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        cellPaddingH = 8 * density;
+        cellPaddingV = 6 * density;
+        cellMargin = 2 * density;
+        cornerRadius = 12 * density;
+        maxColumnWidth = (int) (MAX_COLUMN_WIDTH_DP * density);
+
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP,
+            getResources().getDisplayMetrics()));
+    }
+
+    /**
+     * Parses {@code markdown} as a pipe table and shows it. The divider
+     * row is dropped; the first row is drawn as the header.
+     */
+    public void setMarkdown(String markdown) {
+        setRows(parseRows(markdown));
+    }
+
+    /**
+     * Splits a pipe table into rows of rendered cells. Safe to call off the
+     * main thread, so callers can parse before binding.
+     */
+    public static List<CharSequence[]> parseRows(String markdown) {
+        List<CharSequence[]> parsed = new ArrayList<>();
+        for (String line : markdown.split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || !trimmed.contains("|") || isDivider(trimmed)) continue;
+
+            String[] cells = splitRow(trimmed);
+            CharSequence[] rendered = new CharSequence[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                rendered[i] = MarkdownRenderer.renderInline(cells[i]);
+            }
+            parsed.add(rendered);
+        }
+        return parsed;
+    }
+
+    public void setRows(List<CharSequence[]> rows) {
+        if (this.rows == rows) return;
+        this.rows = rows;
+        columnCount = 0;
+        for (CharSequence[] row : rows) {
+            columnCount = Math.max(columnCount, row.length);
+        }
+        invalidateTableLayout();
+    }
+
+    public void setTypeface(Typeface typeface) {
+        if (textPaint.getTypeface() == typeface) return;
+        textPaint.setTypeface(typeface);
+        invalidateTableLayout();
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        ensureTableLayout();
+        int width = contentWidth + getPaddingLeft() + getPaddingRight();
+        int height = rowTops[rowTops.length - 1] + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(resolveSize(width, widthMeasureSpec), resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        ensureTableLayout();
+
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        for (int row = 0; row < rows.size(); row++) {
+            int rowTop = top + rowTops[row];
+            int rowBottom = top + rowTops[row + 1];
+
+            cellPaint.setColor(row == 0 ? HEADER_COLOR : BODY_COLOR);
+            for (int column = 0; column < columnCount; column++) {
+                float cellLeft = left + columnLefts[column] + cellMargin;
+                float cellRight = cellLeft + columnWidths[column] + 2 * cellPaddingH;
+                cellRect.set(cellLeft, rowTop + cellMargin, cellRight, rowBottom - cellMargin);
+                canvas.drawRoundRect(cellRect, cornerRadius, cornerRadius, cellPaint);
+
+                if (column >= rows.get(row).length) continue;
+                int save = canvas.save();
+                canvas.translate(cellLeft + cellPaddingH, rowTop + cellMargin + cellPaddingV);
+                getCellLayout(row, column).draw(canvas);
+                canvas.restoreToCount(save);
+            }
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                pressedLink = findLink(event.getX(), event.getY());
+                if (pressedLink != null) return true;
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (pressedLink != null) return true;
+                break;
+            case MotionEvent.ACTION_UP:
+                if (pressedLink != null) {
+                    ClickableSpan link = pressedLink;
+                    pressedLink = null;
+                    if (link == findLink(event.getX(), event.getY())) {
+                        link.onClick(this);
+                    }
+                    return true;
+                }
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                // A parent took the gesture over, e.g. to scroll
+                pressedLink = null;
+                break;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    // The link at a point in view coordinates, or null
+    private ClickableSpan findLink(float x, float y) {
+        ensureTableLayout();
+        float tableX = x - getPaddingLeft();
+        float tableY = y - getPaddingTop();
+        if (rows.isEmpty() || tableX < 0 || tableY < 0 || tableY >= rowTops[rows.size()]) return null;
+
+        int row = findRow((int) tableY);
+        int column = columnCount - 1;
+        while (column > 0 && columnLefts[column] > tableX) {
+            column--;
+        }
+        CharSequence[] cells = rows.get(row);
+        if (column >= cells.length || !(cells[column] instanceof Spanned)) return null;
+
+        StaticLayout layout = getCellLayout(row, column);
+        float textX = tableX - columnLefts[column] - cellMargin - cellPaddingH;
+        float textY = tableY - rowTops[row] - cellMargin - cellPaddingV;
+        if (textY < 0 || textY >= layout.getHeight()) return null;
+        int line = layout.getLineForVertical((int) textY);
+        if (textX < layout.getLineLeft(line) || textX > layout.getLineRight(line)) return null;
+
+        int offset = layout.getOffsetForHorizontal(line, textX);
+        ClickableSpan[] links = ((Spanned) cells[column]).getSpans(offset, offset, ClickableSpan.class);
+        return links.length > 0 ? links[0] : null;
+    }
+
+    private StaticLayout getCellLayout(int row, int column) {
+        StaticLayout layout = cellLayouts[row][column];
+        if (layout == null) {
+            layout = createLayout(rows.get(row)[column], column);
+            cellLayouts[row][column] = layout;
+        }
+        return layout;
+    }
+
+    private void invalidateTableLayout() {
+        layoutValid = false;
+        requestLayout();
+        invalidate();
+    }
+
+    private void ensureTableLayout() {
+        if (layoutValid) return;
+        layoutValid = true;
+
+        columnWidths = new int[columnCount];
+        int[][] desiredWidths = new int[rows.size()][];
+        for (int row = 0; row < rows.size(); row++) {
+            CharSequence[] cells = rows.get(row);
+            desiredWidths[row] = new int[cells.length];
+            for (int column = 0; column < cells.length; column++) {
+                int desired = (int) Math.ceil(Layout.getDesiredWidth(cells[column], textPaint));
+                desiredWidths[row][column] = desired;
+                columnWidths[column] = Math.max(columnWidths[column], Math.min(desired, maxColumnWidth));
+            }
+        }
+
+        columnLefts = new int[columnCount];
+        int x = 0;
+        for (int column = 0; column < columnCount; column++) {
+            columnLefts[column] = x;
+            x += columnWidths[column] + (int) (2 * cellPaddingH + 2 * cellMargin);
+        }
+        contentWidth = x;
+
+        // Cells that fit on one line get their layout when first drawn
+        Paint.FontMetricsInt metrics = textPaint.getFontMetricsInt();
+        int lineHeight = metrics.descent - metrics.ascent;
+        cellLayouts = new StaticLayout[rows.size()][columnCount];
+        rowTops = new int[rows.size() + 1];
+        int y = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            rowTops[row] = y;
+            CharSequence[] cells = rows.get(row);
+            int textHeight = lineHeight;
+            for (int column = 0; column < cells.length; column++) {
+                if (desiredWidths[row][column] > columnWidths[column]) {
+                    StaticLayout layout = createLayout(cells[column], column);
+                    cellLayouts[row][column] = layout;
+                    textHeight = Math.max(textHeight, layout.getHeight());
+                }
+            }
+            y += textHeight + (int) (2 * cellPaddingV + 2 * cellMargin);
+        }
+        rowTops[rows.size()] = y;
+    }
+
+    private StaticLayout createLayout(CharSequence text, int column) {
+        return new StaticLayout(text, textPaint, Math.max(1, columnWidths[column]),
+            Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+    }
+
+    // Index of the row containing offset y, clamped to the table
+    private int findRow(int y) {
+        int low = 0;
+        int high = rows.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (rowTops[mid] <= y) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isDivider(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c != '|' && c != '-' && c != ':' && c != ' ') return false;
+        }
+        return line.contains("-");
+    }
+
+    private static String[] splitRow(String line) {
+        int start = line.startsWith("|") ? 1 : 0;
+        int end = line.endsWith("|") && line.length() > start ? line.length() - 1 : line.length();
+        String[] cells = line.substring(start, end).split("\\|", -1);
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = cells[i].trim();
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,54 @@
+package com.ibradecode.gemini;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Collects the changes made inside nested {@link ChatRepository#batch}
+ * calls, so they are persisted and published once, when the outermost
+ * batch ends. Main thread only.
+ */
+public class MutationBatch {
+
+    private int depth;
+    private boolean changed;
+    private final Set<String> dirtyIds = new HashSet<>();
+
+    public void begin() {
+        depth++;
+    }
+
+    /**
+     * Returns true if this ended the outermost batch.
+     */
+    public boolean end() {
+        return --depth == 0;
+    }
+
+    public boolean isActive() {
+        return depth > 0;
+    }
+
+    /**
+     * Records a change; {@code sessionId} is null if only the session list changed.
+     */
+    public void record(String sessionId) {
+        changed = true;
+        if (sessionId != null) {
+            dirtyIds.add(sessionId);
+        }
+    }
+
+    /**
+     * Returns the ids of the sessions changed since the last call and
+     * forgets them, or null if nothing changed at all.
+     */
+    public Set<String> drain() {
+        if (!changed) return null;
+
+        Set<String> ids = new HashSet<>(dirtyIds);
+        dirtyIds.clear();
+        changed = false;
+        return ids;
+    }
+}
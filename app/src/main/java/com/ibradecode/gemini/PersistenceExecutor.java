@@ -0,0 +1,185 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded write-behind executor for chat sessions.
+ *
+ * Callers mark sessions dirty together with a snapshot of the session list.
+ * Mutations that arrive inside the debounce window are coalesced into one
+ * write of the latest snapshot, and a write is never delayed by more than
+ * {@code maxDelayMs} even under a constant stream of mutations. All disk I/O
+ * happens on the executor thread.
+ *
+ * Snapshots are frozen (see {@link ChatSession#freeze()}) when they are
+ * handed over, so the writer never sees a session the caller is still
+ * changing. The latest loaded copy of every dirty session is kept until it
+ * is written, in case a later snapshot holds only its header.
+ */
+public class PersistenceExecutor {
+    private static final String TAG = "PersistenceExecutor";
+
+    public interface Writer {
+        void write(List<ChatSession> sessions, Set<String> dirtySessionIds) throws Exception;
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Writer writer;
+    private final long debounceMs;
+    private final long maxDelayMs;
+
+    private final Object lock = new Object();
+    private final Set<String> dirtySessionIds = new HashSet<>();
+    private final Map<String, ChatSession> dirtySessions = new HashMap<>();
+    private List<ChatSession> pendingSnapshot;
+    private ScheduledFuture<?> scheduledWrite;
+    private long firstDirtyAt;
+
+    public PersistenceExecutor(Writer writer, long debounceMs, long maxDelayMs) {
+        this.writer = writer;
+        this.debounceMs = debounceMs;
+        this.maxDelayMs = maxDelayMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-persistence");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Records a mutation of {@code sessionId}. {@code snapshot} must be a list the
+     * caller no longer mutates; its sessions are frozen before this returns.
+     * Only the most recent snapshot gets written.
+     */
+    public void markDirty(String sessionId, List<ChatSession> snapshot) {
+        markAllDirty(sessionId != null ? Collections.singleton(sessionId)
+            : Collections.<String>emptySet(), snapshot);
+    }
+
+    /**
+     * Records a mutation of several sessions at once, see {@link #markDirty(String, List)}.
+     */
+    public void markAllDirty(Collection<String> sessionIds, List<ChatSession> snapshot) {
+        List<ChatSession> frozen = new ArrayList<>(snapshot.size());
+        for (ChatSession session : snapshot) {
+            frozen.add(session.freeze());
+        }
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (pendingSnapshot == null) {
+                firstDirtyAt = now;
+            }
+            pendingSnapshot = Collections.unmodifiableList(frozen);
+            dirtySessionIds.addAll(sessionIds);
+            for (ChatSession session : frozen) {
+                if (session.isLoaded() && dirtySessionIds.contains(session.getId())) {
+                    dirtySessions.put(session.getId(), session);
+                }
+            }
+
+            long delay = Math.min(debounceMs, Math.max(0, firstDirtyAt + maxDelayMs - now));
+            reschedule(delay);
+        }
+    }
+
+    /**
+     * Writes any pending mutations as soon as possible without blocking the caller.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (pendingSnapshot != null) {
+                reschedule(0);
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the persistence thread once all pending mutations are
+     * written, so it always observes the latest stored state.
+     */
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            writePending();
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Error running persistence task", e);
+            }
+        });
+    }
+
+    /**
+     * Flushes pending mutations and stops accepting new work once they are written.
+     */
+    public void shutdown() {
+        flush();
+        executor.shutdown();
+    }
+
+    private void reschedule(long delayMs) {
+        if (scheduledWrite != null) {
+            scheduledWrite.cancel(false);
+        }
+        if (executor.isShutdown()) {
+            Log.w(TAG, "Dropping write request after shutdown");
+            return;
+        }
+        scheduledWrite = executor.schedule(this::writePending, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void writePending() {
+        List<ChatSession> snapshot;
+        Set<String> dirty;
+        Map<String, ChatSession> loaded;
+        synchronized (lock) {
+            snapshot = pendingSnapshot;
+            dirty = new HashSet<>(dirtySessionIds);
+            loaded = new HashMap<>(dirtySessions);
+            pendingSnapshot = null;
+            dirtySessionIds.clear();
+            dirtySessions.clear();
+            scheduledWrite = null;
+        }
+        if (snapshot == null) return;
+
+        // A dirty session unloaded since it changed is written from its last loaded copy
+        List<ChatSession> sessions = new ArrayList<>(snapshot.size());
+        for (ChatSession session : snapshot) {
+            ChatSession copy = session.isLoaded() ? null : loaded.get(session.getId());
+            sessions.add(copy != null ? copy : session);
+        }
+
+        try {
+            writer.write(Collections.unmodifiableList(sessions), dirty);
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing chat sessions", e);
+            // Retry later unless a newer snapshot has superseded this one
+            synchronized (lock) {
+                if (pendingSnapshot == null) {
+                    pendingSnapshot = snapshot;
+                    firstDirtyAt = System.currentTimeMillis();
+                }
+                dirtySessionIds.addAll(dirty);
+                for (Map.Entry<String, ChatSession> entry : loaded.entrySet()) {
+                    if (!dirtySessions.containsKey(entry.getKey())) {
+                        dirtySessions.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                reschedule(maxDelayMs);
+            }
+        }
+    }
+}
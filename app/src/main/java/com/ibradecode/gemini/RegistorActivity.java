@@ -44,9 +44,6 @@ import org.json.*;
 
 public class RegistorActivity extends AppCompatActivity {
 	
-	private String fontName = "";
-	private String typeace = "";
-	
 	private LinearLayout linear2;
 	private ImageView imageview1;
 	private TextView text_title;
@@ -60,6 +57,7 @@ public class RegistorActivity extends AppCompatActivity {
 	
 	@Override
 	protected void onCreate(Bundle _savedInstanceState) {
+		FontInflaterFactory.install(this);
 		super.onCreate(_savedInstanceState);
 		setContentView(R.layout.registor);
 		initialize(_savedInstanceState);
@@ -90,48 +88,8 @@ public class RegistorActivity extends AppCompatActivity {
 		textinputlayout1.setHelperText("Misalnya, Keyra Sinta, Ibra dll.");
 		textinputlayout1.setBoxCornerRadii((float) 28,(float) 28,(float) 28,(float) 28);
 		textinputlayout1.setBoxBackgroundMode(textinputlayout1.BOX_BACKGROUND_OUTLINE);
-		_changeActivityFont("googlesans");
-	}
-	
-	public void _changeActivityFont(final String _fontname) {
-		fontName = "fonts/".concat(_fontname.concat(".ttf"));
-		overrideFonts(this,getWindow().getDecorView()); 
-	} 
-	private void overrideFonts(final android.content.Context context, final View v) {
-		
-		try {
-			Typeface 
-			typeace = Typeface.createFromAsset(getAssets(), fontName);;
-			if ((v instanceof ViewGroup)) {
-				ViewGroup vg = (ViewGroup) v;
-				for (int i = 0;
-				i < vg.getChildCount();
-				i++) {
-					View child = vg.getChildAt(i);
-					overrideFonts(context, child);
-				}
-			} else {
-				if ((v instanceof TextView)) {
-					((TextView) v).setTypeface(typeace);
-				} else {
-					if ((v instanceof EditText )) {
-						((EditText) v).setTypeface(typeace);
-					} else {
-						if ((v instanceof Button)) {
-							((Button) v).setTypeface(typeace);
-						}
-					}
-				}
-			}
-		}
-		catch(Exception e)
-		
-		{
-			SketchwareUtil.showMessage(getApplicationContext(), "Error Loading Font");
-		};
 	}
 	
-	
 	@Deprecated
 	public void showMessage(String _s) {
 		Toast.makeText(getApplicationContext(), _s, Toast.LENGTH_SHORT).show();
@@ -0,0 +1,130 @@
+package com.ibradecode.gemini;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.DrawableRes;
+import androidx.core.content.ContextCompat;
+
+import io.noties.markwon.Markwon;
+import io.noties.markwon.linkify.LinkifyPlugin;
+
+/**
+ * Process-wide cache of resources every screen shares: the app font, the
+ * {@link Markwon} instance and drawables that appear in many rows.
+ *
+ * Each resource is created once, on first use; {@link #preload(Context)}
+ * creates them on a background thread at startup so the first screens find
+ * them ready. Drawables are cached as {@link Drawable.ConstantState}, so every
+ * caller gets its own drawable sharing the decoded bitmap.
+ */
+public final class ResourceCache {
+    private static final String TAG = "ResourceCache";
+    private static final String FONT_ASSET = "fonts/googlesans.ttf";
+    // Shown in every reply header
+    private static final int[] PRELOADED_DRAWABLES = { R.drawable.logo };
+
+    private static volatile ResourceCache instance;
+
+    private final Context context;
+    private final SparseArray<Drawable.ConstantState> drawables = new SparseArray<>();
+    // One lock per resource, so a caller never waits for one it did not ask for
+    private final Object typefaceLock = new Object();
+    private final Object markwonLock = new Object();
+    private volatile Typeface typeface;
+    private volatile Markwon markwon;
+
+    public static ResourceCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (ResourceCache.class) {
+                if (instance == null) {
+                    instance = new ResourceCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Creates the shared resources on a background thread. Callers that
+     * need one before it is ready wait for that resource only.
+     */
+    public static void preload(Context context) {
+        ResourceCache cache = getInstance(context);
+        Thread thread = new Thread(() -> {
+            cache.getTypeface();
+            for (int resId : PRELOADED_DRAWABLES) {
+                cache.getDrawable(resId);
+            }
+            cache.getMarkwon();
+        }, "resource-preload");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    private ResourceCache(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * The app font, or {@link Typeface#DEFAULT} if it cannot be loaded.
+     */
+    public Typeface getTypeface() {
+        Typeface result = typeface;
+        if (result == null) {
+            synchronized (typefaceLock) {
+                result = typeface;
+                if (result == null) {
+                    try {
+                        result = Typeface.createFromAsset(context.getAssets(), FONT_ASSET);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Could not load custom font", e);
+                        result = Typeface.DEFAULT;
+                    }
+                    typeface = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public Markwon getMarkwon() {
+        Markwon result = markwon;
+        if (result == null) {
+            synchronized (markwonLock) {
+                result = markwon;
+                if (result == null) {
+                    result = Markwon.builder(context)
+                            .usePlugin(LinkifyPlugin.create())
+                            .build();
+                    markwon = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A new drawable for {@code resId} that shares its state with earlier ones.
+     */
+    public Drawable getDrawable(@DrawableRes int resId) {
+        Drawable.ConstantState state;
+        synchronized (drawables) {
+            state = drawables.get(resId);
+        }
+        if (state != null) {
+            return state.newDrawable(context.getResources());
+        }
+
+        Drawable drawable = ContextCompat.getDrawable(context, resId);
+        if (drawable != null && drawable.getConstantState() != null) {
+            synchronized (drawables) {
+                drawables.put(resId, drawable.getConstantState());
+            }
+        }
+        return drawable;
+    }
+}
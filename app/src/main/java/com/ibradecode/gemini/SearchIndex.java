@@ -0,0 +1,565 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the text of all chat messages.
+ *
+ * Every message is a document identified by (sessionId, messageIndex). Terms
+ * come from {@link TextTokenizer} and map to postings lists of document ids
+ * and term frequencies; results are ranked with BM25. The last word of a
+ * query that is still being typed is matched as a prefix, so the index can
+ * serve search-as-you-type.
+ *
+ * Every document remembers the id of its message. Updating a session keeps
+ * the documents of the leading messages whose ids still match and indexes
+ * the rest again, so appends cost only the new messages while messages
+ * merged in by sync or import still get the right indices. Removed
+ * documents are tombstoned and dropped from the postings when the index is
+ * saved.
+ *
+ * Queries may run on any thread; updates take an exclusive lock and are
+ * expected to run on the persistence thread.
+ *
+ * File layout (integers are varints unless noted):
+ * <pre>
+ * magic(int) version(int)
+ * sessionCount (id(str)) * sessionCount
+ * docCount (session messageIndex messageId(str) length) * docCount
+ * termCount (term(str) postingCount (docDelta frequency) * postingCount) * termCount
+ * </pre>
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+
+    static final int MAGIC = 0x474D5331; // "GMS1"
+    static final int VERSION = 2;
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int MAX_PREFIX_EXPANSIONS = 64;
+    private static final int MIN_PREFIX_LENGTH = 2;
+
+    public static class Hit {
+        public final String sessionId;
+        public final int messageIndex;
+        public final float score;
+
+        Hit(String sessionId, int messageIndex, float score) {
+            this.sessionId = sessionId;
+            this.messageIndex = messageIndex;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return "Hit{" + sessionId + "#" + messageIndex + ", score=" + score + "}";
+        }
+    }
+
+    private static class Postings {
+        int[] docs = new int[2];
+        int[] frequencies = new int[2];
+        int size;
+
+        void add(int doc, int frequency) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+
+    private final File file;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    // Document table; a null session marks a removed document
+    private String[] docSessions = new String[64];
+    private int[] docMessageIndex = new int[64];
+    private String[] docMessageId = new String[64];
+    private int[] docLength = new int[64];
+    private int docCount;
+    private int liveDocCount;
+    private long liveLength;
+    // Document ids of each session, in message order
+    private final Map<String, List<Integer>> sessionDocs = new HashMap<>();
+
+    private boolean dirty;
+
+    public SearchIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Number of leading messages of the session that are indexed.
+     */
+    public int getIndexedCount(String sessionId) {
+        lock.readLock().lock();
+        try {
+            List<Integer> docs = sessionDocs.get(sessionId);
+            return docs != null ? docs.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getSessionIds() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(sessionDocs.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes messages of a fully loaded session that are not indexed yet.
+     * From the first position whose message id changed, e.g. where a synced
+     * message was merged in, the session is indexed again.
+     */
+    public void updateSession(ChatSession session) throws IOException {
+        List<ChatMessage> messages = session.getMessages();
+        lock.writeLock().lock();
+        try {
+            List<Integer> docs = sessionDocs.get(session.getId());
+            if (docs != null) {
+                int kept = 0;
+                int limit = Math.min(docs.size(), messages.size());
+                while (kept < limit && messages.get(kept).getId().equals(docMessageId[docs.get(kept)])) {
+                    kept++;
+                }
+                removeDocsLocked(docs, kept);
+            }
+            if (docs == null) {
+                docs = new ArrayList<>(messages.size());
+                sessionDocs.put(session.getId(), docs);
+            }
+            for (int i = docs.size(); i < messages.size(); i++) {
+                ChatMessage message = messages.get(i);
+                docs.add(addDocument(session.getId(), i, message.getId(), message.loadText()));
+            }
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeSession(String sessionId) {
+        lock.writeLock().lock();
+        try {
+            if (removeSessionLocked(sessionId)) {
+                dirty = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every session not in {@code sessionIds}.
+     */
+    public void retainSessions(Collection<String> sessionIds) {
+        Set<String> keep = new HashSet<>(sessionIds);
+        for (String sessionId : getSessionIds()) {
+            if (!keep.contains(sessionId)) {
+                removeSession(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} messages matching the query, best first.
+     * Unless the query ends in whitespace or punctuation its last word is
+     * treated as a prefix.
+     */
+    public List<Hit> search(String query, int limit) {
+        if (query == null || limit <= 0) return Collections.emptyList();
+
+        Set<String> queryTerms = new HashSet<>(TextTokenizer.tokenize(query));
+        String prefix = null;
+        if (!query.isEmpty() && Character.isLetterOrDigit(query.charAt(query.length() - 1))) {
+            prefix = lastWord(query).toLowerCase(Locale.ROOT);
+            if (prefix.length() < MIN_PREFIX_LENGTH) {
+                prefix = null;
+            }
+        }
+
+        lock.readLock().lock();
+        try {
+            if (liveDocCount == 0) return Collections.emptyList();
+
+            if (prefix != null) {
+                int expansions = 0;
+                for (String term : prefixRange(prefix).keySet()) {
+                    queryTerms.add(term);
+                    if (++expansions >= MAX_PREFIX_EXPANSIONS) break;
+                }
+            }
+
+            float averageLength = (float) liveLength / liveDocCount;
+            Map<Integer, float[]> scores = new HashMap<>();
+            for (String term : queryTerms) {
+                Postings postings = terms.get(term);
+                if (postings != null) {
+                    score(postings, averageLength, scores);
+                }
+            }
+            return topHits(scores, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Persistence
+
+    /**
+     * Replaces the index with the one stored on disk. A missing or corrupt
+     * file leaves the index empty, to be rebuilt from the sessions.
+     */
+    public void load() {
+        lock.writeLock().lock();
+        try {
+            clearLocked();
+            FileUtil.deleteStaleTempFile(file);
+            if (!file.exists()) return;
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel channel = raf.getChannel();
+                readFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error reading search index, rebuilding", e);
+                clearLocked();
+            }
+            dirty = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the index if it changed since it was last saved or loaded.
+     */
+    public void save(GroupCommitWriter writer) throws IOException {
+        byte[] data;
+        // Exclusive since compaction rewrites the postings
+        lock.writeLock().lock();
+        try {
+            if (!dirty) return;
+            compactLocked();
+            data = encodeLocked();
+            dirty = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            writer.write(file, data);
+        } catch (IOException e) {
+            lock.writeLock().lock();
+            try {
+                dirty = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    private byte[] encodeLocked() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(docCount * 8 + terms.size() * 16 + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        List<String> sessionIds = new ArrayList<>(sessionDocs.keySet());
+        Map<String, Integer> sessionNumbers = new HashMap<>();
+        BinarySessionFormat.writeVarint(out, sessionIds.size());
+        for (String sessionId : sessionIds) {
+            sessionNumbers.put(sessionId, sessionNumbers.size());
+            BinarySessionFormat.writeString(out, sessionId);
+        }
+
+        BinarySessionFormat.writeVarint(out, docCount);
+        for (int doc = 0; doc < docCount; doc++) {
+            BinarySessionFormat.writeVarint(out, sessionNumbers.get(docSessions[doc]));
+            BinarySessionFormat.writeVarint(out, docMessageIndex[doc]);
+            BinarySessionFormat.writeString(out, docMessageId[doc]);
+            BinarySessionFormat.writeVarint(out, docLength[doc]);
+        }
+
+        BinarySessionFormat.writeVarint(out, terms.size());
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            Postings postings = entry.getValue();
+            BinarySessionFormat.writeString(out, entry.getKey());
+            BinarySessionFormat.writeVarint(out, postings.size);
+            int previous = 0;
+            for (int i = 0; i < postings.size; i++) {
+                BinarySessionFormat.writeVarint(out, postings.docs[i] - previous);
+                BinarySessionFormat.writeVarint(out, postings.frequencies[i]);
+                previous = postings.docs[i];
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void readFrom(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a search index");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported search index version: " + version);
+        }
+
+        String[] sessionIds = new String[BinarySessionFormat.readVarint(buffer)];
+        for (int i = 0; i < sessionIds.length; i++) {
+            sessionIds[i] = BinarySessionFormat.readString(buffer);
+        }
+
+        int count = BinarySessionFormat.readVarint(buffer);
+        ensureDocCapacity(count);
+        Map<String, TreeMap<Integer, Integer>> docsByMessage = new HashMap<>();
+        for (int doc = 0; doc < count; doc++) {
+            String sessionId = sessionIds[BinarySessionFormat.readVarint(buffer)];
+            docSessions[doc] = sessionId;
+            docMessageIndex[doc] = BinarySessionFormat.readVarint(buffer);
+            docMessageId[doc] = BinarySessionFormat.readString(buffer);
+            docLength[doc] = BinarySessionFormat.readVarint(buffer);
+            liveLength += docLength[doc];
+            TreeMap<Integer, Integer> docs = docsByMessage.get(sessionId);
+            if (docs == null) {
+                docs = new TreeMap<>();
+                docsByMessage.put(sessionId, docs);
+            }
+            docs.put(docMessageIndex[doc], doc);
+        }
+        docCount = count;
+        liveDocCount = count;
+
+        for (Map.Entry<String, TreeMap<Integer, Integer>> entry : docsByMessage.entrySet()) {
+            TreeMap<Integer, Integer> docs = entry.getValue();
+            if (docs.lastKey() != docs.size() - 1) {
+                throw new IOException("Gap in indexed messages of " + entry.getKey());
+            }
+            sessionDocs.put(entry.getKey(), new ArrayList<>(docs.values()));
+        }
+
+        int termCount = BinarySessionFormat.readVarint(buffer);
+        for (int i = 0; i < termCount; i++) {
+            String term = BinarySessionFormat.readString(buffer);
+            int size = BinarySessionFormat.readVarint(buffer);
+            Postings postings = new Postings();
+            postings.docs = new int[Math.max(2, size)];
+            postings.frequencies = new int[Math.max(2, size)];
+            int doc = 0;
+            for (int j = 0; j < size; j++) {
+                doc += BinarySessionFormat.readVarint(buffer);
+                if (doc >= docCount) {
+                    throw new IOException("Posting out of range for term " + term);
+                }
+                postings.add(doc, BinarySessionFormat.readVarint(buffer));
+            }
+            terms.put(term, postings);
+        }
+    }
+
+    // Internals; callers hold the lock
+
+    private int addDocument(String sessionId, int messageIndex, String messageId, String text) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        List<String> tokens = TextTokenizer.tokenize(text);
+        for (String token : tokens) {
+            Integer frequency = frequencies.get(token);
+            frequencies.put(token, frequency != null ? frequency + 1 : 1);
+        }
+
+        ensureDocCapacity(docCount + 1);
+        int doc = docCount++;
+        docSessions[doc] = sessionId;
+        docMessageIndex[doc] = messageIndex;
+        docMessageId[doc] = messageId;
+        docLength[doc] = tokens.size();
+        liveDocCount++;
+        liveLength += tokens.size();
+
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            Postings postings = terms.get(entry.getKey());
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(entry.getKey(), postings);
+            }
+            postings.add(doc, entry.getValue());
+        }
+        return doc;
+    }
+
+    private boolean removeSessionLocked(String sessionId) {
+        List<Integer> docs = sessionDocs.remove(sessionId);
+        if (docs == null) return false;
+        removeDocsLocked(docs, 0);
+        return true;
+    }
+
+    // Tombstones the documents of a session from position {@code from} on
+    private void removeDocsLocked(List<Integer> docs, int from) {
+        for (int i = from; i < docs.size(); i++) {
+            int doc = docs.get(i);
+            docSessions[doc] = null;
+            docMessageId[doc] = null;
+            liveDocCount--;
+            liveLength -= docLength[doc];
+        }
+        docs.subList(from, docs.size()).clear();
+    }
+
+    /**
+     * Drops removed documents and renumbers the rest, keeping their order.
+     */
+    private void compactLocked() {
+        if (liveDocCount == docCount) return;
+
+        int[] remap = new int[docCount];
+        int next = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (docSessions[doc] == null) {
+                remap[doc] = -1;
+                continue;
+            }
+            remap[doc] = next;
+            docSessions[next] = docSessions[doc];
+            docMessageIndex[next] = docMessageIndex[doc];
+            docMessageId[next] = docMessageId[doc];
+            docLength[next] = docLength[doc];
+            next++;
+        }
+        Arrays.fill(docSessions, next, docCount, null);
+        Arrays.fill(docMessageId, next, docCount, null);
+        docCount = next;
+
+        Iterator<Postings> iterator = terms.values().iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            int size = 0;
+            for (int i = 0; i < postings.size; i++) {
+                int doc = remap[postings.docs[i]];
+                if (doc >= 0) {
+                    postings.docs[size] = doc;
+                    postings.frequencies[size] = postings.frequencies[i];
+                    size++;
+                }
+            }
+            postings.size = size;
+            if (size == 0) {
+                iterator.remove();
+            }
+        }
+
+        for (List<Integer> docs : sessionDocs.values()) {
+            for (int i = 0; i < docs.size(); i++) {
+                docs.set(i, remap[docs.get(i)]);
+            }
+        }
+    }
+
+    private void clearLocked() {
+        terms.clear();
+        sessionDocs.clear();
+        Arrays.fill(docSessions, 0, docCount, null);
+        Arrays.fill(docMessageId, 0, docCount, null);
+        docCount = 0;
+        liveDocCount = 0;
+        liveLength = 0;
+    }
+
+    private void ensureDocCapacity(int capacity) {
+        if (capacity <= docSessions.length) return;
+        int newCapacity = Math.max(capacity, docSessions.length * 2);
+        docSessions = Arrays.copyOf(docSessions, newCapacity);
+        docMessageIndex = Arrays.copyOf(docMessageIndex, newCapacity);
+        docMessageId = Arrays.copyOf(docMessageId, newCapacity);
+        docLength = Arrays.copyOf(docLength, newCapacity);
+    }
+
+    private void score(Postings postings, float averageLength, Map<Integer, float[]> scores) {
+        int live = 0;
+        for (int i = 0; i < postings.size; i++) {
+            if (docSessions[postings.docs[i]] != null) live++;
+        }
+        if (live == 0) return;
+
+        float idf = (float) Math.log(1 + (liveDocCount - live + 0.5) / (live + 0.5));
+        for (int i = 0; i < postings.size; i++) {
+            int doc = postings.docs[i];
+            if (docSessions[doc] == null) continue;
+
+            int frequency = postings.frequencies[i];
+            float norm = K1 * (1 - B + B * docLength[doc] / averageLength);
+            float value = idf * frequency * (K1 + 1) / (frequency + norm);
+            float[] score = scores.get(doc);
+            if (score == null) {
+                scores.put(doc, new float[] {value});
+            } else {
+                score[0] += value;
+            }
+        }
+    }
+
+    private List<Hit> topHits(Map<Integer, float[]> scores, int limit) {
+        PriorityQueue<Map.Entry<Integer, float[]>> best = new PriorityQueue<>(limit + 1,
+            (a, b) -> Float.compare(a.getValue()[0], b.getValue()[0]));
+        for (Map.Entry<Integer, float[]> entry : scores.entrySet()) {
+            best.add(entry);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+
+        Hit[] hits = new Hit[best.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            Map.Entry<Integer, float[]> entry = best.poll();
+            int doc = entry.getKey();
+            hits[i] = new Hit(docSessions[doc], docMessageIndex[doc], entry.getValue()[0]);
+        }
+        return Arrays.asList(hits);
+    }
+
+    private SortedMap<String, Postings> prefixRange(String prefix) {
+        return terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private static String lastWord(String query) {
+        int start = query.length();
+        while (start > 0 && Character.isLetterOrDigit(query.charAt(start - 1))) {
+            start--;
+        }
+        return query.substring(start);
+    }
+}
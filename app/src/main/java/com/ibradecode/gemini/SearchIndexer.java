@@ -0,0 +1,133 @@
+package com.ibradecode.gemini;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the full-text {@link SearchIndex} in step with the session store.
+ *
+ * The index is caught up with the store once at startup by
+ * {@link #build(List)}, then updated after every write and saved
+ * periodically. All methods except {@link #search} run on the persistence
+ * thread, after the sessions they describe are on disk.
+ */
+public class SearchIndexer {
+    private static final String TAG = "SearchIndexer";
+    private static final String INDEX_FILE = "search.idx";
+    private static final long SAVE_INTERVAL_MS = 30_000;
+
+    private final SessionStore store;
+    private final SearchIndex index;
+    private final Executor queryExecutor;
+    private final Handler mainHandler;
+
+    // Only touched on the persistence thread
+    private boolean ready;
+    private long savedAt;
+
+    public SearchIndexer(SessionStore store, Executor queryExecutor, Handler mainHandler) {
+        this.store = store;
+        this.index = new SearchIndex(new File(store.getStoreDir(), INDEX_FILE));
+        this.queryExecutor = queryExecutor;
+        this.mainHandler = mainHandler;
+    }
+
+    /**
+     * Searches on the query thread and delivers the ranked hits on the main
+     * thread. The last word of the query is matched as a prefix.
+     */
+    public void search(String query, int limit, ChatRepository.SearchCallback callback) {
+        queryExecutor.execute(() -> {
+            List<SearchIndex.Hit> hits;
+            try {
+                hits = index.search(query, limit);
+            } catch (Exception e) {
+                Log.e(TAG, "Error searching chats", e);
+                hits = new ArrayList<>();
+            }
+            List<SearchIndex.Hit> results = hits;
+            mainHandler.post(() -> callback.onSearchResults(query, results));
+        });
+    }
+
+    /**
+     * Loads the saved index and re-indexes the sessions written after it was saved.
+     */
+    public void build(List<ChatSession> snapshot) {
+        index.load();
+
+        List<String> ids = new ArrayList<>(snapshot.size());
+        for (ChatSession session : snapshot) {
+            ids.add(session.getId());
+        }
+        index.retainSessions(ids);
+        int reindexed = 0;
+        for (ChatSession session : snapshot) {
+            if (index.getIndexedCount(session.getId()) == session.getMessageCount()) continue;
+            ChatSession full = session.isLoaded() ? session : store.loadSession(session.getId());
+            if (full == null) continue;
+            try {
+                index.updateSession(full);
+                reindexed++;
+            } catch (IOException e) {
+                // Indexed up to the unreadable message; retried on the next write or startup
+                Log.e(TAG, "Error indexing session " + session.getId(), e);
+            }
+        }
+        ready = true;
+        if (reindexed > 0) {
+            Log.i(TAG, "Indexed " + reindexed + " sessions for search");
+            save();
+        }
+    }
+
+    /**
+     * Indexes the written sessions of a saved snapshot. Failures are logged
+     * only: the sessions are on disk, so the write must not be retried.
+     */
+    public void onSessionsWritten(List<ChatSession> snapshot, Set<String> dirtyIds, Set<String> deletedIds) {
+        if (!ready) return;
+
+        try {
+            for (ChatSession session : snapshot) {
+                if (session.isLoaded() && dirtyIds.contains(session.getId())) {
+                    index.updateSession(session);
+                }
+            }
+            for (String id : deletedIds) {
+                index.removeSession(id);
+            }
+            if (System.currentTimeMillis() - savedAt >= SAVE_INTERVAL_MS) {
+                save();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating search index", e);
+        }
+    }
+
+    /**
+     * Indexes a session written to the store directly, e.g. by an import.
+     */
+    public void onSessionWritten(ChatSession session) throws IOException {
+        if (ready) {
+            index.updateSession(session);
+        }
+    }
+
+    public void save() {
+        if (!ready) return;
+        try {
+            index.save(GroupCommitWriter.getDefault());
+            savedAt = System.currentTimeMillis();
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving search index", e);
+        }
+    }
+}
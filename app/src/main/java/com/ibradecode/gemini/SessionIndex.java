@@ -0,0 +1,149 @@
+package com.ibradecode.gemini;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chat sessions indexed by id and kept in recency order (most recent first).
+ *
+ * A hash index points into an intrusive doubly-linked list, so lookup, insert,
+ * delete and move-to-front are all O(1). The ordered list handed out to
+ * observers is cached and only rebuilt when the order or membership changes.
+ * Not thread-safe; {@link ChatRepository} confines it to the main thread.
+ */
+public class SessionIndex {
+
+    private static class Node {
+        ChatSession session;
+        Node prev;
+        Node next;
+
+        Node(ChatSession session) {
+            this.session = session;
+        }
+    }
+
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Node head = new Node(null);
+    private List<ChatSession> snapshot;
+
+    public SessionIndex() {
+        head.prev = head;
+        head.next = head;
+    }
+
+    public ChatSession get(String sessionId) {
+        Node node = nodes.get(sessionId);
+        return node != null ? node.session : null;
+    }
+
+    public boolean contains(String sessionId) {
+        return nodes.containsKey(sessionId);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Inserts a session as the most recent one, replacing any session with the same id.
+     */
+    public void addFirst(ChatSession session) {
+        Node node = detachOrCreate(session);
+        linkAfter(node, head);
+        snapshot = null;
+    }
+
+    /**
+     * Inserts a session as the least recent one; used when loading in stored order.
+     */
+    public void addLast(ChatSession session) {
+        Node node = detachOrCreate(session);
+        linkAfter(node, head.prev);
+        snapshot = null;
+    }
+
+    /**
+     * Swaps in another instance of an indexed session without changing its position.
+     */
+    public boolean replace(ChatSession session) {
+        Node node = nodes.get(session.getId());
+        if (node == null) return false;
+        node.session = session;
+        snapshot = null;
+        return true;
+    }
+
+    public ChatSession remove(String sessionId) {
+        Node node = nodes.remove(sessionId);
+        if (node == null) return null;
+        unlink(node);
+        snapshot = null;
+        return node.session;
+    }
+
+    /**
+     * Marks a session as the most recently used. Returns false if it is unknown.
+     */
+    public boolean moveToFront(String sessionId) {
+        Node node = nodes.get(sessionId);
+        if (node == null) return false;
+        if (head.next != node) {
+            unlink(node);
+            linkAfter(node, head);
+            snapshot = null;
+        }
+        return true;
+    }
+
+    public void clear() {
+        nodes.clear();
+        head.prev = head;
+        head.next = head;
+        snapshot = null;
+    }
+
+    /**
+     * Sessions in recency order. The returned list is immutable and stays valid
+     * after later mutations, so it can be published to observers directly.
+     */
+    public List<ChatSession> snapshot() {
+        if (snapshot == null) {
+            List<ChatSession> ordered = new ArrayList<>(nodes.size());
+            for (Node node = head.next; node != head; node = node.next) {
+                ordered.add(node.session);
+            }
+            snapshot = Collections.unmodifiableList(ordered);
+        }
+        return snapshot;
+    }
+
+    private Node detachOrCreate(ChatSession session) {
+        Node node = nodes.get(session.getId());
+        if (node != null) {
+            unlink(node);
+            node.session = session;
+        } else {
+            node = new Node(session);
+            nodes.put(session.getId(), node);
+        }
+        return node;
+    }
+
+    private static void linkAfter(Node node, Node anchor) {
+        node.prev = anchor;
+        node.next = anchor.next;
+        anchor.next.prev = node;
+        anchor.next = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+}
@@ -0,0 +1,569 @@
+package com.ibradecode.gemini;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * On-disk storage for chat sessions.
+ *
+ * Every session is stored in its own {@link CompressedSessionFile}; a small
+ * JSON manifest records the session order and headers, so startup reads no
+ * message data. Sessions that have not been opened for a while are moved to
+ * a cold archive file compressed as a single block, and moved back to the hot
+ * set when they are next written. Only sessions that changed since
+ * the last save are re-encoded. All files are replaced atomically in a single
+ * {@link GroupCommitWriter} batch, so a crash mid-save leaves either the old
+ * or the new history, never a truncated one. History stored by older versions
+ * (a single JSON file, or SharedPreferences before that) is written to session
+ * files by the first save, and deleted only once every file reads back.
+ *
+ * Given a {@link KeyProvider}, session blocks and the manifest are encrypted
+ * at rest with a {@link StorageCipher}; plaintext files from earlier versions
+ * stay readable and are rewritten by {@link #encryptPlaintextSessions(List)}.
+ * The text of large messages is spilled to a {@link BlobStore}.
+ *
+ * A manifest that exists but cannot be read, e.g. because the key was lost
+ * when the app data was restored to another device, makes {@link #load()}
+ * fail. The store then refuses to write a manifest for the rest of the
+ * process, since a new one would orphan every session the old one lists.
+ */
+public class SessionStore {
+    private static final String TAG = "SessionStore";
+    private static final String PREFS_NAME = "ChatsHome";
+    private static final String HISTORY_KEY = "history";
+    private static final String LEGACY_SESSIONS_FILE = "chat_sessions.json";
+    private static final String STORE_DIR = "chats";
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String SESSION_SUFFIX = ".chat";
+    private static final String COLD_DIR = "cold";
+    private static final String BLOB_DIR = "blobs";
+    private static final byte[] MANIFEST_MAGIC = {'G', 'M', 'E', '1'};
+    private static final String MANIFEST_CONTEXT = "manifest";
+
+    private final SharedPreferences legacyPreferences;
+    private final File legacySessionsFile;
+    private final File storeDir;
+    private final File manifestFile;
+    private final File coldDir;
+    private final GroupCommitWriter writer;
+    private final StorageCipher cipher;
+    private final BlobStore blobs;
+    private final Gson gson = new Gson();
+
+    private volatile int compressionLevel = CompressedSessionFile.DEFAULT_LEVEL;
+    // Sessions read from a legacy format that the next save has to write first
+    private volatile List<ChatSession> legacySessions;
+    // Set when the manifest or the legacy history could not be read; it must not be overwritten
+    private volatile boolean storeUnreadable;
+
+    public SessionStore(Context context) {
+        this(context, GroupCommitWriter.getDefault(), new KeystoreKeyProvider(context));
+    }
+
+    /**
+     * @param keyProvider key for encryption at rest, or null to store plaintext
+     */
+    public SessionStore(Context context, GroupCommitWriter writer, KeyProvider keyProvider) {
+        this.legacyPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.legacySessionsFile = new File(context.getFilesDir(), LEGACY_SESSIONS_FILE);
+        this.storeDir = new File(context.getFilesDir(), STORE_DIR);
+        this.manifestFile = new File(storeDir, MANIFEST_FILE);
+        this.coldDir = new File(storeDir, COLD_DIR);
+        this.writer = writer;
+        this.cipher = keyProvider != null ? new StorageCipher(keyProvider) : null;
+        this.blobs = new BlobStore(new File(context.getFilesDir(), BLOB_DIR), cipher);
+    }
+
+    /**
+     * Sets the Deflate level (0-9, or -1 for the default) used for sessions written from now on.
+     */
+    public void setCompressionLevel(int level) {
+        compressionLevel = level;
+    }
+
+    /**
+     * Loads all sessions in stored order. Sessions come back header-only
+     * (see {@link ChatSession#isLoaded()}) unless they were migrated from a
+     * legacy format; use {@link #loadSession(String)} for the messages.
+     *
+     * @throws IOException if the manifest exists but cannot be read or
+     *     decrypted, or there is no manifest and the legacy history cannot
+     *     be read or parsed; the store is then {@link #isReadOnly() read-only}
+     */
+    public List<ChatSession> load() throws IOException {
+        // Nothing writes to the store before it is loaded; the indexes and sync state live here too
+        FileUtil.deleteStaleTempFiles(storeDir);
+        FileUtil.deleteStaleTempFiles(coldDir);
+        blobs.deleteStaleTempFiles();
+
+        if (!manifestFile.exists()) {
+            List<ChatSession> legacy;
+            try {
+                legacy = loadLegacy();
+            } catch (IOException e) {
+                // Saving now would count an empty history as migrated and delete the legacy copy
+                storeUnreadable = true;
+                throw e;
+            }
+            // Frozen before the caller sees them, like every snapshot the writer gets, so
+            // migrating and spilling never walk a session the main thread is changing
+            List<ChatSession> frozen = new ArrayList<>(legacy.size());
+            for (ChatSession session : legacy) {
+                frozen.add(session.freeze());
+            }
+            legacySessions = frozen;
+            return legacy;
+        }
+
+        List<Map<String, Object>> manifest;
+        try {
+            manifest = readManifest();
+        } catch (IOException e) {
+            storeUnreadable = true;
+            throw e;
+        }
+
+        List<ChatSession> sessions = new ArrayList<>();
+        for (Map<String, Object> entry : manifest) {
+            String id = (String) entry.get("id");
+            if (id == null) continue;
+
+            String lastMessageTime = (String) entry.get("lastMessageTime");
+            ChatSession session = ChatSession.header(id,
+                lastMessageTime != null ? lastMessageTime : "",
+                getLong(entry, "timestamp"),
+                (int) getLong(entry, "messageCount"),
+                (String) entry.get("preview"));
+            long lastAccessed = getLong(entry, "lastAccessed");
+            if (lastAccessed > 0) {
+                session.setLastAccessed(lastAccessed);
+            }
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    /**
+     * Reads one session with all of its messages from the hot set or the cold archive.
+     */
+    public ChatSession loadSession(String sessionId) {
+        File file = findSessionFile(sessionId);
+        if (file == null) return null;
+        try {
+            return CompressedSessionFile.read(file, cipher, blobs);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading session " + sessionId, e);
+            return null;
+        }
+    }
+
+    /**
+     * True once {@link #load()} failed to read the manifest or the legacy
+     * history; {@link #save(List, Set)} then fails instead of replacing it.
+     */
+    public boolean isReadOnly() {
+        return storeUnreadable;
+    }
+
+    public boolean isArchived(String sessionId) {
+        return !getSessionFile(sessionId).exists() && getColdFile(sessionId).exists();
+    }
+
+    /**
+     * Moves sessions last accessed before {@code cutoffMillis} to the cold
+     * archive. Must run on the same thread as {@link #save(List, Set)}.
+     */
+    public int archiveColdSessions(List<ChatSession> sessions, long cutoffMillis) {
+        int archived = 0;
+        for (ChatSession session : sessions) {
+            if (session.getLastAccessed() >= cutoffMillis) continue;
+
+            File hotFile = getSessionFile(session.getId());
+            if (!hotFile.exists()) continue;
+            try {
+                ChatSession full = CompressedSessionFile.read(hotFile, cipher, blobs);
+                byte[] cold = encodeCold(full);
+                writer.write(getColdFile(session.getId()), cold);
+                hotFile.delete();
+                archived++;
+            } catch (IOException e) {
+                Log.e(TAG, "Error archiving session " + session.getId(), e);
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Bytes the session occupies on disk, in whichever tier it is stored.
+     */
+    public long getDiskBytes(String sessionId) {
+        File file = getSessionFile(sessionId);
+        return file.exists() ? file.length() : getColdFile(sessionId).length();
+    }
+
+    /**
+     * Reads one session with only its newest {@code count} messages, or null if it is not stored.
+     */
+    public ChatSession loadTail(String sessionId, int count) {
+        File file = findSessionFile(sessionId);
+        if (file == null) return null;
+        try {
+            return CompressedSessionFile.readTail(file, count, cipher, blobs);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading session " + sessionId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads one session with only the messages in {@code [from, from + count)}, or null if it is not stored.
+     */
+    public ChatSession loadRange(String sessionId, int from, int count) {
+        File file = findSessionFile(sessionId);
+        if (file == null) return null;
+        try {
+            return CompressedSessionFile.readRange(file, from, count, cipher, blobs);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading session " + sessionId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Durably stores the sessions, re-encoding only the dirty ones. Blocks until the data is on disk.
+     */
+    public void save(List<ChatSession> sessions, Set<String> dirtySessionIds) throws IOException {
+        if (storeUnreadable) {
+            throw new IOException("Stored sessions could not be read; not replacing them");
+        }
+        List<ChatSession> legacy = legacySessions;
+        if (legacy != null) {
+            writeMigratedSessions(legacy);
+        }
+        int level = compressionLevel;
+
+        Map<File, byte[]> writes = new LinkedHashMap<>();
+        List<String> written = new ArrayList<>();
+        for (ChatSession session : sessions) {
+            // Header-only sessions have nothing new to write
+            if (session.isLoaded() && dirtySessionIds.contains(session.getId())) {
+                File file = getSessionFile(session.getId());
+                spillLargeMessages(session);
+                writes.put(file, CompressedSessionFile.encode(session, level, cipher, file));
+                written.add(session.getId());
+            }
+        }
+        // The manifest goes last so it never references a session file that is not on disk yet
+        writes.put(manifestFile, encodeManifest(sessions));
+
+        writer.writeAll(writes);
+
+        // Written sessions are hot again; drop any archived copy
+        for (String id : written) {
+            File coldFile = getColdFile(id);
+            if (coldFile.exists()) {
+                coldFile.delete();
+            }
+        }
+
+        // Remove files of deleted sessions; their blobs are collected at the next startup
+        for (String id : dirtySessionIds) {
+            if (!containsSession(sessions, id)) {
+                getSessionFile(id).delete();
+                getColdFile(id).delete();
+                blobs.markGarbage();
+            }
+        }
+
+        // Every migrated session and the manifest are on disk; drop the legacy copies
+        if (legacy != null) {
+            legacySessionsFile.delete();
+            if (legacyPreferences.contains(HISTORY_KEY)) {
+                legacyPreferences.edit().remove(HISTORY_KEY).apply();
+            }
+            legacySessions = null;
+        }
+    }
+
+    /**
+     * Writes every session read from the legacy format and reads each one
+     * back, so the legacy copy is only deleted once all of them are stored.
+     */
+    private void writeMigratedSessions(List<ChatSession> legacy) throws IOException {
+        Map<File, byte[]> writes = new LinkedHashMap<>();
+        for (ChatSession session : legacy) {
+            File file = getSessionFile(session.getId());
+            spillLargeMessages(session);
+            writes.put(file, CompressedSessionFile.encode(session, compressionLevel, cipher, null));
+        }
+        writer.writeAll(writes);
+
+        for (ChatSession session : legacy) {
+            ChatSession read = CompressedSessionFile.read(getSessionFile(session.getId()), cipher, blobs);
+            if (read.getMessageCount() != session.getMessageCount()) {
+                throw new IOException("Migrated session " + session.getId() + " has "
+                    + read.getMessageCount() + " of " + session.getMessageCount() + " messages");
+            }
+        }
+    }
+
+    /**
+     * Writes a single fully loaded session file outside of {@link #save(List, Set)},
+     * e.g. while importing. Its manifest entry is written by the next save.
+     * Must run on the same thread as {@link #save(List, Set)}.
+     */
+    public void writeSession(ChatSession session) throws IOException {
+        File file = getSessionFile(session.getId());
+        spillLargeMessages(session);
+        writer.write(file, CompressedSessionFile.encode(session, compressionLevel, cipher, file));
+        File coldFile = getColdFile(session.getId());
+        if (coldFile.exists()) {
+            coldFile.delete();
+        }
+    }
+
+    /**
+     * Rewrites session files and the manifest that were stored before
+     * encryption was enabled. Returns the number of sessions rewritten. Must
+     * run on the same thread as {@link #save(List, Set)}.
+     */
+    public int encryptPlaintextSessions(List<ChatSession> sessions) {
+        if (cipher == null) return 0;
+
+        int encrypted = 0;
+        for (ChatSession session : sessions) {
+            File file = findSessionFile(session.getId());
+            if (file == null) continue;
+            try {
+                if (CompressedSessionFile.readHeader(file).isEncrypted()) continue;
+
+                ChatSession full = CompressedSessionFile.read(file, null, blobs);
+                spillLargeMessages(full);
+                boolean cold = !file.equals(getSessionFile(session.getId()));
+                writer.write(file, cold ? encodeCold(full)
+                    : CompressedSessionFile.encode(full, compressionLevel, cipher, null));
+                encrypted++;
+            } catch (IOException e) {
+                Log.e(TAG, "Error encrypting session " + session.getId(), e);
+            }
+        }
+
+        try {
+            if (!storeUnreadable && manifestFile.exists() && !startsWith(readBytes(manifestFile), MANIFEST_MAGIC)) {
+                writer.write(manifestFile, encodeManifest(sessions));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error encrypting session manifest", e);
+        }
+        return encrypted;
+    }
+
+    /**
+     * Deletes blobs no stored session refers to, if a session was deleted
+     * since the last collection. Reads every session file, so it is meant to
+     * run once in the background. Must run on the same thread as
+     * {@link #save(List, Set)}.
+     */
+    public int collectGarbageBlobs(List<ChatSession> sessions) {
+        if (!blobs.hasGarbage()) return 0;
+
+        Set<String> referenced = new HashSet<>();
+        for (ChatSession session : sessions) {
+            File file = findSessionFile(session.getId());
+            if (file == null) continue;
+            try {
+                for (ChatMessage message : CompressedSessionFile.read(file, cipher, blobs).getMessages()) {
+                    if (message.getBlobId() != null) {
+                        referenced.add(message.getBlobId());
+                    }
+                }
+            } catch (IOException e) {
+                // A blob still in use might look unreferenced; try again next time
+                Log.e(TAG, "Error reading session " + session.getId() + ", skipping blob collection", e);
+                return 0;
+            }
+        }
+        return blobs.retain(referenced);
+    }
+
+    /**
+     * Directory holding the session files; derived data such as indexes lives next to them.
+     */
+    public File getStoreDir() {
+        return storeDir;
+    }
+
+    public File getSessionFile(String sessionId) {
+        return new File(storeDir, sanitizeFileName(sessionId) + SESSION_SUFFIX);
+    }
+
+    private File findSessionFile(String sessionId) {
+        File file = getSessionFile(sessionId);
+        if (file.exists()) return file;
+        file = getColdFile(sessionId);
+        return file.exists() ? file : null;
+    }
+
+    private File getColdFile(String sessionId) {
+        return new File(coldDir, sanitizeFileName(sessionId) + SESSION_SUFFIX);
+    }
+
+    private static long getLong(Map<String, Object> entry, String key) {
+        Object value = entry.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static boolean containsSession(List<ChatSession> sessions, String sessionId) {
+        for (ChatSession session : sessions) {
+            if (session.getId().equals(sessionId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] encodeCold(ChatSession session) throws IOException {
+        spillLargeMessages(session);
+        return CompressedSessionFile.encode(session, Deflater.BEST_COMPRESSION,
+            Integer.MAX_VALUE, Integer.MAX_VALUE, cipher, null);
+    }
+
+    /**
+     * Moves the text of large messages to the blob store before a session is
+     * encoded, so its file keeps only their previews. The encoder itself
+     * writes messages as they are.
+     */
+    private void spillLargeMessages(ChatSession session) throws IOException {
+        for (ChatMessage message : session.getMessages()) {
+            String text = message.getInlineText();
+            if (BlobStore.shouldSpill(text)) {
+                message.spill(text, blobs.put(text), blobs);
+            }
+        }
+    }
+
+    private byte[] encodeManifest(List<ChatSession> sessions) throws IOException {
+        List<Map<String, Object>> manifest = new ArrayList<>(sessions.size());
+        for (ChatSession session : sessions) {
+            manifest.add(toManifestEntry(session));
+        }
+        byte[] json = gson.toJson(manifest).getBytes(StandardCharsets.UTF_8);
+        if (cipher == null) return json;
+
+        // The manifest holds message previews, so it is encrypted as well
+        byte[] sealed = cipher.seal(json, MANIFEST_CONTEXT, 0);
+        byte[] data = new byte[MANIFEST_MAGIC.length + sealed.length];
+        System.arraycopy(MANIFEST_MAGIC, 0, data, 0, MANIFEST_MAGIC.length);
+        System.arraycopy(sealed, 0, data, MANIFEST_MAGIC.length, sealed.length);
+        return data;
+    }
+
+    private static Map<String, Object> toManifestEntry(ChatSession session) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("id", session.getId());
+        entry.put("lastMessageTime", session.getLastMessageTime());
+        entry.put("timestamp", session.getTimestamp());
+        entry.put("messageCount", session.getMessageCount());
+        entry.put("preview", session.getLastMessageText());
+        entry.put("lastAccessed", session.getLastAccessed());
+        return entry;
+    }
+
+    private List<Map<String, Object>> readManifest() throws IOException {
+        byte[] data = readBytes(manifestFile);
+        if (startsWith(data, MANIFEST_MAGIC)) {
+            if (cipher == null) {
+                throw new IOException("Session manifest is encrypted");
+            }
+            byte[] sealed = new byte[data.length - MANIFEST_MAGIC.length];
+            System.arraycopy(data, MANIFEST_MAGIC.length, sealed, 0, sealed.length);
+            data = cipher.open(sealed, MANIFEST_CONTEXT, 0);
+        }
+        try {
+            List<Map<String, Object>> entries = gson.fromJson(new String(data, StandardCharsets.UTF_8),
+                new TypeToken<List<Map<String, Object>>>(){}.getType());
+            return entries != null ? entries : new ArrayList<>();
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt session manifest", e);
+        }
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private List<ChatSession> loadLegacy() throws IOException {
+        String sessionsJson;
+        if (legacySessionsFile.exists()) {
+            sessionsJson = new String(readBytes(legacySessionsFile), StandardCharsets.UTF_8);
+        } else {
+            sessionsJson = legacyPreferences.getString(HISTORY_KEY, "[]");
+        }
+        return parseSessions(sessionsJson);
+    }
+
+    /**
+     * @throws IOException if the JSON is malformed or truncated, so the
+     *     legacy copy is never replaced by an empty history
+     */
+    private List<ChatSession> parseSessions(String sessionsJson) throws IOException {
+        List<ChatSession> sessions = new ArrayList<>();
+        // An empty file holds no history to lose
+        if (sessionsJson.trim().isEmpty()) return sessions;
+        try {
+            List<Map<String, Object>> sessionMaps = gson.fromJson(sessionsJson,
+                new TypeToken<List<Map<String, Object>>>(){}.getType());
+            if (sessionMaps == null) return sessions;
+
+            for (Map<String, Object> sessionMap : sessionMaps) {
+                ChatSession session = ChatSession.fromMap(sessionMap);
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Legacy chat history is unreadable", e);
+        }
+        return sessions;
+    }
+
+    private static String sanitizeFileName(String sessionId) {
+        StringBuilder name = new StringBuilder(sessionId.length());
+        for (int i = 0; i < sessionId.length(); i++) {
+            char c = sessionId.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.';
+            name.append(safe ? c : '_');
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.ibradecode.gemini;
+
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key held in memory only. Used where no Android Keystore is available,
+ * such as JVM tests and benchmarks.
+ */
+public class SoftwareKeyProvider implements KeyProvider {
+
+    static final int KEY_SIZE = 32;
+
+    private final SecretKey key;
+
+    public SoftwareKeyProvider(byte[] key) {
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Creates a provider with a new random 256-bit key.
+     */
+    public static SoftwareKeyProvider generate() {
+        byte[] key = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        return new SoftwareKeyProvider(key);
+    }
+
+    @Override
+    public SecretKey getKey() {
+        return key;
+    }
+}
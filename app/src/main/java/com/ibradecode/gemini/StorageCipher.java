@@ -0,0 +1,89 @@
+package com.ibradecode.gemini;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM for independently sealed blocks of a storage file.
+ *
+ * Every block gets a random 96-bit nonce and is authenticated together with
+ * its context (the session id) and block index, so blocks cannot be moved
+ * between files or reordered without failing to open. Because blocks are
+ * independent, appending to a session seals only the changed tail block,
+ * and reading a page opens only the blocks that hold it.
+ *
+ * Sealed block: nonce(12) ciphertext tag(16)
+ */
+public class StorageCipher {
+
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+    public static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final KeyProvider keyProvider;
+    private final SecureRandom random = new SecureRandom();
+    // Cipher lookup is comparatively slow and instances are not thread-safe
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+
+    public StorageCipher(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+    }
+
+    public byte[] seal(byte[] plain, String context, int index) throws IOException {
+        byte[] sealed = new byte[NONCE_SIZE + plain.length + TAG_SIZE];
+        random.nextBytes(sealed);
+        try {
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, keyProvider.getKey(),
+                new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, NONCE_SIZE));
+            cipher.updateAAD(associatedData(context, index));
+            cipher.doFinal(plain, 0, plain.length, sealed, NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error encrypting block " + index, e);
+        }
+        return sealed;
+    }
+
+    public byte[] open(byte[] sealed, String context, int index) throws IOException {
+        if (sealed.length < OVERHEAD) {
+            throw new IOException("Truncated encrypted block " + index);
+        }
+        try {
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.DECRYPT_MODE, keyProvider.getKey(),
+                new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, NONCE_SIZE));
+            cipher.updateAAD(associatedData(context, index));
+            return cipher.doFinal(sealed, NONCE_SIZE, sealed.length - NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            // Also thrown when the tag does not match, i.e. the block was tampered with
+            throw new IOException("Error decrypting block " + index, e);
+        }
+    }
+
+    private Cipher getCipher() throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private static byte[] associatedData(String context, int index) {
+        byte[] name = context.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[name.length + 4];
+        System.arraycopy(name, 0, data, 0, name.length);
+        data[name.length] = (byte) (index >>> 24);
+        data[name.length + 1] = (byte) (index >>> 16);
+        data[name.length + 2] = (byte) (index >>> 8);
+        data[name.length + 3] = (byte) index;
+        return data;
+    }
+}
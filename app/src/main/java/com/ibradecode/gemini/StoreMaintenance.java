@@ -0,0 +1,66 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Housekeeping on the session store: moving sessions that were not opened
+ * for a while to the cold archive, encrypting sessions written before
+ * encryption at rest, and deleting message blobs nothing refers to.
+ *
+ * Every method runs on the persistence thread and takes a snapshot of the
+ * session list as it was when the task was queued. The cold archive also
+ * runs after saves, at most every {@link #ARCHIVE_INTERVAL_MS}, so sessions
+ * go cold while the process stays alive and not only at the next start.
+ */
+public class StoreMaintenance {
+    private static final String TAG = "StoreMaintenance";
+    static final long ARCHIVE_INTERVAL_MS = 60 * 60 * 1000;
+
+    private final SessionStore store;
+    private volatile long coldArchiveAfterMs;
+    // Only touched on the persistence thread
+    private long archivedAt;
+
+    public StoreMaintenance(SessionStore store, long coldArchiveAfterMs) {
+        this.store = store;
+        this.coldArchiveAfterMs = coldArchiveAfterMs;
+    }
+
+    public void setColdArchiveAfterMillis(long millis) {
+        coldArchiveAfterMs = millis;
+    }
+
+    /**
+     * Runs the cold archive if the last pass is older than
+     * {@link #ARCHIVE_INTERVAL_MS}. Called with the snapshot of every save.
+     */
+    public void onSessionsWritten(List<ChatSession> snapshot) {
+        if (System.currentTimeMillis() - archivedAt < ARCHIVE_INTERVAL_MS) return;
+        archiveColdSessions(snapshot);
+    }
+
+    public void archiveColdSessions(List<ChatSession> snapshot) {
+        archivedAt = System.currentTimeMillis();
+        long cutoff = archivedAt - coldArchiveAfterMs;
+        int archived = store.archiveColdSessions(snapshot, cutoff);
+        if (archived > 0) {
+            Log.i(TAG, "Archived " + archived + " cold sessions");
+        }
+    }
+
+    public void encryptPlaintextSessions(List<ChatSession> snapshot) {
+        int encrypted = store.encryptPlaintextSessions(snapshot);
+        if (encrypted > 0) {
+            Log.i(TAG, "Encrypted " + encrypted + " sessions stored before encryption");
+        }
+    }
+
+    public void collectGarbageBlobs(List<ChatSession> snapshot) {
+        int deleted = store.collectGarbageBlobs(snapshot);
+        if (deleted > 0) {
+            Log.i(TAG, "Deleted " + deleted + " unreferenced message blobs");
+        }
+    }
+}
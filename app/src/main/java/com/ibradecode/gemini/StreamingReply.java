@@ -0,0 +1,63 @@
+package com.ibradecode.gemini;
+
+/**
+ * The text of a reply that is still streaming in.
+ *
+ * Chunks are appended on the network thread while the list splits and
+ * renders the reply on others, so readers copy only the part they have not
+ * handled yet with {@link #substring(int)}; an update then costs the size of
+ * the new text rather than of the whole reply. The finished reply becomes a
+ * regular message once, with {@link #toMessage()}. Thread-safe.
+ */
+public final class StreamingReply {
+
+    private final String id;
+    // Id, time and timestamp of the reply, without text; names its rows while it streams
+    private final ChatMessage header;
+    private final StringBuilder text = new StringBuilder();
+
+    public StreamingReply(String id, String time, long timestamp) {
+        this.id = id;
+        this.header = newMessage("", time, timestamp);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * A message with the id and time of the reply but no text.
+     */
+    public ChatMessage getHeader() {
+        return header;
+    }
+
+    public synchronized void append(String chunk) {
+        text.append(chunk);
+    }
+
+    public synchronized int length() {
+        return text.length();
+    }
+
+    /**
+     * Copies the text from {@code start} to the current end.
+     */
+    public synchronized String substring(int start) {
+        return text.substring(start);
+    }
+
+    /**
+     * Returns the reply received so far as a message with the same id.
+     */
+    public synchronized ChatMessage toMessage() {
+        return newMessage(text.toString(), header.getTime(), header.getTimestamp());
+    }
+
+    private ChatMessage newMessage(String content, String time, long timestamp) {
+        ChatMessage message = new ChatMessage("model", content, time);
+        message.setId(id);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+}
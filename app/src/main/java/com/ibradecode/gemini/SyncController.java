@@ -0,0 +1,157 @@
+package com.ibradecode.gemini;
+
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the {@link SyncEngine} that mirrors written sessions to a backup
+ * server.
+ *
+ * Written sessions are recorded as changes on the persistence thread and
+ * pushed by {@link #syncNow}. Changes pulled from the server are applied
+ * through {@link #applyRemoteChange(Runnable)}, so that persisting them does
+ * not put them back in the engine's change log.
+ */
+public class SyncController {
+    private static final String TAG = "SyncController";
+    private static final String STATE_FILE = "sync_state.json";
+
+    private final File stateFile;
+    private final PersistenceExecutor persistenceExecutor;
+    private final Handler mainHandler;
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor(runnable ->
+        new Thread(runnable, "chat-sync"));
+    private volatile SyncEngine engine;
+    // Main thread only
+    private final List<ChatRepository.SyncListener> listeners = new ArrayList<>();
+    // Sessions changed by a pull; their next write must not be uploaded again
+    private final Set<String> remoteChanges = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // True while a pulled change is applied on the main thread
+    private boolean applyingRemoteChange;
+
+    public SyncController(File storeDir, PersistenceExecutor persistenceExecutor, Handler mainHandler) {
+        this.stateFile = new File(storeDir, STATE_FILE);
+        this.persistenceExecutor = persistenceExecutor;
+        this.mainHandler = mainHandler;
+    }
+
+    /**
+     * Creates the engine once pending writes are done. On the first call
+     * {@code sessionIds} are queued for upload.
+     */
+    public void enable(List<String> sessionIds, SyncEngine.Transport transport,
+            SyncEngine.LocalSessions local) {
+        persistenceExecutor.execute(() -> {
+            SyncEngine created = new SyncEngine(stateFile, transport, local);
+            if (created.isInitial()) {
+                created.recordChanges(sessionIds, Collections.emptyList());
+            }
+            engine = created;
+        });
+    }
+
+    public boolean hasPendingChanges() {
+        SyncEngine current = engine;
+        return current != null && current.hasPendingChanges();
+    }
+
+    /**
+     * Pushes local changes and pulls remote ones in the background.
+     * {@code callback} may be null.
+     */
+    public void syncNow(ChatRepository.SyncCallback callback) {
+        // Queued behind enable() and pending writes
+        persistenceExecutor.execute(() -> syncExecutor.execute(() -> {
+            SyncEngine current = engine;
+            SyncEngine.Result result = null;
+            Exception error = null;
+            if (current == null) {
+                error = new IllegalStateException("Sync is not enabled");
+            } else {
+                try {
+                    result = current.sync();
+                } catch (Exception e) {
+                    Log.w(TAG, "Sync failed", e);
+                    error = e;
+                }
+            }
+            if (callback != null) {
+                SyncEngine.Result syncResult = result;
+                Exception syncError = error;
+                mainHandler.post(() -> callback.onSyncFinished(syncResult, syncError));
+            }
+        }));
+    }
+
+    /**
+     * Records the sessions of a saved snapshot as changes to upload. Runs on
+     * the persistence thread.
+     */
+    public void onSessionsWritten(List<ChatSession> snapshot, Set<String> dirtyIds, Set<String> deletedIds) {
+        SyncEngine current = engine;
+        if (current == null || dirtyIds.isEmpty()) return;
+
+        List<String> changed = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for (String id : dirtyIds) {
+            // The engine already settled changes it pulled
+            if (remoteChanges.remove(id)) continue;
+            (deletedIds.contains(id) ? deleted : changed).add(id);
+        }
+        current.recordChanges(changed, deleted);
+    }
+
+    /**
+     * Notes a change of {@code sessionId} about to be persisted. A local edit
+     * after a pulled change has to be uploaded after all.
+     */
+    @MainThread
+    public void onSessionChanged(String sessionId) {
+        if (applyingRemoteChange) {
+            remoteChanges.add(sessionId);
+        } else {
+            remoteChanges.remove(sessionId);
+        }
+    }
+
+    /**
+     * Runs a mutation pulled from the sync server.
+     */
+    @MainThread
+    public void applyRemoteChange(Runnable change) {
+        applyingRemoteChange = true;
+        try {
+            change.run();
+        } finally {
+            applyingRemoteChange = false;
+        }
+    }
+
+    @MainThread
+    public void addListener(ChatRepository.SyncListener listener) {
+        listeners.add(listener);
+    }
+
+    @MainThread
+    public void removeListener(ChatRepository.SyncListener listener) {
+        listeners.remove(listener);
+    }
+
+    @MainThread
+    public void notifySynced(ChatSession session) {
+        for (ChatRepository.SyncListener listener : new ArrayList<>(listeners)) {
+            listener.onSessionSynced(session);
+        }
+    }
+}
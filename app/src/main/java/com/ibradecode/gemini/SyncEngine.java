@@ -0,0 +1,517 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Mirrors chat sessions to a backup server by exchanging deltas.
+ *
+ * For every session the engine remembers how many messages the server has
+ * and a content hash of those messages. Sessions written locally are put in
+ * a change log; a push sends, for each logged session, only the messages
+ * after the synced prefix (or the whole session if the prefix no longer
+ * matches, e.g. after an import inserted older messages). Pushes are batched
+ * and gzip-compressed. A pull fetches the sessions changed on the server
+ * since the last cursor and merges them like an import.
+ *
+ * Push request:
+ * <pre>
+ * {"version":1, "deviceId":..., "sessions":[
+ *   {"id", "deleted":true} |
+ *   {"id", "lastMessageTime", "timestamp", "baseCount", "baseHash", "count", "hash", "messages":[...]}]}
+ * -> {"accepted":[id...], "rejected":[id...]}
+ * </pre>
+ * A session is rejected when the server's copy does not match
+ * {@code baseCount}/{@code baseHash}; it is then sent in full next time.
+ * Pull response:
+ * <pre>
+ * {"cursor":n, "more":bool, "sessions":[{"id", "deleted"} | {"id", ..., "count", "hash", "messages":[...]}]}
+ * </pre>
+ *
+ * State and change log survive restarts in a small JSON file. The change log
+ * may be recorded from any thread; {@link #sync()} runs one at a time on the
+ * caller's (background) thread.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+
+    static final int PROTOCOL_VERSION = 1;
+    private static final int MAX_BATCH_SESSIONS = 20;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    public interface Transport {
+        /**
+         * Sends a gzip-compressed JSON push request and returns the JSON response.
+         */
+        String push(byte[] gzippedRequest) throws IOException;
+
+        /**
+         * Returns the JSON changes made by other devices after {@code cursor}.
+         */
+        String pull(long cursor, String deviceId) throws IOException;
+    }
+
+    public interface LocalSessions {
+        /**
+         * Returns the fully loaded session, or null if it does not exist.
+         */
+        ChatSession load(String sessionId) throws IOException;
+
+        /**
+         * Stores a session updated from the server. The session holds the
+         * messages {@link #load(String)} returned plus the pulled ones; local
+         * messages added since must be kept.
+         */
+        void save(ChatSession session) throws IOException;
+
+        void delete(String sessionId);
+    }
+
+    public static class Result {
+        public int pushedSessions;
+        public int pushedMessages;
+        public int pulledSessions;
+        public long bytesSent;
+
+        @Override
+        public String toString() {
+            return "Result{pushed=" + pushedSessions + "/" + pushedMessages + " messages, pulled="
+                + pulledSessions + ", bytesSent=" + bytesSent + "}";
+        }
+    }
+
+    private static class SyncedSession {
+        int count;
+        String hash;
+
+        SyncedSession(int count, String hash) {
+            this.count = count;
+            this.hash = hash;
+        }
+    }
+
+    private static class State {
+        String deviceId;
+        long cursor;
+        long changeSeq;
+        Map<String, SyncedSession> synced = new HashMap<>();
+        // Session id -> change sequence number, so changes made during a push are not lost
+        Map<String, Long> pending = new LinkedHashMap<>();
+        Map<String, Long> pendingDeletes = new LinkedHashMap<>();
+    }
+
+    private final File stateFile;
+    private final Transport transport;
+    private final LocalSessions local;
+    private final Gson gson = new Gson();
+
+    private final Object lock = new Object();
+    private final Object syncLock = new Object();
+    private final State state;
+    private final boolean initial;
+
+    public SyncEngine(File stateFile, Transport transport, LocalSessions local) {
+        this.stateFile = stateFile;
+        this.transport = transport;
+        this.local = local;
+
+        FileUtil.deleteStaleTempFile(stateFile);
+        State loaded = null;
+        if (stateFile.exists()) {
+            try {
+                loaded = gson.fromJson(FileUtil.readFile(stateFile.getPath()), State.class);
+            } catch (Exception e) {
+                Log.e(TAG, "Error reading sync state, starting over", e);
+            }
+        }
+        initial = loaded == null;
+        state = loaded != null ? loaded : new State();
+        if (state.deviceId == null) {
+            state.deviceId = UUID.randomUUID().toString();
+        }
+    }
+
+    /**
+     * True if there was no sync state, so every local session has to be recorded as changed.
+     */
+    public boolean isInitial() {
+        return initial;
+    }
+
+    public boolean hasPendingChanges() {
+        synchronized (lock) {
+            return !state.pending.isEmpty() || !state.pendingDeletes.isEmpty();
+        }
+    }
+
+    /**
+     * Adds sessions to the change log. Blocks briefly to persist the log.
+     */
+    public void recordChanges(Collection<String> changedIds, Collection<String> deletedIds) {
+        if (changedIds.isEmpty() && deletedIds.isEmpty()) return;
+        synchronized (lock) {
+            for (String id : changedIds) {
+                state.pending.remove(id);
+                state.pending.put(id, ++state.changeSeq);
+                state.pendingDeletes.remove(id);
+            }
+            for (String id : deletedIds) {
+                state.pending.remove(id);
+                state.pendingDeletes.put(id, ++state.changeSeq);
+            }
+            saveStateLocked();
+        }
+    }
+
+    /**
+     * Pushes local changes, then pulls remote ones.
+     */
+    public Result sync() throws IOException {
+        synchronized (syncLock) {
+            Result result = new Result();
+            push(result);
+            pull(result);
+            return result;
+        }
+    }
+
+    // Push
+
+    private static class Entry {
+        final String id;
+        final long seq;
+        final boolean deleted;
+        final int count;
+        final String hash;
+        final int messageCount;
+
+        Entry(String id, long seq, boolean deleted, int count, String hash, int messageCount) {
+            this.id = id;
+            this.seq = seq;
+            this.deleted = deleted;
+            this.count = count;
+            this.hash = hash;
+            this.messageCount = messageCount;
+        }
+    }
+
+    private void push(Result result) throws IOException {
+        Map<String, Long> deletes;
+        Map<String, Long> changes;
+        synchronized (lock) {
+            deletes = new LinkedHashMap<>(state.pendingDeletes);
+            changes = new LinkedHashMap<>(state.pending);
+        }
+
+        JsonArray batch = new JsonArray();
+        List<Entry> entries = new ArrayList<>();
+        int batchBytes = 0;
+
+        for (Map.Entry<String, Long> delete : deletes.entrySet()) {
+            JsonObject json = new JsonObject();
+            json.addProperty("id", delete.getKey());
+            json.addProperty("deleted", true);
+            batch.add(json);
+            entries.add(new Entry(delete.getKey(), delete.getValue(), true, 0, null, 0));
+        }
+
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            String id = change.getKey();
+            ChatSession session = local.load(id);
+            if (session == null) {
+                settle(new Entry(id, change.getValue(), false, 0, null, 0), false);
+                continue;
+            }
+
+            List<ChatMessage> messages = session.getMessages();
+            SyncedSession synced;
+            synchronized (lock) {
+                synced = state.synced.get(id);
+            }
+            int base = 0;
+            if (synced != null && synced.count <= messages.size()
+                    && synced.hash.equals(hash(messages, synced.count))) {
+                base = synced.count;
+            }
+            String hash = hash(messages, messages.size());
+            if (synced != null && base == messages.size()) {
+                // The server already has every message
+                settle(new Entry(id, change.getValue(), false, base, hash, 0), true);
+                continue;
+            }
+
+            JsonObject json = new JsonObject();
+            json.addProperty("id", id);
+            json.addProperty("lastMessageTime", session.getLastMessageTime());
+            json.addProperty("timestamp", session.getTimestamp());
+            json.addProperty("baseCount", base);
+            json.addProperty("baseHash", base > 0 ? synced.hash : "");
+            json.addProperty("count", messages.size());
+            json.addProperty("hash", hash);
+            JsonArray messageArray = new JsonArray();
+            for (int i = base; i < messages.size(); i++) {
+                String text = messages.get(i).loadText();
+                messageArray.add(toJson(messages.get(i), text));
+                batchBytes += text != null ? text.length() : 0;
+            }
+            json.add("messages", messageArray);
+            batch.add(json);
+            entries.add(new Entry(id, change.getValue(), false, messages.size(), hash, messages.size() - base));
+
+            if (entries.size() >= MAX_BATCH_SESSIONS || batchBytes >= MAX_BATCH_BYTES) {
+                sendBatch(batch, entries, result);
+                batch = new JsonArray();
+                entries.clear();
+                batchBytes = 0;
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            sendBatch(batch, entries, result);
+        }
+    }
+
+    private void sendBatch(JsonArray sessions, List<Entry> entries, Result result) throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("version", PROTOCOL_VERSION);
+        request.addProperty("deviceId", state.deviceId);
+        request.add("sessions", sessions);
+        byte[] body = gzip(gson.toJson(request).getBytes(StandardCharsets.UTF_8));
+        result.bytesSent += body.length;
+
+        JsonObject response = parse(transport.push(body));
+        List<String> accepted = toStringList(response.getAsJsonArray("accepted"));
+        List<String> rejected = toStringList(response.getAsJsonArray("rejected"));
+        synchronized (lock) {
+            for (Entry entry : entries) {
+                if (accepted.contains(entry.id)) {
+                    settleLocked(entry, true);
+                    if (!entry.deleted) {
+                        result.pushedSessions++;
+                        result.pushedMessages += entry.messageCount;
+                    }
+                } else if (rejected.contains(entry.id)) {
+                    // The server's copy diverged; send the whole session next time
+                    state.synced.remove(entry.id);
+                }
+            }
+            saveStateLocked();
+        }
+    }
+
+    private void settle(Entry entry, boolean synced) {
+        synchronized (lock) {
+            settleLocked(entry, synced);
+            saveStateLocked();
+        }
+    }
+
+    /**
+     * Records that the server is up to date with the entry and drops it from
+     * the change log, unless the session changed again in the meantime.
+     */
+    private void settleLocked(Entry entry, boolean synced) {
+        Map<String, Long> log = entry.deleted ? state.pendingDeletes : state.pending;
+        Long seq = log.get(entry.id);
+        if (seq != null && seq == entry.seq) {
+            log.remove(entry.id);
+        }
+        if (entry.deleted || !synced) {
+            state.synced.remove(entry.id);
+        } else {
+            state.synced.put(entry.id, new SyncedSession(entry.count, entry.hash));
+        }
+    }
+
+    // Pull
+
+    private void pull(Result result) throws IOException {
+        boolean more = true;
+        while (more) {
+            long cursor;
+            synchronized (lock) {
+                cursor = state.cursor;
+            }
+            JsonObject response = parse(transport.pull(cursor, state.deviceId));
+            JsonArray sessions = response.getAsJsonArray("sessions");
+            if (sessions != null) {
+                for (JsonElement element : sessions) {
+                    applyRemote(element.getAsJsonObject());
+                    result.pulledSessions++;
+                }
+            }
+
+            synchronized (lock) {
+                if (response.has("cursor")) {
+                    state.cursor = response.get("cursor").getAsLong();
+                }
+                saveStateLocked();
+            }
+            more = response.has("more") && response.get("more").getAsBoolean()
+                && sessions != null && sessions.size() > 0;
+        }
+    }
+
+    private void applyRemote(JsonObject json) throws IOException {
+        String id = json.get("id").getAsString();
+        if (json.has("deleted") && json.get("deleted").getAsBoolean()) {
+            local.delete(id);
+            synchronized (lock) {
+                state.synced.remove(id);
+                state.pending.remove(id);
+                state.pendingDeletes.remove(id);
+                saveStateLocked();
+            }
+            return;
+        }
+
+        ChatSession incoming = new ChatSession(id, getString(json, "lastMessageTime"));
+        if (json.has("timestamp")) {
+            incoming.setTimestamp(json.get("timestamp").getAsLong());
+        }
+        List<ChatMessage> messages = new ArrayList<>();
+        JsonArray messageArray = json.getAsJsonArray("messages");
+        if (messageArray != null) {
+            for (JsonElement element : messageArray) {
+                ChatMessage message = fromJson(element.getAsJsonObject());
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        }
+        incoming.setMessages(messages);
+
+        ChatSession existing = local.load(id);
+        ChatSession current = existing;
+        if (existing == null) {
+            current = incoming;
+            local.save(incoming);
+        } else {
+            ChatSession merged = ChatBackup.mergeSessions(existing, incoming);
+            if (merged != null) {
+                local.save(merged);
+                current = merged;
+            }
+        }
+
+        int remoteCount = json.has("count") ? json.get("count").getAsInt() : -1;
+        String remoteHash = getString(json, "hash");
+        List<ChatMessage> currentMessages = current.getMessages();
+        synchronized (lock) {
+            if (currentMessages.size() == remoteCount && remoteHash.equals(hash(currentMessages, remoteCount))) {
+                state.synced.put(id, new SyncedSession(remoteCount, remoteHash));
+                state.pending.remove(id);
+            } else if (!state.pending.containsKey(id)) {
+                // Local messages the server does not have yet
+                state.pending.put(id, ++state.changeSeq);
+            }
+            saveStateLocked();
+        }
+    }
+
+    // Encoding
+
+    /**
+     * Hex SHA-256 over the first {@code count} messages.
+     */
+    static String hash(List<ChatMessage> messages, int count) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < count; i++) {
+                ChatMessage message = messages.get(i);
+                digest.update((message.getTimestamp() + "\u0000" + message.getRole() + "\u0000"
+                    + message.loadText() + "\u0001").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static JsonObject toJson(ChatMessage message, String text) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", message.getId());
+        json.addProperty("role", message.getRole());
+        json.addProperty("text", text);
+        json.addProperty("time", message.getTime());
+        json.addProperty("timestamp", message.getTimestamp());
+        return json;
+    }
+
+    private static ChatMessage fromJson(JsonObject json) {
+        String role = getString(json, "role");
+        if (role.isEmpty() || !json.has("text") || json.get("text").isJsonNull()) return null;
+        ChatMessage message = new ChatMessage(role, json.get("text").getAsString(), getString(json, "time"));
+        if (!getString(json, "id").isEmpty()) {
+            message.setId(getString(json, "id"));
+        }
+        if (json.has("timestamp")) {
+            message.setTimestamp(json.get("timestamp").getAsLong());
+        }
+        return message;
+    }
+
+    private static String getString(JsonObject json, String name) {
+        JsonElement value = json.get(name);
+        return value != null && !value.isJsonNull() ? value.getAsString() : "";
+    }
+
+    private static List<String> toStringList(JsonArray array) {
+        List<String> strings = new ArrayList<>();
+        if (array != null) {
+            for (JsonElement element : array) {
+                strings.add(element.getAsString());
+            }
+        }
+        return strings;
+    }
+
+    private JsonObject parse(String body) throws IOException {
+        try {
+            JsonObject json = gson.fromJson(body, JsonObject.class);
+            if (json == null) throw new IOException("Empty sync response");
+            return json;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed sync response", e);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private void saveStateLocked() {
+        try {
+            FileUtil.writeBytesAtomic(stateFile, gson.toJson(state).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving sync state", e);
+        }
+    }
+}
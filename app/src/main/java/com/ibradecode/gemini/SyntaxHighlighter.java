@@ -0,0 +1,386 @@
+package com.ibradecode.gemini;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.TextView;
+
+import androidx.annotation.MainThread;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Colours code blocks off the main thread.
+ *
+ * {@link #bind(TextView, String, String)} shows the code as plain text at
+ * once and, unless the highlighted version is cached, lexes it on a small
+ * background pool and swaps the spans in when they are ready, if the view
+ * still shows the same code. The lexer makes one pass over the code,
+ * recognising comments, strings, numbers, annotations and the keywords of
+ * the fence's language; unknown languages get C-like rules. Results are
+ * cached process-wide by language and code hash, bounded in characters.
+ */
+public class SyntaxHighlighter {
+    private static final String TAG = "SyntaxHighlighter";
+
+    private static final int COLOR_KEYWORD = Color.parseColor("#CC7832");
+    private static final int COLOR_STRING = Color.parseColor("#6A8759");
+    private static final int COLOR_NUMBER = Color.parseColor("#6897BB");
+    private static final int COLOR_COMMENT = Color.parseColor("#808080");
+    private static final int COLOR_ANNOTATION = Color.parseColor("#BBB529");
+
+    private static final int MAX_CACHE_CHARS = 512 * 1024;
+    // Longer blocks stay plain; lexing them would only delay other blocks
+    private static final int MAX_HIGHLIGHT_CHARS = 100_000;
+
+    private static final LruCache<String, Spanned> cache = new LruCache<String, Spanned>(MAX_CACHE_CHARS) {
+        @Override
+        protected int sizeOf(String key, Spanned value) {
+            return value.length() + 64;
+        }
+    };
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "syntax-highlight");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread only
+    private final Map<TextView, String> boundKeys = new WeakHashMap<>();
+    private volatile boolean released;
+
+    @MainThread
+    public void bind(TextView view, String code, String language) {
+        String key = cacheKey(code, language);
+        boundKeys.put(view, key);
+
+        Spanned cached = cache.get(key);
+        if (cached != null) {
+            view.setText(cached);
+            return;
+        }
+
+        view.setText(code);
+        if (code.length() > MAX_HIGHLIGHT_CHARS) return;
+
+        executor.execute(() -> {
+            if (released) return;
+            Spanned highlighted = cache.get(key);
+            try {
+                if (highlighted == null) {
+                    highlighted = highlight(code, language);
+                    cache.put(key, highlighted);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error highlighting " + language, e);
+            }
+            Spanned result = highlighted;
+            mainHandler.post(() -> onHighlighted(key, result));
+        });
+    }
+
+    /**
+     * Stops delivering results to this highlighter's views. Cached results are kept.
+     */
+    @MainThread
+    public void release() {
+        released = true;
+        boundKeys.clear();
+    }
+
+    private void onHighlighted(String key, Spanned highlighted) {
+        if (released || highlighted == null) return;
+        for (Map.Entry<TextView, String> entry : boundKeys.entrySet()) {
+            if (key.equals(entry.getValue())) {
+                entry.getKey().setText(highlighted);
+            }
+        }
+    }
+
+    private static String cacheKey(String code, String language) {
+        return (language != null ? language : "") + ':' + code.length() + ':' + code.hashCode();
+    }
+
+    /**
+     * Returns {@code code} with colour spans for its tokens. Safe on any thread.
+     */
+    public static Spanned highlight(String code, String language) {
+        Language lang = Language.forName(language);
+        SpannableString spannable = new SpannableString(code);
+        int length = code.length();
+        int i = 0;
+        while (i < length) {
+            char c = code.charAt(i);
+            int end;
+            int color;
+
+            if (lang.slashComments && code.startsWith("//", i)) {
+                end = lineEnd(code, i);
+                color = COLOR_COMMENT;
+            } else if (lang.slashComments && code.startsWith("/*", i)) {
+                end = code.indexOf("*/", i + 2);
+                end = end < 0 ? length : end + 2;
+                color = COLOR_COMMENT;
+            } else if (lang.hashComments && c == '#') {
+                end = lineEnd(code, i);
+                color = COLOR_COMMENT;
+            } else if (lang.dashComments && code.startsWith("--", i)) {
+                end = lineEnd(code, i);
+                color = COLOR_COMMENT;
+            } else if (lang.markup && code.startsWith("<!--", i)) {
+                end = code.indexOf("-->", i + 4);
+                end = end < 0 ? length : end + 3;
+                color = COLOR_COMMENT;
+            } else if (lang.tripleQuotes && (code.startsWith("\"\"\"", i) || code.startsWith("'''", i))) {
+                end = code.indexOf(code.substring(i, i + 3), i + 3);
+                end = end < 0 ? length : end + 3;
+                color = COLOR_STRING;
+            } else if (c == '"' || (c == '\'' && !lang.markup) || (c == '`' && lang.backtickStrings)) {
+                end = stringEnd(code, i, c);
+                color = COLOR_STRING;
+            } else if (lang.markup && c == '<') {
+                // Tag name, with the slash of a closing tag
+                end = i + 1;
+                if (end < length && (code.charAt(end) == '/' || code.charAt(end) == '?' || code.charAt(end) == '!')) end++;
+                int nameStart = end;
+                while (end < length && isMarkupNameChar(code.charAt(end))) end++;
+                if (end == nameStart) {
+                    i++;
+                    continue;
+                }
+                color = COLOR_KEYWORD;
+            } else if (isDigit(c) && (i == 0 || !isIdentifierPart(code.charAt(i - 1)))) {
+                end = i + 1;
+                while (end < length && (isIdentifierPart(code.charAt(end)) || code.charAt(end) == '.')) end++;
+                color = COLOR_NUMBER;
+            } else if (c == '@' && lang.annotations && i + 1 < length && Character.isJavaIdentifierStart(code.charAt(i + 1))) {
+                end = i + 1;
+                while (end < length && isIdentifierPart(code.charAt(end))) end++;
+                color = COLOR_ANNOTATION;
+            } else if (Character.isJavaIdentifierStart(c) && !lang.markup) {
+                end = i + 1;
+                while (end < length && isIdentifierPart(code.charAt(end))) end++;
+                String word = code.substring(i, end);
+                if (!lang.isKeyword(word)) {
+                    i = end;
+                    continue;
+                }
+                color = COLOR_KEYWORD;
+            } else {
+                i++;
+                continue;
+            }
+
+            spannable.setSpan(new ForegroundColorSpan(color), i, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            i = end;
+        }
+        return spannable;
+    }
+
+    private static int lineEnd(String code, int from) {
+        int end = code.indexOf('\n', from);
+        return end < 0 ? code.length() : end;
+    }
+
+    // Strings end at the closing quote or, except for backticks, at the line end
+    private static int stringEnd(String code, int start, char quote) {
+        int i = start + 1;
+        while (i < code.length()) {
+            char c = code.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == quote) return i + 1;
+            if (c == '\n' && quote != '`') return i;
+            i++;
+        }
+        return code.length();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isJavaIdentifierPart(c);
+    }
+
+    private static boolean isMarkupNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':' || c == '.';
+    }
+
+    private static final class Language {
+        private static final Map<String, Language> byName = new HashMap<>();
+        private static final Language GENERIC;
+
+        final Set<String> keywords;
+        boolean caseInsensitive;
+        boolean slashComments = true;
+        boolean hashComments;
+        boolean dashComments;
+        boolean tripleQuotes;
+        boolean backtickStrings;
+        boolean annotations;
+        boolean markup;
+
+        private Language(String keywords) {
+            this.keywords = keywords.isEmpty()
+                ? Collections.<String>emptySet()
+                : new HashSet<>(Arrays.asList(keywords.split(" ")));
+        }
+
+        boolean isKeyword(String word) {
+            return keywords.contains(caseInsensitive ? word.toLowerCase(Locale.ROOT) : word);
+        }
+
+        static Language forName(String name) {
+            Language language = name != null ? byName.get(name.toLowerCase(Locale.ROOT)) : null;
+            return language != null ? language : GENERIC;
+        }
+
+        private static void register(Language language, String... names) {
+            for (String name : names) {
+                byName.put(name, language);
+            }
+        }
+
+        static {
+            Language java = new Language("abstract assert boolean break byte case catch char class const continue " +
+                "default do double else enum extends final finally float for goto if implements import instanceof " +
+                "int interface long native new package private protected public return short static strictfp super " +
+                "switch synchronized this throw throws transient try var void volatile while true false null");
+            java.annotations = true;
+            register(java, "java");
+
+            Language kotlin = new Language("as break class continue do else false for fun if in interface is null " +
+                "object package return super this throw true try typealias typeof val var when while by catch " +
+                "constructor companion data enum final finally import init inner internal lateinit open override " +
+                "private protected public sealed suspend");
+            kotlin.annotations = true;
+            register(kotlin, "kotlin", "kt", "kts");
+
+            Language c = new Language("auto break case char const continue default do double else enum extern " +
+                "float for goto if inline int long register return short signed sizeof static struct switch " +
+                "typedef union unsigned void volatile while bool class namespace new delete private protected " +
+                "public template this throw try catch using virtual nullptr true false include define");
+            register(c, "c", "h", "cpp", "c++", "cc", "hpp", "objc", "objective-c");
+
+            Language csharp = new Language("abstract as base bool break byte case catch char class const continue " +
+                "decimal default do double else enum event false finally float for foreach if in int interface " +
+                "internal is long namespace new null object out override private protected public readonly ref " +
+                "return sealed short static string struct switch this throw true try using var virtual void while " +
+                "async await");
+            register(csharp, "cs", "csharp", "c#");
+
+            Language js = new Language("async await break case catch class const continue debugger default delete " +
+                "do else export extends false finally for from function if import in instanceof let new null of " +
+                "return static super switch this throw true try typeof undefined var void while yield interface " +
+                "type enum implements private public protected readonly as");
+            js.backtickStrings = true;
+            js.annotations = true;
+            register(js, "js", "javascript", "jsx", "ts", "typescript", "tsx", "mjs");
+
+            Language go = new Language("break case chan const continue default defer else fallthrough for func go " +
+                "goto if import interface map package range return select struct switch type var true false nil");
+            go.backtickStrings = true;
+            register(go, "go", "golang");
+
+            Language rust = new Language("as async await break const continue crate else enum extern false fn for " +
+                "if impl in let loop match mod move mut pub ref return self Self static struct super trait true " +
+                "type unsafe use where while dyn");
+            register(rust, "rust", "rs");
+
+            Language swift = new Language("associatedtype class deinit enum extension fileprivate func import init " +
+                "inout internal let open operator private protocol public static struct subscript typealias var " +
+                "break case continue default defer do else fallthrough for guard if in repeat return switch where " +
+                "while as catch false is nil self Self super throw throws true try");
+            swift.annotations = true;
+            register(swift, "swift");
+
+            Language dart = new Language("abstract as assert async await break case catch class const continue " +
+                "default do dynamic else enum export extends false final finally for get if implements import in " +
+                "is late library new null override required return set static super switch this throw true try " +
+                "var void while with yield");
+            dart.annotations = true;
+            register(dart, "dart", "flutter");
+
+            Language python = new Language("and as assert async await break class continue def del elif else " +
+                "except finally for from global if import in is lambda nonlocal not or pass raise return try while " +
+                "with yield True False None self");
+            python.slashComments = false;
+            python.hashComments = true;
+            python.tripleQuotes = true;
+            python.annotations = true;
+            register(python, "python", "py", "python3");
+
+            Language ruby = new Language("alias and begin break case class def defined do else elsif end ensure " +
+                "false for if in module next nil not or redo rescue retry return self super then true undef " +
+                "unless until when while yield require");
+            ruby.slashComments = false;
+            ruby.hashComments = true;
+            register(ruby, "ruby", "rb");
+
+            Language php = new Language("abstract and array as break case catch class clone const continue declare " +
+                "default do echo else elseif empty endif extends final finally for foreach function global if " +
+                "implements include instanceof interface isset namespace new or private protected public require " +
+                "return static switch throw trait try unset use var while true false null");
+            php.hashComments = true;
+            register(php, "php");
+
+            Language shell = new Language("if then else elif fi case esac for while until do done in function " +
+                "return exit export local readonly echo cd sudo");
+            shell.slashComments = false;
+            shell.hashComments = true;
+            register(shell, "sh", "bash", "shell", "zsh", "console", "terminal");
+
+            Language yaml = new Language("true false null yes no");
+            yaml.slashComments = false;
+            yaml.hashComments = true;
+            register(yaml, "yaml", "yml", "toml", "ini", "properties", "dockerfile");
+
+            Language sql = new Language("select from where insert into values update set delete create table " +
+                "drop alter add primary key foreign references join inner left right outer on group by order " +
+                "having limit offset as and or not null is in like distinct union all index view default " +
+                "integer int text varchar boolean");
+            sql.caseInsensitive = true;
+            sql.slashComments = false;
+            sql.dashComments = true;
+            register(sql, "sql", "sqlite", "mysql", "postgresql");
+
+            Language json = new Language("true false null");
+            json.slashComments = false;
+            register(json, "json", "jsonc");
+
+            Language markup = new Language("");
+            markup.slashComments = false;
+            markup.markup = true;
+            register(markup, "xml", "html", "htm", "svg", "vue");
+
+            Language css = new Language("important");
+            register(css, "css", "scss", "less");
+
+            GENERIC = new Language("if else for while do return break continue switch case default class " +
+                "interface enum struct function func fun def var val let const new this self null nil true false " +
+                "import package public private protected static final void int long float double boolean bool " +
+                "string try catch finally throw async await");
+            GENERIC.annotations = true;
+        }
+    }
+}
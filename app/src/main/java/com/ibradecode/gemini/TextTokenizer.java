@@ -0,0 +1,101 @@
+package com.ibradecode.gemini;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits chat text into normalized search terms for Indonesian and English.
+ *
+ * Terms are lower-cased runs of letters and digits (any script). Very common
+ * words are dropped, Indonesian particles (-nya, -lah, -kah, -pun) are
+ * stripped, and English plurals and verb endings are reduced with a light
+ * suffix stemmer. The same rules must be applied to documents and queries.
+ */
+public class TextTokenizer {
+
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 40;
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+        // Indonesian
+        "yang", "dan", "di", "ke", "dari", "ini", "itu", "ada", "untuk", "dengan", "atau",
+        "juga", "aja", "saja", "akan", "sudah", "udah", "belum", "bisa", "tidak", "gak",
+        "nggak", "ga", "ya", "yaa", "kan", "sih", "dong", "deh", "nih", "tuh", "aku", "kamu",
+        "saya", "kita", "kami", "dia", "mereka", "jadi", "karena", "kalau", "kalo", "pada",
+        "oleh", "seperti", "lagi", "apa", "hehe",
+        // English
+        "the", "a", "an", "and", "or", "of", "to", "in", "on", "for", "with", "is", "are",
+        "was", "were", "be", "been", "it", "its", "this", "that", "as", "at", "by", "from",
+        "you", "your", "i", "me", "my", "we", "our", "can", "do", "does", "did", "not",
+        "so", "if", "but", "have", "has", "had", "will", "just"
+    ));
+
+    private static final String[] INDONESIAN_PARTICLES = {"nya", "lah", "kah", "pun"};
+
+    private TextTokenizer() {
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) return terms;
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                String term = normalize(text.substring(start, i));
+                if (term != null) {
+                    terms.add(term);
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Normalizes a single word; returns null for words that should not be indexed.
+     */
+    public static String normalize(String word) {
+        String term = word.toLowerCase(Locale.ROOT);
+        if (term.length() < MIN_TERM_LENGTH || STOP_WORDS.contains(term)) {
+            return null;
+        }
+        if (term.length() > MAX_TERM_LENGTH) {
+            term = term.substring(0, MAX_TERM_LENGTH);
+        }
+        return stem(term);
+    }
+
+    static String stem(String term) {
+        for (String particle : INDONESIAN_PARTICLES) {
+            if (term.length() >= particle.length() + 3 && term.endsWith(particle)) {
+                return term.substring(0, term.length() - particle.length());
+            }
+        }
+
+        if (term.length() > 5 && term.endsWith("ing")) {
+            return term.substring(0, term.length() - 3);
+        }
+        if (term.length() > 4 && term.endsWith("ies")) {
+            return term.substring(0, term.length() - 3) + "y";
+        }
+        if (term.length() > 4 && term.endsWith("ed")) {
+            return term.substring(0, term.length() - 2);
+        }
+        if (term.length() > 3 && term.endsWith("s") && !term.endsWith("ss")) {
+            return term.substring(0, term.length() - 1);
+        }
+        return term;
+    }
+}
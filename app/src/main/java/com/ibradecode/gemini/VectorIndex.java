@@ -0,0 +1,680 @@
+package com.ibradecode.gemini;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only file of int8-quantized message embeddings, searched by brute force.
+ *
+ * Layout:
+ * <pre>
+ * magic(int) version(int) dimensions(int) modelHash(int) generation(int)
+ * (sessionOrdinal(int) messageIndex(int) messageIdHash(int) scale(float) component(byte) * dimensions) * recordCount
+ * </pre>
+ * Vectors are L2-normalized before quantization, so the dot product of two
+ * records approximates their cosine similarity. Records are fixed-size and
+ * scanned straight from a memory-mapped buffer, one block of consecutive
+ * records at a time, with blocks spread over all cores.
+ *
+ * Session ids are kept in a small side table indexed by ordinal; removing a
+ * session clears its ordinal and the records become dead until the file is
+ * compacted when it is next opened. Compaction renumbers the ordinals, so
+ * both files carry a generation: the vector file is replaced first, then the
+ * table, and files of different generations are discarded on open. Each record also carries the hash of
+ * its message's id, so {@link #getMatchingCount(String, List)} can tell
+ * where a session changed other than at its end, and
+ * {@link #truncateSession(String, int)} kills the records from there on.
+ *
+ * Appends and removals must come from a single thread; searches may run
+ * concurrently from other threads.
+ */
+public class VectorIndex implements Closeable {
+    private static final String TAG = "VectorIndex";
+
+    static final int MAGIC = 0x474D5631; // "GMV1"
+    static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int BLOCK_RECORDS = 256;
+    private static final int MIN_PARALLEL_BLOCKS = 4;
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static volatile ExecutorService scanPool;
+
+    private final File vectorFile;
+    private final File sessionTableFile;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int dimensions;
+    private int recordSize;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int recordCount;
+    // Bumped whenever the ordinals are renumbered
+    private int generation;
+
+    // Ordinal -> session id; null for removed sessions
+    private final List<String> sessionIds = new ArrayList<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    // Message id hashes of each session's embedded messages, by message index
+    private final Map<String, List<Integer>> messageHashes = new HashMap<>();
+
+    public VectorIndex(File vectorFile, File sessionTableFile) {
+        this.vectorFile = vectorFile;
+        this.sessionTableFile = sessionTableFile;
+    }
+
+    /**
+     * Opens the index for vectors of the given model, starting over if the
+     * stored vectors came from a different model or are unreadable.
+     */
+    public void open(String modelId, int dimensions) throws IOException {
+        lock.writeLock().lock();
+        try {
+            closeLocked();
+            this.dimensions = dimensions;
+            this.recordSize = RECORD_HEADER_SIZE + dimensions;
+            int modelHash = modelId.hashCode();
+
+            File parent = vectorFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            FileUtil.deleteStaleTempFile(vectorFile);
+            FileUtil.deleteStaleTempFile(sessionTableFile);
+
+            boolean valid = readSessionTable() && openVectorFile(modelHash);
+            if (!valid) {
+                reset(modelHash);
+                return;
+            }
+
+            int dead = scanRecords();
+            if (dead > 0 && dead >= recordCount - dead) {
+                compact(modelHash, recordCount - dead);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of leading messages of the session that have a vector.
+     */
+    public int getEmbeddedCount(String sessionId) {
+        lock.readLock().lock();
+        try {
+            List<Integer> hashes = messageHashes.get(sessionId);
+            return hashes != null ? hashes.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of leading {@code messages} whose vectors are stored for the
+     * same message ids. Less than {@link #getEmbeddedCount(String)} once
+     * messages were inserted or removed before the end.
+     */
+    public int getMatchingCount(String sessionId, List<ChatMessage> messages) {
+        lock.readLock().lock();
+        try {
+            List<Integer> hashes = messageHashes.get(sessionId);
+            if (hashes == null) return 0;
+            int limit = Math.min(hashes.size(), messages.size());
+            int count = 0;
+            while (count < limit && hashes.get(count) == messages.get(count).getId().hashCode()) {
+                count++;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getSessionIds() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(ordinals.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends vectors for messages {@code firstMessageIndex, firstMessageIndex + 1, ...}
+     * of a session; {@code messages} holds those messages, one per vector.
+     * Vectors that are already stored are skipped.
+     */
+    public void append(String sessionId, int firstMessageIndex, List<ChatMessage> messages, float[][] vectors)
+            throws IOException {
+        int skip = getEmbeddedCount(sessionId) - firstMessageIndex;
+        if (skip < 0) {
+            throw new IllegalArgumentException("Gap before message " + firstMessageIndex + " of " + sessionId);
+        }
+        if (skip >= vectors.length) return;
+
+        lock.writeLock().lock();
+        try {
+            if (channel == null) {
+                throw new IOException("Vector index is not open");
+            }
+            Integer ordinal = ordinals.get(sessionId);
+            if (ordinal == null) {
+                ordinal = sessionIds.size();
+                sessionIds.add(sessionId);
+                ordinals.put(sessionId, ordinal);
+                // The table must know the ordinal before any record uses it
+                writeSessionTable();
+            }
+
+            int count = vectors.length - skip;
+            ByteBuffer records = ByteBuffer.allocate(count * recordSize);
+            for (int i = skip; i < vectors.length; i++) {
+                if (vectors[i].length != dimensions) {
+                    throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got "
+                        + vectors[i].length);
+                }
+                records.putInt(ordinal);
+                records.putInt(firstMessageIndex + i);
+                records.putInt(messages.get(i).getId().hashCode());
+                quantize(vectors[i], records);
+            }
+            records.flip();
+
+            long position = HEADER_SIZE + (long) recordCount * recordSize;
+            while (records.hasRemaining()) {
+                position += channel.write(records, position);
+            }
+            channel.force(false);
+            recordCount += count;
+            List<Integer> hashes = messageHashes.get(sessionId);
+            if (hashes == null) {
+                hashes = new ArrayList<>();
+                messageHashes.put(sessionId, hashes);
+            }
+            for (int i = skip; i < vectors.length; i++) {
+                hashes.add(messages.get(i).getId().hashCode());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the vectors of the session's messages from {@code messageIndex}
+     * on, so they can be appended again for the messages now there.
+     */
+    public void truncateSession(String sessionId, int messageIndex) throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<Integer> hashes = messageHashes.get(sessionId);
+            if (hashes == null || messageIndex >= hashes.size()) return;
+            if (channel == null) {
+                throw new IOException("Vector index is not open");
+            }
+            int ordinal = ordinals.get(sessionId);
+
+            // Dead records are skipped by searches and dropped when the file is compacted
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            ByteBuffer dead = ByteBuffer.allocate(4);
+            for (int record = 0; record < recordCount; record++) {
+                long position = HEADER_SIZE + (long) record * recordSize;
+                entry.clear();
+                channel.read(entry, position);
+                if (entry.getInt(0) != ordinal || entry.getInt(4) < messageIndex) continue;
+                dead.clear();
+                dead.putInt(0, -1);
+                channel.write(dead, position);
+            }
+            channel.force(false);
+            hashes.subList(messageIndex, hashes.size()).clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeSession(String sessionId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.remove(sessionId);
+            messageHashes.remove(sessionId);
+            if (ordinal == null) return;
+            sessionIds.set(ordinal, null);
+            writeSessionTable();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every session not in {@code sessionIds}.
+     */
+    public void retainSessions(Collection<String> sessionIds) throws IOException {
+        Set<String> keep = new HashSet<>(sessionIds);
+        for (String sessionId : getSessionIds()) {
+            if (!keep.contains(sessionId)) {
+                removeSession(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@code limit} messages most similar to {@code query}, best first.
+     */
+    public List<SearchIndex.Hit> search(float[] query, int limit) throws IOException {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + query.length);
+        }
+        ByteBuffer quantized = ByteBuffer.allocate(4 + dimensions);
+        quantize(query, quantized);
+        float queryScale = quantized.getFloat(0);
+        byte[] queryBytes = Arrays.copyOfRange(quantized.array(), 4, 4 + dimensions);
+
+        lock.readLock().lock();
+        try {
+            if (channel == null || recordCount == 0 || limit <= 0) return new ArrayList<>();
+            ByteBuffer buffer = mapRecords();
+            int count = recordCount;
+
+            int blocks = (count + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+            PriorityQueue<Scored> best;
+            if (PARALLELISM == 1 || blocks < MIN_PARALLEL_BLOCKS) {
+                best = scan(buffer, 0, count, queryBytes, limit);
+            } else {
+                // Contiguous runs of blocks per task keep each core streaming through memory
+                int tasks = Math.min(PARALLELISM, blocks);
+                int blocksPerTask = (blocks + tasks - 1) / tasks;
+                List<Future<PriorityQueue<Scored>>> futures = new ArrayList<>(tasks);
+                for (int task = 0; task < tasks; task++) {
+                    int from = task * blocksPerTask * BLOCK_RECORDS;
+                    int to = Math.min(count, from + blocksPerTask * BLOCK_RECORDS);
+                    if (from >= to) break;
+                    futures.add(getScanPool().submit(() -> scan(buffer, from, to, queryBytes, limit)));
+                }
+                best = new PriorityQueue<>(limit + 1);
+                for (Future<PriorityQueue<Scored>> future : futures) {
+                    for (Scored scored : getResult(future)) {
+                        offer(best, scored, limit);
+                    }
+                }
+            }
+
+            SearchIndex.Hit[] hits = new SearchIndex.Hit[best.size()];
+            for (int i = hits.length - 1; i >= 0; i--) {
+                Scored scored = best.poll();
+                hits[i] = new SearchIndex.Hit(sessionIds.get(scored.ordinal), scored.messageIndex,
+                    scored.dot * queryScale * scored.scale);
+            }
+            return Arrays.asList(hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closeLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Scanning
+
+    private static class Scored implements Comparable<Scored> {
+        final int ordinal;
+        final int messageIndex;
+        final int dot;
+        final float scale;
+        final float score;
+
+        Scored(int ordinal, int messageIndex, int dot, float scale) {
+            this.ordinal = ordinal;
+            this.messageIndex = messageIndex;
+            this.dot = dot;
+            this.scale = scale;
+            this.score = dot * scale;
+        }
+
+        @Override
+        public int compareTo(Scored other) {
+            return Float.compare(score, other.score);
+        }
+    }
+
+    private PriorityQueue<Scored> scan(ByteBuffer mappedRecords, int from, int to, byte[] query, int limit) {
+        ByteBuffer buffer = mappedRecords.duplicate();
+        byte[] block = new byte[BLOCK_RECORDS * recordSize];
+        ByteBuffer header = ByteBuffer.wrap(block);
+        PriorityQueue<Scored> best = new PriorityQueue<>(limit + 1);
+
+        for (int start = from; start < to; start += BLOCK_RECORDS) {
+            int count = Math.min(BLOCK_RECORDS, to - start);
+            buffer.position(HEADER_SIZE + start * recordSize);
+            buffer.get(block, 0, count * recordSize);
+
+            for (int record = 0; record < count; record++) {
+                int offset = record * recordSize;
+                int ordinal = header.getInt(offset);
+                if (ordinal < 0 || ordinal >= sessionIds.size() || sessionIds.get(ordinal) == null) continue;
+
+                int dot = dot(query, block, offset + RECORD_HEADER_SIZE);
+                offer(best, new Scored(ordinal, header.getInt(offset + 4), dot,
+                    header.getFloat(offset + 12)), limit);
+            }
+        }
+        return best;
+    }
+
+    private int dot(byte[] query, byte[] block, int offset) {
+        int sum0 = 0;
+        int sum1 = 0;
+        int sum2 = 0;
+        int sum3 = 0;
+        int i = 0;
+        for (; i + 3 < dimensions; i += 4) {
+            sum0 += query[i] * block[offset + i];
+            sum1 += query[i + 1] * block[offset + i + 1];
+            sum2 += query[i + 2] * block[offset + i + 2];
+            sum3 += query[i + 3] * block[offset + i + 3];
+        }
+        for (; i < dimensions; i++) {
+            sum0 += query[i] * block[offset + i];
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    private static void offer(PriorityQueue<Scored> best, Scored scored, int limit) {
+        if (best.size() < limit) {
+            best.add(scored);
+        } else if (scored.score > best.peek().score) {
+            best.poll();
+            best.add(scored);
+        }
+    }
+
+    private static PriorityQueue<Scored> getResult(Future<PriorityQueue<Scored>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Vector scan failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Vector scan interrupted", e);
+        }
+    }
+
+    private static ExecutorService getScanPool() {
+        if (scanPool == null) {
+            synchronized (VectorIndex.class) {
+                if (scanPool == null) {
+                    scanPool = Executors.newFixedThreadPool(PARALLELISM, runnable -> {
+                        Thread thread = new Thread(runnable, "vector-scan");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return scanPool;
+    }
+
+    /**
+     * L2-normalizes the vector and writes scale(float) followed by one signed byte per component.
+     */
+    private static void quantize(float[] vector, ByteBuffer out) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+
+        float maxAbs = 0;
+        for (float value : vector) {
+            maxAbs = Math.max(maxAbs, Math.abs(value));
+        }
+        if (norm == 0 || maxAbs == 0) {
+            out.putFloat(0f);
+            for (int i = 0; i < vector.length; i++) {
+                out.put((byte) 0);
+            }
+            return;
+        }
+
+        float scale = (float) (maxAbs / norm / 127);
+        out.putFloat(scale);
+        float factor = (float) (127 / maxAbs);
+        for (float value : vector) {
+            out.put((byte) Math.round(value * factor));
+        }
+    }
+
+    // File handling; callers hold the write lock
+
+    private ByteBuffer mapRecords() throws IOException {
+        long size = HEADER_SIZE + (long) recordCount * recordSize;
+        MappedByteBuffer current = mapped;
+        if (current == null || current.capacity() < size) {
+            // Searches share a read lock, so two may remap at once; either mapping is valid
+            current = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped = current;
+        }
+        return current;
+    }
+
+    private boolean openVectorFile(int modelHash) throws IOException {
+        if (!vectorFile.exists()) return false;
+
+        raf = new RandomAccessFile(vectorFile, "rw");
+        channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.read(header, 0) != HEADER_SIZE) return false;
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION
+                || header.getInt() != dimensions || header.getInt() != modelHash) {
+            Log.i(TAG, "Stored vectors are from another model, rebuilding");
+            return false;
+        }
+        if (header.getInt() != generation) {
+            // A crash between replacing the two files; the ordinals cannot be trusted
+            Log.w(TAG, "Vector file and session table are out of step, rebuilding");
+            return false;
+        }
+
+        long records = (channel.size() - HEADER_SIZE) / recordSize;
+        recordCount = (int) records;
+        // Drop a record torn by a crash during append
+        channel.truncate(HEADER_SIZE + records * recordSize);
+        return true;
+    }
+
+    /**
+     * Rebuilds the message id hashes from the records and returns the number of dead records.
+     */
+    private int scanRecords() throws IOException {
+        messageHashes.clear();
+        int dead = 0;
+        ByteBuffer entry = ByteBuffer.allocate(12);
+        for (int record = 0; record < recordCount; record++) {
+            entry.clear();
+            channel.read(entry, HEADER_SIZE + (long) record * recordSize);
+            int ordinal = entry.getInt(0);
+            String sessionId = ordinal >= 0 && ordinal < sessionIds.size() ? sessionIds.get(ordinal) : null;
+            if (sessionId == null) {
+                dead++;
+                continue;
+            }
+            List<Integer> hashes = messageHashes.get(sessionId);
+            if (hashes == null) {
+                hashes = new ArrayList<>();
+                messageHashes.put(sessionId, hashes);
+            }
+            int messageIndex = entry.getInt(4);
+            while (hashes.size() <= messageIndex) {
+                hashes.add(0);
+            }
+            hashes.set(messageIndex, entry.getInt(8));
+        }
+        return dead;
+    }
+
+    private void compact(int modelHash, int liveRecords) throws IOException {
+        // Renumber live sessions and copy their records into a fresh file
+        List<String> liveIds = new ArrayList<>();
+        Map<Integer, Integer> remap = new HashMap<>();
+        for (int ordinal = 0; ordinal < sessionIds.size(); ordinal++) {
+            if (sessionIds.get(ordinal) != null) {
+                remap.put(ordinal, liveIds.size());
+                liveIds.add(sessionIds.get(ordinal));
+            }
+        }
+
+        generation++;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + liveRecords * recordSize);
+        writeHeader(out, modelHash);
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        int live = 0;
+        for (int i = 0; i < recordCount; i++) {
+            record.clear();
+            channel.read(record, HEADER_SIZE + (long) i * recordSize);
+            Integer ordinal = remap.get(record.getInt(0));
+            if (ordinal == null) continue;
+            record.putInt(0, ordinal);
+            record.flip();
+            out.put(record);
+            live++;
+        }
+
+        closeLocked();
+        sessionIds.clear();
+        ordinals.clear();
+        for (String id : liveIds) {
+            ordinals.put(id, sessionIds.size());
+            sessionIds.add(id);
+        }
+        // The renumbered records go first; until the table follows, open() rejects them
+        FileUtil.writeBytesAtomic(vectorFile, out.array());
+        writeSessionTable();
+        Log.i(TAG, "Compacted vector index to " + live + " records");
+
+        raf = new RandomAccessFile(vectorFile, "rw");
+        channel = raf.getChannel();
+        recordCount = live;
+        scanRecords();
+    }
+
+    private void reset(int modelHash) throws IOException {
+        closeLocked();
+        sessionIds.clear();
+        ordinals.clear();
+        messageHashes.clear();
+
+        generation++;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(header, modelHash);
+        FileUtil.writeBytesAtomic(vectorFile, header.array());
+        writeSessionTable();
+
+        raf = new RandomAccessFile(vectorFile, "rw");
+        channel = raf.getChannel();
+        recordCount = 0;
+    }
+
+    private void writeHeader(ByteBuffer out, int modelHash) {
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(dimensions);
+        out.putInt(modelHash);
+        out.putInt(generation);
+    }
+
+    // The first line holds the generation, then one line per ordinal
+    private boolean readSessionTable() {
+        sessionIds.clear();
+        ordinals.clear();
+        if (!sessionTableFile.exists()) return false;
+
+        String[] lines = FileUtil.readFile(sessionTableFile.getPath()).split("\n", -1);
+        // Written atomically, so a table without its final newline is not ours
+        if (lines.length < 2 || !lines[lines.length - 1].isEmpty()) return false;
+        try {
+            generation = Integer.parseInt(lines[0]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            String id = line.isEmpty() ? null : line;
+            if (id != null) {
+                ordinals.put(id, sessionIds.size());
+            }
+            sessionIds.add(id);
+        }
+        // The table always ends with a newline, which yields one empty entry
+        sessionIds.remove(sessionIds.size() - 1);
+        return true;
+    }
+
+    private void writeSessionTable() throws IOException {
+        StringBuilder table = new StringBuilder();
+        table.append(generation).append('\n');
+        for (String id : sessionIds) {
+            table.append(id != null ? id : "").append('\n');
+        }
+        FileUtil.writeBytesAtomic(sessionTableFile, table.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void closeLocked() {
+        mapped = null;
+        channel = null;
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing vector file", e);
+            }
+            raf = null;
+        }
+        recordCount = 0;
+    }
+}
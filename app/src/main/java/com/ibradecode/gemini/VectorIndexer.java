@@ -0,0 +1,158 @@
+package com.ibradecode.gemini;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embeds written messages in the background for semantic search.
+ *
+ * Embedding may wait on the network, so it runs on its own low-priority
+ * thread, and semantic queries, which embed the query first, run on another
+ * one rather than delaying keyword search. A session whose messages cannot be embedded is retried the next
+ * time it is written, and at the next startup by {@link #build(List)}.
+ */
+public class VectorIndexer {
+    private static final String TAG = "VectorIndexer";
+    private static final String INDEX_FILE = "vectors.bin";
+    private static final String SESSIONS_FILE = "vectors.sessions";
+
+    private final SessionStore store;
+    private final VectorIndex index;
+    private final Handler mainHandler;
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor(runnable ->
+        new Thread(runnable, "chat-semantic-search"));
+    private final ExecutorService embeddingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-embedding");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private volatile EmbeddingProvider provider;
+    private volatile boolean ready;
+
+    public VectorIndexer(SessionStore store, EmbeddingProvider provider, Handler mainHandler) {
+        this.store = store;
+        this.index = new VectorIndex(new File(store.getStoreDir(), INDEX_FILE),
+            new File(store.getStoreDir(), SESSIONS_FILE));
+        this.provider = provider;
+        this.mainHandler = mainHandler;
+    }
+
+    /**
+     * Finds messages similar in meaning to the query on the semantic query
+     * thread and delivers them on the main thread.
+     */
+    public void searchSimilar(String query, int limit, ChatRepository.SearchCallback callback) {
+        queryExecutor.execute(() -> {
+            List<SearchIndex.Hit> hits = new ArrayList<>();
+            if (ready) {
+                try {
+                    float[] vector = provider.embed(Collections.singletonList(query), true)[0];
+                    hits = index.search(vector, limit);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error in semantic search", e);
+                }
+            }
+            List<SearchIndex.Hit> results = hits;
+            mainHandler.post(() -> callback.onSearchResults(query, results));
+        });
+    }
+
+    /**
+     * Replaces the embedding provider; the vectors of the previous one are
+     * discarded and {@code snapshot} is embedded again.
+     */
+    public void setProvider(EmbeddingProvider provider, List<ChatSession> snapshot) {
+        this.provider = provider;
+        build(snapshot);
+    }
+
+    /**
+     * Opens the index for the current provider and embeds the messages of
+     * {@code snapshot} that have no vector yet.
+     */
+    public void build(List<ChatSession> snapshot) {
+        embeddingExecutor.execute(() -> {
+            ready = false;
+            EmbeddingProvider current = provider;
+            try {
+                index.open(current.getModelId(), current.getDimensions());
+                List<String> ids = new ArrayList<>(snapshot.size());
+                for (ChatSession session : snapshot) {
+                    ids.add(session.getId());
+                }
+                index.retainSessions(ids);
+                ready = true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening vector index", e);
+                return;
+            }
+
+            // Catch up with sessions written while vectors could not be computed
+            for (ChatSession session : snapshot) {
+                if (index.getEmbeddedCount(session.getId()) == session.getMessageCount()) continue;
+                ChatSession full = session.isLoaded() ? session : store.loadSession(session.getId());
+                // Stop at the first failure, most likely the network; later writes retry
+                if (full != null && !embedMessages(full.getId(), full.getMessages())) break;
+            }
+        });
+    }
+
+    /**
+     * Queues the written sessions of a saved snapshot for embedding. Runs on
+     * the persistence thread.
+     */
+    public void onSessionsWritten(List<ChatSession> snapshot, Set<String> dirtyIds, Set<String> deletedIds) {
+        for (ChatSession session : snapshot) {
+            if (session.isLoaded() && dirtyIds.contains(session.getId())) {
+                // Snapshots are frozen, so this list stays stable
+                String id = session.getId();
+                List<ChatMessage> messages = session.getMessages();
+                embeddingExecutor.execute(() -> embedMessages(id, messages));
+            }
+        }
+        for (String id : deletedIds) {
+            embeddingExecutor.execute(() -> {
+                try {
+                    index.removeSession(id);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error removing vectors of " + id, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Embeds the messages of a session that have no vector yet, and those
+     * after the first message whose id changed, e.g. where a synced message
+     * was merged in. Runs on the embedding thread.
+     */
+    private boolean embedMessages(String chatId, List<ChatMessage> messages) {
+        if (!ready) return false;
+        try {
+            int embedded = index.getMatchingCount(chatId, messages);
+            index.truncateSession(chatId, embedded);
+            if (embedded == messages.size()) return true;
+
+            List<ChatMessage> pending = messages.subList(embedded, messages.size());
+            List<String> texts = new ArrayList<>(pending.size());
+            for (ChatMessage message : pending) {
+                texts.add(message.loadText());
+            }
+            index.append(chatId, embedded, pending, provider.embed(texts, false));
+            return true;
+        } catch (Exception e) {
+            // Retried the next time the session is written
+            Log.w(TAG, "Could not embed messages of " + chatId, e);
+            return false;
+        }
+    }
+}
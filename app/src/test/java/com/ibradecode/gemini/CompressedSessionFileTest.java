@@ -0,0 +1,80 @@
+package com.ibradecode.gemini;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompressedSessionFileTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void spilledMessagesKeepTheirIdsAndBlobs() throws IOException {
+        ChatMessage spilled = ChatMessage.spilled("model", "blob-1", "preview", "12:01", null);
+        File file = write(newSession(spilled));
+
+        ChatSession read = CompressedSessionFile.read(file);
+        ChatMessage message = read.getMessages().get(1);
+        assertTrue(message.isSpilled());
+        assertEquals("blob-1", message.getBlobId());
+        assertEquals("preview", message.getPreview());
+        assertEquals(spilled.getId(), message.getId());
+    }
+
+    @Test
+    public void olderVersionsAreStillRead() throws IOException {
+        File file = write(newSession(new ChatMessage("model", "hi", "12:01")));
+        setVersion(file, 2);
+
+        ChatSession read = CompressedSessionFile.read(file);
+        assertEquals(2, read.getMessageCount());
+        assertEquals("hi", read.getMessages().get(1).getPreview());
+    }
+
+    @Test
+    public void newerVersionsAreRejected() throws IOException {
+        File file = write(newSession(new ChatMessage("model", "hi", "12:01")));
+        setVersion(file, CompressedSessionFile.VERSION + 1);
+
+        try {
+            CompressedSessionFile.read(file);
+            fail("read a file from a newer version");
+        } catch (IOException expected) {
+            // Misparsing would be worse than refusing
+        }
+    }
+
+    private File write(ChatSession session) throws IOException {
+        File file = temp.newFile();
+        FileUtil.writeBytesAtomic(file, CompressedSessionFile.encode(session,
+            CompressedSessionFile.DEFAULT_LEVEL, null, null));
+        return file;
+    }
+
+    private static void setVersion(File file, int version) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(version);
+        }
+    }
+
+    private static ChatSession newSession(ChatMessage reply) {
+        ChatSession session = new ChatSession("s", "12:01");
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(new ChatMessage("user", "hello", "12:00"));
+        messages.add(reply);
+        session.setMessages(messages);
+        return session;
+    }
+}
@@ -0,0 +1,61 @@
+package com.ibradecode.gemini;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MarkdownRendererTest {
+
+    @Test
+    public void emphasisAroundBrackets() {
+        assertMarkup("<b>arr[i]</b>", "**arr[i]**");
+        assertMarkup("<i>see [1] here</i>", "*see [1] here*");
+        assertMarkup("<i>see [1 here</i>", "*see [1 here*");
+        assertMarkup("<i>a ] b</i>", "*a ] b*");
+    }
+
+    @Test
+    public void emphasisInsideBrackets() {
+        assertMarkup("[<b>note</b>]", "[**note**]");
+        assertMarkup("[a <i>b] c</i>", "[a *b] c*");
+    }
+
+    @Test
+    public void emphasisAroundAndInsideLinks() {
+        assertMarkup("<a href=\"http://x\"><b>bold</b> link</a>", "[**bold** link](http://x)");
+        assertMarkup("<b><a href=\"http://x\">link</a></b>", "**[link](http://x)**");
+        assertMarkup("<i>see <a href=\"u\">a</a> here</i>", "*see [a](u) here*");
+        // Emphasis does not cross into a link label
+        assertMarkup("*<a href=\"u\">a*</a>", "*[a*](u)");
+        assertMarkup("<a href=\"u\">*a</a>*", "[*a](u)*");
+    }
+
+    @Test
+    public void emphasisAroundBackticks() {
+        assertMarkup("<b>bold <code>code</code> text</b>", "**bold `code` text**");
+        assertMarkup("<i><code>x</code></i>", "*`x`*");
+        assertMarkup("<b><i>both</i> <code>c</code></b>", "***both* `c`**");
+    }
+
+    @Test
+    public void markersInsideBackticksAreLiteral() {
+        assertMarkup("<code>a *b* c</code>", "`a *b* c`");
+        assertMarkup("<code>**x**</code>", "`**x**`");
+        assertMarkup("<code>a[i]</code> and <i>b</i>", "`a[i]` and *b*");
+        assertMarkup("<code>[a](u)</code>", "`[a](u)`");
+        assertMarkup("<i>a <code>*</code> b</i>", "*a `*` b*");
+    }
+
+    @Test
+    public void unmatchedMarkersStayLiteral() {
+        assertMarkup("*a", "*a");
+        assertMarkup("a ** b", "a ** b");
+        assertMarkup("`open", "`open");
+        assertMarkup("[a] (b)", "[a] (b)");
+        assertMarkup("*not*", "\\*not\\*");
+    }
+
+    private static void assertMarkup(String expected, String markdown) {
+        assertEquals(markdown, expected, MarkdownRenderer.renderInlineMarkup(markdown));
+    }
+}
@@ -0,0 +1,112 @@
+package com.ibradecode.gemini;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PersistenceExecutorTest {
+
+    private final List<List<ChatSession>> written = new ArrayList<>();
+    private final List<Set<String>> writtenIds = new ArrayList<>();
+    private PersistenceExecutor executor;
+
+    @Before
+    public void setUp() {
+        // Long debounce, so writes only happen when the test waits for them
+        executor = new PersistenceExecutor((sessions, dirty) -> {
+            written.add(sessions);
+            writtenIds.add(dirty);
+        }, 60_000, 60_000);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void changesAfterMarkDirtyAreNotWritten() throws InterruptedException {
+        ChatSession session = newSession("a", "first");
+        executor.markDirty("a", Collections.singletonList(session));
+
+        List<ChatMessage> changed = new ArrayList<>(session.getMessages());
+        changed.add(new ChatMessage("model", "second", "12:00"));
+        session.setMessages(changed);
+        session.setLastAccessed(42);
+
+        awaitWrites();
+        assertEquals(1, written.size());
+        ChatSession stored = written.get(0).get(0);
+        assertTrue(stored.isFrozen());
+        assertEquals(1, stored.getMessageCount());
+        assertNotEquals(42, stored.getLastAccessed());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void frozenMessageListsCannotChange() throws InterruptedException {
+        executor.markDirty("a", Collections.singletonList(newSession("a", "first")));
+        awaitWrites();
+        written.get(0).get(0).getMessages().add(new ChatMessage("user", "late", "12:00"));
+    }
+
+    @Test
+    public void dirtySessionUnloadedBeforeTheWriteKeepsItsMessages() throws InterruptedException {
+        ChatSession session = newSession("a", "first");
+        executor.markDirty("a", Collections.singletonList(session));
+        // Evicted from the hot set before the debounced write
+        executor.markDirty(null, Collections.singletonList(session.toHeader()));
+
+        awaitWrites();
+        assertEquals(1, written.size());
+        ChatSession stored = written.get(0).get(0);
+        assertTrue(stored.isLoaded());
+        assertEquals("first", stored.getMessages().get(0).getPreview());
+        assertTrue(writtenIds.get(0).contains("a"));
+    }
+
+    @Test
+    public void freezeReusesTheCopyUntilTheSessionChanges() {
+        ChatSession session = newSession("a", "first");
+        ChatSession frozen = session.freeze();
+        assertSame(frozen, session.freeze());
+        assertSame(frozen, frozen.freeze());
+
+        session.setLastAccessed(42);
+        ChatSession refrozen = session.freeze();
+        assertNotSame(frozen, refrozen);
+        assertEquals(42, refrozen.getLastAccessed());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void frozenSessionsCannotChange() {
+        newSession("a", "first").freeze().setLastAccessed(42);
+    }
+
+    // Pending writes run before any task on the persistence thread
+    private void awaitWrites() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static ChatSession newSession(String id, String text) {
+        ChatSession session = new ChatSession(id, "12:00");
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(new ChatMessage("user", text, "12:00"));
+        session.setMessages(messages);
+        return session;
+    }
+}
@@ -0,0 +1,97 @@
+package com.ibradecode.gemini;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendedMessagesAreFound() throws IOException {
+        SearchIndex index = new SearchIndex(folder.newFile("search.idx"));
+        ChatSession session = newSession("a", "apple", "banana");
+        index.updateSession(session);
+
+        List<ChatMessage> messages = new ArrayList<>(session.getMessages());
+        messages.add(new ChatMessage("model", "cherry", "12:00"));
+        session.setMessages(messages);
+        index.updateSession(session);
+
+        assertEquals(3, index.getIndexedCount("a"));
+        assertHit(index, "apple", 0);
+        assertHit(index, "cherry", 2);
+    }
+
+    @Test
+    public void messageInsertedMidSessionShiftsLaterHits() throws IOException {
+        SearchIndex index = new SearchIndex(folder.newFile("search.idx"));
+        ChatSession session = newSession("a", "apple", "banana", "cherry");
+        index.updateSession(session);
+
+        // As a synced message is merged in by timestamp
+        List<ChatMessage> messages = new ArrayList<>(session.getMessages());
+        messages.add(1, new ChatMessage("user", "durian", "12:00"));
+        session.setMessages(messages);
+        index.updateSession(session);
+
+        assertEquals(4, index.getIndexedCount("a"));
+        assertHit(index, "apple", 0);
+        assertHit(index, "durian", 1);
+        assertHit(index, "banana", 2);
+        assertHit(index, "cherry", 3);
+    }
+
+    @Test
+    public void insertedMessageSurvivesSaveAndLoad() throws IOException {
+        File file = folder.newFile("search.idx");
+        SearchIndex index = new SearchIndex(file);
+        ChatSession session = newSession("a", "apple", "banana");
+        index.updateSession(session);
+
+        List<ChatMessage> messages = new ArrayList<>(session.getMessages());
+        messages.add(0, new ChatMessage("user", "durian", "12:00"));
+        session.setMessages(messages);
+        index.updateSession(session);
+        index.save(GroupCommitWriter.getDefault());
+
+        SearchIndex loaded = new SearchIndex(file);
+        loaded.load();
+        assertEquals(3, loaded.getIndexedCount("a"));
+        assertHit(loaded, "durian", 0);
+        assertHit(loaded, "banana", 2);
+
+        // Unchanged ids are not indexed again
+        loaded.updateSession(session);
+        assertHit(loaded, "apple", 1);
+        assertEquals(1, loaded.search("apple", 10).size());
+    }
+
+    private static void assertHit(SearchIndex index, String query, int messageIndex) {
+        List<SearchIndex.Hit> hits = index.search(query + " ", 10);
+        assertEquals(hits.toString(), 1, hits.size());
+        assertEquals("a", hits.get(0).sessionId);
+        assertEquals(messageIndex, hits.get(0).messageIndex);
+        assertTrue(hits.get(0).score > 0);
+    }
+
+    private static ChatSession newSession(String id, String... texts) {
+        ChatSession session = new ChatSession(id, "12:00");
+        List<ChatMessage> messages = new ArrayList<>();
+        for (String text : texts) {
+            messages.add(new ChatMessage("user", text, "12:00"));
+        }
+        session.setMessages(messages);
+        return session;
+    }
+}
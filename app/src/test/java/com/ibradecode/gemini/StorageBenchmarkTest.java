@@ -0,0 +1,186 @@
+package com.ibradecode.gemini;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares save and load throughput of session files with and without
+ * encryption at rest.
+ *
+ * Each configuration writes a set of synthetic sessions (encode plus an
+ * atomic, fsynced write), appends one message to every session, reads the
+ * sessions back in full and reads their newest page. Throughput is measured
+ * in uncompressed message text per second and printed to the test output;
+ * the assertions only check that every configuration reads back what it
+ * wrote. Run with {@code ./gradlew :app:testDebugUnitTest --tests '*StorageBenchmarkTest'}.
+ */
+public class StorageBenchmarkTest {
+
+    private static final int SESSIONS = 50;
+    private static final int MESSAGES_PER_SESSION = 400;
+    private static final int ROUNDS = 3;
+    private static final int TAIL_MESSAGES = 20;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static class Result {
+        final String name;
+        final double saveMbPerSecond;
+        final double appendMillis;
+        final double loadMbPerSecond;
+        final double tailMillis;
+        final long diskBytes;
+
+        Result(String name, double saveMbPerSecond, double appendMillis, double loadMbPerSecond,
+                double tailMillis, long diskBytes) {
+            this.name = name;
+            this.saveMbPerSecond = saveMbPerSecond;
+            this.appendMillis = appendMillis;
+            this.loadMbPerSecond = loadMbPerSecond;
+            this.tailMillis = tailMillis;
+            this.diskBytes = diskBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%-10s save %7.2f MB/s  append %6.3f ms  load %7.2f MB/s  tail %6.3f ms  disk %d KB",
+                name, saveMbPerSecond, appendMillis, loadMbPerSecond, tailMillis, diskBytes / 1024);
+        }
+    }
+
+    @Test
+    public void plain() throws IOException {
+        System.out.println(run("plain", null));
+    }
+
+    @Test
+    public void encrypted() throws IOException {
+        System.out.println(run("encrypted", new StorageCipher(SoftwareKeyProvider.generate())));
+    }
+
+    /**
+     * Runs one configuration {@link #ROUNDS} times and returns the best round.
+     */
+    private Result run(String name, StorageCipher cipher) throws IOException {
+        File dir = temp.newFolder(name);
+        List<ChatSession> sessions = generateSessions(SESSIONS, MESSAGES_PER_SESSION);
+        long textBytes = 0;
+        for (ChatSession session : sessions) {
+            for (ChatMessage message : session.getMessages()) {
+                textBytes += message.loadText().getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        long bestSave = Long.MAX_VALUE;
+        long bestAppend = Long.MAX_VALUE;
+        long bestLoad = Long.MAX_VALUE;
+        long bestTail = Long.MAX_VALUE;
+        long diskBytes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            deleteFiles(dir, sessions);
+
+            long start = System.nanoTime();
+            for (ChatSession session : sessions) {
+                File file = getFile(dir, session);
+                FileUtil.writeBytesAtomic(file, CompressedSessionFile.encode(session,
+                    CompressedSessionFile.DEFAULT_LEVEL, cipher, null));
+            }
+            bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (ChatSession session : sessions) {
+                File file = getFile(dir, session);
+                List<ChatMessage> messages = new ArrayList<>(session.getMessages());
+                messages.add(new ChatMessage("user", "satu pertanyaan lagi ya", "12:00"));
+                ChatSession appended = copyWithMessages(session, messages);
+                FileUtil.writeBytesAtomic(file, CompressedSessionFile.encode(appended,
+                    CompressedSessionFile.DEFAULT_LEVEL, cipher, file));
+            }
+            bestAppend = Math.min(bestAppend, System.nanoTime() - start);
+
+            diskBytes = 0;
+            start = System.nanoTime();
+            for (ChatSession session : sessions) {
+                File file = getFile(dir, session);
+                ChatSession read = CompressedSessionFile.read(file, cipher);
+                assertEquals(MESSAGES_PER_SESSION + 1, read.getMessageCount());
+                diskBytes += file.length();
+            }
+            bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (ChatSession session : sessions) {
+                ChatSession tail = CompressedSessionFile.readTail(getFile(dir, session), TAIL_MESSAGES, cipher);
+                assertTrue(tail.getMessageCount() >= TAIL_MESSAGES);
+            }
+            bestTail = Math.min(bestTail, System.nanoTime() - start);
+        }
+
+        int count = sessions.size();
+        return new Result(name,
+            megabytesPerSecond(textBytes, bestSave),
+            bestAppend / 1e6 / count,
+            megabytesPerSecond(textBytes, bestLoad),
+            bestTail / 1e6 / count,
+            diskBytes);
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static ChatSession copyWithMessages(ChatSession session, List<ChatMessage> messages) {
+        ChatSession copy = new ChatSession(session.getId(), session.getLastMessageTime());
+        copy.setTimestamp(session.getTimestamp());
+        copy.setMessages(messages);
+        return copy;
+    }
+
+    private static File getFile(File dir, ChatSession session) {
+        return new File(dir, session.getId() + ".chat");
+    }
+
+    private static void deleteFiles(File dir, List<ChatSession> sessions) {
+        for (ChatSession session : sessions) {
+            getFile(dir, session).delete();
+        }
+    }
+
+    private static List<ChatSession> generateSessions(int sessionCount, int messagesPerSession) {
+        String[] words = ("aku bisa bantu kamu untuk membuat aplikasi android dengan java " +
+            "the function returns a list of messages from the session file and " +
+            "berikut contoh kode yang bisa kamu pakai semoga membantu ya").split(" ");
+        Random random = new Random(42);
+        List<ChatSession> sessions = new ArrayList<>(sessionCount);
+        for (int s = 0; s < sessionCount; s++) {
+            ChatSession session = new ChatSession("bench-" + s, "12:00");
+            List<ChatMessage> messages = new ArrayList<>(messagesPerSession);
+            for (int m = 0; m < messagesPerSession; m++) {
+                boolean user = m % 2 == 0;
+                int length = user ? 8 + random.nextInt(24) : 60 + random.nextInt(240);
+                StringBuilder text = new StringBuilder();
+                for (int w = 0; w < length; w++) {
+                    text.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                messages.add(new ChatMessage(user ? "user" : "model", text.toString(), "12:00"));
+            }
+            session.setMessages(messages);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+}
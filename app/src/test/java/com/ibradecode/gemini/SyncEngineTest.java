@@ -0,0 +1,448 @@
+package com.ibradecode.gemini;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs {@link SyncEngine} against an in-memory server that implements the
+ * push and pull protocol described on the engine.
+ */
+public class SyncEngineTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FakeServer server;
+    private FakeLocalSessions local;
+    private File stateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeServer();
+        local = new FakeLocalSessions();
+        stateFile = new File(temp.newFolder(), "sync_state.json");
+    }
+
+    @Test
+    public void pushSendsOnlyMessagesAfterTheSyncedPrefix() throws IOException {
+        local.put(session("a", message("m1", 1), message("m2", 2), message("m3", 3)));
+        SyncEngine engine = newEngine();
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+
+        SyncEngine.Result first = engine.sync();
+        assertEquals(1, first.pushedSessions);
+        assertEquals(3, first.pushedMessages);
+        assertEquals(3, server.messageCount("a"));
+        assertFalse(engine.hasPendingChanges());
+
+        local.put(session("a", message("m1", 1), message("m2", 2), message("m3", 3), message("m4", 4)));
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        SyncEngine.Result second = engine.sync();
+
+        assertEquals(1, second.pushedMessages);
+        JsonObject pushed = server.lastPushedSession("a");
+        assertEquals(3, pushed.get("baseCount").getAsInt());
+        assertEquals(1, pushed.getAsJsonArray("messages").size());
+        assertEquals(4, server.messageCount("a"));
+    }
+
+    @Test
+    public void unchangedSessionIsNotPushedAgain() throws IOException {
+        local.put(session("a", message("m1", 1)));
+        SyncEngine engine = newEngine();
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        engine.sync();
+        int pushes = server.pushCount;
+
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        SyncEngine.Result result = engine.sync();
+
+        assertEquals(pushes, server.pushCount);
+        assertEquals(0, result.pushedSessions);
+        assertFalse(engine.hasPendingChanges());
+    }
+
+    @Test
+    public void rejectedSessionIsSentInFullNextTime() throws IOException {
+        local.put(session("a", message("m1", 1), message("m2", 2)));
+        SyncEngine engine = newEngine();
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        engine.sync();
+
+        // Another client rewrote the server's copy
+        server.replace("a", message("x1", 1));
+        local.put(session("a", message("m1", 1), message("m2", 2), message("m3", 3)));
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        engine.sync();
+        assertTrue(engine.hasPendingChanges());
+
+        // The pull that followed merged the server's message into the local session
+        assertEquals(Arrays.asList("m1", "x1", "m2", "m3"), messageIds(local.sessions.get("a")));
+
+        engine.sync();
+        JsonObject pushed = server.lastPushedSession("a");
+        assertEquals(0, pushed.get("baseCount").getAsInt());
+        assertEquals(4, pushed.getAsJsonArray("messages").size());
+        assertFalse(engine.hasPendingChanges());
+    }
+
+    @Test
+    public void localDeleteIsPushed() throws IOException {
+        local.put(session("a", message("m1", 1)));
+        SyncEngine engine = newEngine();
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        engine.sync();
+
+        local.sessions.remove("a");
+        engine.recordChanges(Collections.<String>emptyList(), Collections.singletonList("a"));
+        engine.sync();
+
+        assertTrue(server.isDeleted("a"));
+        assertFalse(engine.hasPendingChanges());
+    }
+
+    @Test
+    public void pullPagesThroughEveryRemoteChange() throws IOException {
+        server.pageSize = 2;
+        for (int i = 0; i < 5; i++) {
+            server.replace("remote-" + i, message("r" + i, i + 1));
+        }
+        SyncEngine engine = newEngine();
+
+        SyncEngine.Result result = engine.sync();
+
+        assertEquals(5, result.pulledSessions);
+        assertEquals(3, server.pullCount);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(local.sessions.get("remote-" + i));
+        }
+        // Sessions that match the server are not pushed back
+        assertFalse(engine.hasPendingChanges());
+    }
+
+    @Test
+    public void pullResumesFromTheStoredCursor() throws IOException {
+        server.replace("r1", message("m1", 1));
+        newEngine().sync();
+
+        server.replace("r2", message("m2", 2));
+        SyncEngine restarted = newEngine();
+        assertFalse(restarted.isInitial());
+        SyncEngine.Result result = restarted.sync();
+
+        assertEquals(1, result.pulledSessions);
+        assertEquals("r2", server.lastPulledIds.get(0));
+    }
+
+    @Test
+    public void pullMergesRemoteMessagesIntoTheLocalSession() throws IOException {
+        local.put(session("a", message("m1", 1), message("local", 3)));
+        server.replace("a", message("m1", 1), message("remote", 2));
+        SyncEngine engine = newEngine();
+
+        engine.sync();
+
+        List<String> ids = messageIds(local.sessions.get("a"));
+        assertEquals(Arrays.asList("m1", "remote", "local"), ids);
+        // The server lacks the local message, so the merged session goes back up
+        assertTrue(engine.hasPendingChanges());
+        engine.sync();
+        assertEquals(3, server.messageCount("a"));
+        assertFalse(engine.hasPendingChanges());
+    }
+
+    @Test
+    public void remoteDeleteIsAppliedLocallyAndNotPushedBack() throws IOException {
+        local.put(session("a", message("m1", 1)));
+        SyncEngine engine = newEngine();
+        engine.recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+        engine.sync();
+
+        server.delete("a", "other-device");
+        engine.sync();
+
+        assertNull(local.sessions.get("a"));
+        assertEquals(Collections.singletonList("a"), local.deleted);
+        assertFalse(engine.hasPendingChanges());
+    }
+
+    @Test
+    public void pendingChangesSurviveARestart() throws IOException {
+        local.put(session("a", message("m1", 1)));
+        newEngine().recordChanges(Collections.singletonList("a"), Collections.<String>emptyList());
+
+        SyncEngine restarted = newEngine();
+        assertTrue(restarted.hasPendingChanges());
+        restarted.sync();
+        assertEquals(1, server.messageCount("a"));
+    }
+
+    private SyncEngine newEngine() {
+        return new SyncEngine(stateFile, server, local);
+    }
+
+    private static ChatSession session(String id, ChatMessage... messages) {
+        ChatSession session = new ChatSession(id, "12:00");
+        session.setTimestamp(1);
+        session.setMessages(new ArrayList<>(Arrays.asList(messages)));
+        return session;
+    }
+
+    private static ChatMessage message(String id, long timestamp) {
+        ChatMessage message = new ChatMessage(timestamp % 2 == 1 ? "user" : "model", "text of " + id, "12:00");
+        message.setId(id);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private static List<String> messageIds(ChatSession session) {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage message : session.getMessages()) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Local storage that hands out copies, like sessions read from disk.
+     */
+    private static class FakeLocalSessions implements SyncEngine.LocalSessions {
+        final Map<String, ChatSession> sessions = new HashMap<>();
+        final List<String> deleted = new ArrayList<>();
+
+        void put(ChatSession session) {
+            sessions.put(session.getId(), session);
+        }
+
+        @Override
+        public ChatSession load(String sessionId) {
+            ChatSession session = sessions.get(sessionId);
+            if (session == null) return null;
+            ChatSession copy = new ChatSession(session.getId(), session.getLastMessageTime());
+            copy.setTimestamp(session.getTimestamp());
+            copy.setMessages(new ArrayList<>(session.getMessages()));
+            return copy;
+        }
+
+        @Override
+        public void save(ChatSession session) {
+            sessions.put(session.getId(), session);
+        }
+
+        @Override
+        public void delete(String sessionId) {
+            sessions.remove(sessionId);
+            deleted.add(sessionId);
+        }
+    }
+
+    /**
+     * Keeps one copy of every session and a change sequence for pulls.
+     */
+    private static class FakeServer implements SyncEngine.Transport {
+        private static final String SERVER_DEVICE = "server";
+
+        private static class Stored {
+            List<ChatMessage> messages = new ArrayList<>();
+            String lastMessageTime = "";
+            long timestamp;
+            boolean deleted;
+            long seq;
+            String deviceId;
+        }
+
+        private final Gson gson = new Gson();
+        private final Map<String, Stored> sessions = new LinkedHashMap<>();
+        private final Map<String, JsonObject> lastPushed = new HashMap<>();
+        private long seq;
+        int pageSize = 100;
+        int pushCount;
+        int pullCount;
+        List<String> lastPulledIds = new ArrayList<>();
+
+        int messageCount(String id) {
+            Stored stored = sessions.get(id);
+            return stored != null ? stored.messages.size() : 0;
+        }
+
+        boolean isDeleted(String id) {
+            Stored stored = sessions.get(id);
+            return stored != null && stored.deleted;
+        }
+
+        JsonObject lastPushedSession(String id) {
+            return lastPushed.get(id);
+        }
+
+        void replace(String id, ChatMessage... messages) {
+            Stored stored = new Stored();
+            stored.messages.addAll(Arrays.asList(messages));
+            stored.timestamp = 1;
+            stored.seq = ++seq;
+            stored.deviceId = SERVER_DEVICE;
+            sessions.put(id, stored);
+        }
+
+        void delete(String id, String deviceId) {
+            Stored stored = new Stored();
+            stored.deleted = true;
+            stored.seq = ++seq;
+            stored.deviceId = deviceId;
+            sessions.put(id, stored);
+        }
+
+        @Override
+        public String push(byte[] gzippedRequest) throws IOException {
+            pushCount++;
+            JsonObject request = gson.fromJson(gunzip(gzippedRequest), JsonObject.class);
+            assertEquals(SyncEngine.PROTOCOL_VERSION, request.get("version").getAsInt());
+            String deviceId = request.get("deviceId").getAsString();
+
+            JsonArray accepted = new JsonArray();
+            JsonArray rejected = new JsonArray();
+            for (JsonElement element : request.getAsJsonArray("sessions")) {
+                JsonObject session = element.getAsJsonObject();
+                String id = session.get("id").getAsString();
+                lastPushed.put(id, session);
+                if (session.has("deleted")) {
+                    delete(id, deviceId);
+                    accepted.add(id);
+                    continue;
+                }
+
+                Stored stored = sessions.get(id);
+                List<ChatMessage> base = stored != null && !stored.deleted ? stored.messages
+                    : new ArrayList<>();
+                int baseCount = session.get("baseCount").getAsInt();
+                String baseHash = session.get("baseHash").getAsString();
+                boolean matches = baseCount == 0
+                    || (baseCount <= base.size() && baseHash.equals(SyncEngine.hash(base, baseCount)));
+                if (!matches) {
+                    rejected.add(id);
+                    continue;
+                }
+
+                Stored updated = new Stored();
+                updated.messages.addAll(base.subList(0, baseCount));
+                for (JsonElement message : session.getAsJsonArray("messages")) {
+                    updated.messages.add(toMessage(message.getAsJsonObject()));
+                }
+                assertEquals(session.get("count").getAsInt(), updated.messages.size());
+                assertEquals(session.get("hash").getAsString(),
+                    SyncEngine.hash(updated.messages, updated.messages.size()));
+                updated.lastMessageTime = session.get("lastMessageTime").getAsString();
+                updated.timestamp = session.get("timestamp").getAsLong();
+                updated.seq = ++seq;
+                updated.deviceId = deviceId;
+                sessions.put(id, updated);
+                accepted.add(id);
+            }
+
+            JsonObject response = new JsonObject();
+            response.add("accepted", accepted);
+            response.add("rejected", rejected);
+            return gson.toJson(response);
+        }
+
+        @Override
+        public String pull(long cursor, String deviceId) throws IOException {
+            pullCount++;
+            List<Map.Entry<String, Stored>> changes = new ArrayList<>();
+            for (Map.Entry<String, Stored> entry : sessions.entrySet()) {
+                if (entry.getValue().seq > cursor && !deviceId.equals(entry.getValue().deviceId)) {
+                    changes.add(entry);
+                }
+            }
+            Collections.sort(changes, (a, b) -> Long.compare(a.getValue().seq, b.getValue().seq));
+
+            JsonArray page = new JsonArray();
+            lastPulledIds = new ArrayList<>();
+            long next = cursor;
+            for (Map.Entry<String, Stored> change : changes.subList(0, Math.min(pageSize, changes.size()))) {
+                Stored stored = change.getValue();
+                JsonObject session = new JsonObject();
+                session.addProperty("id", change.getKey());
+                if (stored.deleted) {
+                    session.addProperty("deleted", true);
+                } else {
+                    session.addProperty("lastMessageTime", stored.lastMessageTime);
+                    session.addProperty("timestamp", stored.timestamp);
+                    session.addProperty("count", stored.messages.size());
+                    session.addProperty("hash", SyncEngine.hash(stored.messages, stored.messages.size()));
+                    JsonArray messages = new JsonArray();
+                    for (ChatMessage message : stored.messages) {
+                        messages.add(toJson(message));
+                    }
+                    session.add("messages", messages);
+                }
+                page.add(session);
+                lastPulledIds.add(change.getKey());
+                next = stored.seq;
+            }
+
+            JsonObject response = new JsonObject();
+            response.addProperty("cursor", next);
+            response.addProperty("more", changes.size() > pageSize);
+            response.add("sessions", page);
+            return gson.toJson(response);
+        }
+
+        private static ChatMessage toMessage(JsonObject json) {
+            ChatMessage message = new ChatMessage(json.get("role").getAsString(),
+                json.get("text").getAsString(), json.get("time").getAsString());
+            message.setId(json.get("id").getAsString());
+            message.setTimestamp(json.get("timestamp").getAsLong());
+            return message;
+        }
+
+        private static JsonObject toJson(ChatMessage message) throws IOException {
+            JsonObject json = new JsonObject();
+            json.addProperty("id", message.getId());
+            json.addProperty("role", message.getRole());
+            json.addProperty("text", message.loadText());
+            json.addProperty("time", message.getTime());
+            json.addProperty("timestamp", message.getTimestamp());
+            return json;
+        }
+
+        private static String gunzip(byte[] data) throws IOException {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+}